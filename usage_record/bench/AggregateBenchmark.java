@@ -0,0 +1,57 @@
+import es.bsc.ur4j.UsageAggregator;
+import es.bsc.ur4j.UsageRecord;
+
+/**
+ * Measures rolling up a batch of typical records per user and hour with a UsageAggregator, in
+ * one thread and in several threads each with their own aggregator, merged at the end
+ */
+public final class AggregateBenchmark {
+
+    private static final int RECORDS = 100000;
+    private static final int USERS = 1000;
+    private static final int THREADS = 8;
+
+    public static void main(String[] args) throws Exception {
+        final UsageRecord[] records = new UsageRecord[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            records[i] = Records.typical();
+            records[i].addUserId("user" + (i % USERS), null);
+        }
+
+        double nanos = Bench.measure("UsageAggregator, " + RECORDS + " records", new Bench.Operation() {
+            public Object run() {
+                UsageAggregator aggregator = new UsageAggregator(UsageAggregator.Dimension.LocalUserId, 3600);
+                for (UsageRecord record : records)
+                    aggregator.add(record);
+                return aggregator;
+            }
+        });
+        System.out.println(String.format("%-50s %14.1f ns/record", "", nanos / RECORDS));
+
+        nanos = Bench.measure("UsageAggregator, " + THREADS + " threads merged", new Bench.Operation() {
+            public Object run() throws Exception {
+                final UsageAggregator[] parts = new UsageAggregator[THREADS];
+                Thread[] workers = new Thread[THREADS];
+                for (int t = 0; t < THREADS; t++) {
+                    final int first = t;
+                    parts[t] = new UsageAggregator(UsageAggregator.Dimension.LocalUserId, 3600);
+                    workers[t] = new Thread() {
+                        public void run() {
+                            for (int i = first; i < RECORDS; i += THREADS)
+                                parts[first].add(records[i]);
+                        }
+                    };
+                    workers[t].start();
+                }
+
+                UsageAggregator total = new UsageAggregator(UsageAggregator.Dimension.LocalUserId, 3600);
+                for (int t = 0; t < THREADS; t++) {
+                    workers[t].join();
+                    total.merge(parts[t]);
+                }
+                return total;
+            }
+        });
+        System.out.println(String.format("%-50s %14.1f ns/record", "", nanos / RECORDS));
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A minimal micro-benchmark harness for the ur4j hot paths.
+ * <P>
+ * Each operation is run for a warm-up period so the JIT has compiled it, then timed over a
+ * number of measurement rounds. The mean time per operation of the rounds is reported, with
+ * the bytes allocated per operation (from the JVM's per-thread allocation counters, so it
+ * includes everything the operation allocates whether or not it is collected later).
+ * Operations can also be run by several threads at once, to see how well they scale: the time
+ * reported is then the elapsed time divided by the operations done by all the threads.
+ * <P>
+ * Run the benchmarks with "ant bench". To compare a change against a baseline, save the
+ * results of one run with -Dbench.results=file and pass that file to the next run with
+ * -Dbench.baseline=file: the change in time per operation is then reported for each result.
+ */
+public final class Bench {
+
+    private static final long WARMUP_NANOS = 2000000000L;
+    private static final long ROUND_NANOS = 1000000000L;
+    private static final int ROUNDS = 5;
+
+    private static final com.sun.management.ThreadMXBean threads = threadBean();
+    private static final Map<String, Double> baseline = readBaseline(System.getProperty("bench.baseline"));
+    private static final String results = System.getProperty("bench.results");
+
+    /**
+     * Anything left in here is read at the end of the run so the JIT cannot remove
+     * the measured operations as dead code.
+     */
+    private static volatile Object sink;
+
+    private Bench() {
+    }
+
+    /**
+     * An operation to measure
+     */
+    public interface Operation {
+
+        /**
+         * Run the operation once
+         *
+         * @return the result of the operation, which is consumed by the harness
+         * @throws Exception if the operation fails
+         */
+        Object run() throws Exception;
+    }
+
+    /**
+     * Measure an operation and print the mean time per operation
+     *
+     * @param name the name to report the result under
+     * @param operation the operation to measure
+     * @return the mean time per operation in nanoseconds
+     * @throws Exception if the operation fails
+     */
+    public static double measure(String name, Operation operation) throws Exception {
+        runFor(operation, WARMUP_NANOS);
+
+        long[] id = { Thread.currentThread().getId() };
+        long bytes = allocatedBytes(id);
+        long count = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++)
+            count += runFor(operation, ROUND_NANOS);
+        long elapsed = System.nanoTime() - start;
+        bytes = allocatedBytes(id) - bytes;
+
+        return report(name, elapsed, bytes, count);
+    }
+
+    /**
+     * Measure an operation run by several threads at once and print the elapsed time per
+     * operation, over all the threads
+     *
+     * @param name the name to report the result under
+     * @param threads the number of threads to run the operation in
+     * @param operation the operation to measure, which must be thread safe
+     * @return the elapsed time per operation in nanoseconds
+     * @throws Exception if the operation fails
+     */
+    public static double measure(String name, int threads, Operation operation) throws Exception {
+        Worker[] workers = new Worker[threads];
+        long[] ids = new long[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(operation);
+            workers[i].start();
+            ids[i] = workers[i].getId();
+        }
+
+        Thread.sleep(WARMUP_NANOS / 1000000);
+        for (Worker worker : workers)
+            worker.measuring = true;
+        long bytes = allocatedBytes(ids);
+        long start = System.nanoTime();
+        Thread.sleep(ROUNDS * ROUND_NANOS / 1000000);
+        for (Worker worker : workers)
+            worker.measuring = false;
+        long elapsed = System.nanoTime() - start;
+        bytes = allocatedBytes(ids) - bytes;
+
+        long count = 0;
+        for (Worker worker : workers) {
+            worker.running = false;
+            worker.join();
+            if (worker.failure != null)
+                throw worker.failure;
+            count += worker.count;
+            sink = worker.result;
+        }
+
+        return report(name + ", " + threads + " threads", elapsed, bytes, count);
+    }
+
+    /**
+     * A thread running an operation until it is stopped, counting the operations it runs
+     * while it is being measured
+     */
+    private static final class Worker extends Thread {
+
+        private final Operation operation;
+        private volatile boolean running = true;
+        private volatile boolean measuring;
+        private long count;
+        private Object result;
+        private Exception failure;
+
+        private Worker(Operation operation) {
+            this.operation = operation;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    boolean measured = measuring;
+                    // Kept in the worker rather than the shared sink, which the threads would contend on
+                    for (int i = 0; i < 16; i++)
+                        result = operation.run();
+                    if (measured)
+                        count += 16;
+                }
+            }
+            catch (Exception e) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Helper method: run an operation repeatedly for a period of time
+     *
+     * @param operation the operation to run
+     * @param nanos how long to run the operation for
+     * @return the number of times the operation was run
+     * @throws Exception if the operation fails
+     */
+    private static long runFor(Operation operation, long nanos) throws Exception {
+        long count = 0;
+        long start = System.nanoTime();
+        do {
+            for (int i = 0; i < 16; i++)
+                sink = operation.run();
+            count += 16;
+        } while (System.nanoTime() - start < nanos);
+        return count;
+    }
+
+    /**
+     * Helper method: print a result, with the change from the baseline if there is one, and
+     * save it to the results file if one was given
+     *
+     * @param name the name of the result
+     * @param elapsed the time taken in nanoseconds
+     * @param bytes the bytes allocated, or a negative number if they couldn't be counted
+     * @param count the number of operations run
+     * @return the time per operation in nanoseconds
+     * @throws IOException if the results file cannot be written
+     */
+    private static double report(String name, long elapsed, long bytes, long count) throws IOException {
+        double nanosPerOp = (double) elapsed / count;
+        double bytesPerOp = (double) bytes / count;
+
+        StringBuilder line = new StringBuilder(String.format("%-50s %14.1f ns/op", name, nanosPerOp));
+        if (bytes >= 0)
+            line.append(String.format(" %12.1f B/op", bytesPerOp));
+        Double before = baseline.get(name);
+        if (before != null)
+            line.append(String.format(" %+8.1f%% vs baseline", 100 * (nanosPerOp - before) / before));
+        System.out.println(line);
+
+        if (results != null) {
+            Writer out = new OutputStreamWriter(new FileOutputStream(results, true), "UTF-8");
+            try {
+                out.write(name + "\t" + nanosPerOp + "\t" + bytesPerOp + "\n");
+            }
+            finally {
+                out.close();
+            }
+        }
+        return nanosPerOp;
+    }
+
+    /**
+     * Helper method: get the total bytes allocated so far by some threads
+     *
+     * @param ids the ids of the threads
+     * @return the bytes allocated, or -1 if the JVM doesn't count them
+     */
+    private static long allocatedBytes(long[] ids) {
+        if (threads == null)
+            return -1;
+
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(ids)) {
+            if (bytes < 0)
+                return -1;
+            total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * Helper method: get the thread bean with the allocation counters, turning them on
+     *
+     * @return the thread bean, or null if the JVM doesn't have allocation counters
+     */
+    private static com.sun.management.ThreadMXBean threadBean() {
+        Object bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        if (!threadBean.isThreadAllocatedMemorySupported())
+            return null;
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        return threadBean;
+    }
+
+    /**
+     * Helper method: read the times per operation of a baseline run
+     *
+     * @param file the results file of the baseline run (may be null)
+     * @return the time per operation of each result by name, empty if there is no baseline
+     */
+    private static Map<String, Double> readBaseline(String file) {
+        Map<String, Double> times = new HashMap<String, Double>();
+        if (file == null)
+            return times;
+
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length >= 2)
+                        times.put(fields[0], Double.valueOf(fields[1]));
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Cannot read the baseline " + file + ": " + e.getMessage());
+        }
+        return times;
+    }
+}
@@ -0,0 +1,101 @@
+import es.bsc.ur4j.BinaryRecordReader;
+import es.bsc.ur4j.BinaryRecordWriter;
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordReader;
+import es.bsc.ur4j.UsageRecordsWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Compares the binary encoding with the XML one: the bytes a batch of typical records takes,
+ * and how fast the batch is written and read back each way
+ */
+public final class BinaryRecordBenchmark {
+
+    private static final int RECORDS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        final UsageRecord[] records = new UsageRecord[RECORDS];
+        for (int i = 0; i < RECORDS; i++)
+            records[i] = Records.typical();
+
+        final byte[] xml = writeXml(records);
+        final byte[] binary = writeBinary(records);
+        System.out.println(String.format("%-50s %14.1f bytes/record", "XML", (double) xml.length / RECORDS));
+        System.out.println(String.format("%-50s %14.1f bytes/record", "Binary", (double) binary.length / RECORDS));
+
+        perRecord(Bench.measure("UsageRecordsWriter, " + RECORDS + " records", new Bench.Operation() {
+            public Object run() throws Exception {
+                return writeXml(records);
+            }
+        }));
+
+        perRecord(Bench.measure("BinaryRecordWriter, " + RECORDS + " records", new Bench.Operation() {
+            public Object run() throws Exception {
+                return writeBinary(records);
+            }
+        }));
+
+        perRecord(Bench.measure("UsageRecordReader, " + RECORDS + " records", new Bench.Operation() {
+            public Object run() throws Exception {
+                UsageRecordReader reader = new UsageRecordReader(new ByteArrayInputStream(xml));
+                Object last = null;
+                while (reader.hasNext())
+                    last = reader.next();
+                reader.close();
+                return last;
+            }
+        }));
+
+        perRecord(Bench.measure("BinaryRecordReader, " + RECORDS + " records", new Bench.Operation() {
+            public Object run() throws Exception {
+                BinaryRecordReader reader = new BinaryRecordReader(new ByteArrayInputStream(binary));
+                Object last = null;
+                while (reader.hasNext())
+                    last = reader.next();
+                reader.close();
+                return last;
+            }
+        }));
+    }
+
+    /**
+     * Helper method: write records as a UsageRecords document
+     *
+     * @param records the records to write
+     * @return the document
+     */
+    private static byte[] writeXml(UsageRecord[] records) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        UsageRecordsWriter writer = new UsageRecordsWriter(bytes);
+        for (UsageRecord record : records)
+            writer.write(record);
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Helper method: write records as a binary record stream
+     *
+     * @param records the records to write
+     * @return the stream
+     */
+    private static byte[] writeBinary(UsageRecord[] records) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryRecordWriter writer = new BinaryRecordWriter(bytes);
+        for (UsageRecord record : records)
+            writer.write(record);
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Helper method: print the time per record of a batch
+     *
+     * @param nanos the mean time per batch in nanoseconds
+     */
+    private static void perRecord(double nanos) {
+        System.out.println(String.format("%-50s %14.1f ns/record", "", nanos / RECORDS));
+    }
+}
@@ -0,0 +1,62 @@
+import es.bsc.ur4j.ColumnarRecordStore;
+import es.bsc.ur4j.UsageAggregator;
+import es.bsc.ur4j.UsageRecord;
+
+import java.io.File;
+
+/**
+ * Measures appending typical records to a ColumnarRecordStore, and the scans of the stored
+ * rows: the total charge of one project, and the total network volume of every row. Appends are timed
+ * once over the whole batch, rather than by the harness, so the store stays a fixed size.
+ */
+public final class ColumnarStoreBenchmark {
+
+    private static final int ROWS = 2000000;
+    private static final int PROJECTS = 100;
+
+    public static void main(String[] args) throws Exception {
+        UsageRecord[] records = new UsageRecord[PROJECTS];
+        for (int i = 0; i < PROJECTS; i++) {
+            records[i] = Records.typical();
+            records[i].addProjectName("project" + i, null);
+        }
+
+        File directory = File.createTempFile("columns", "");
+        directory.delete();
+        final ColumnarRecordStore store = new ColumnarRecordStore(directory);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < ROWS; i++)
+                store.append(records[i % PROJECTS]);
+            store.sync();
+            long elapsed = System.nanoTime() - start;
+            System.out.println(String.format("%-50s %14.1f ns/row", "ColumnarRecordStore append, " + ROWS + " rows",
+                    (double) elapsed / ROWS));
+
+            double nanos = Bench.measure("sumCharge of one project, " + ROWS + " rows", new Bench.Operation() {
+                public Object run() {
+                    return store.sumCharge(ColumnarRecordStore.StringColumn.ProjectName, "bsc-life-sciences",
+                            0, Long.MAX_VALUE);
+                }
+            });
+            System.out.println(String.format("%-50s %14.2f ns/row", "", nanos / ROWS));
+
+            nanos = Bench.measure("sumSize of network, " + ROWS + " rows", new Bench.Operation() {
+                public Object run() {
+                    return store.sumSize(UsageAggregator.Resource.Network, ColumnarRecordStore.StringColumn.ProjectName,
+                            null, 0, Long.MAX_VALUE);
+                }
+            });
+            System.out.println(String.format("%-50s %14.2f ns/row", "", nanos / ROWS));
+        }
+        finally {
+            store.close();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files)
+                    file.delete();
+            }
+            directory.delete();
+        }
+    }
+}
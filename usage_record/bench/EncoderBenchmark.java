@@ -0,0 +1,41 @@
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordEncoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compares getting the UTF-8 bytes of a typical record from toXml(), on a new snapshot so the
+ * string is not the one kept by the record, with encoding it into a reused ByteBuffer with a
+ * UsageRecordEncoder, which should allocate nothing.
+ */
+public final class EncoderBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final UsageRecord ur = Records.typical();
+
+        Bench.measure("toXml().getBytes(UTF-8)", new Bench.Operation() {
+            public Object run() throws Exception {
+                return ur.snapshot().toXml().getBytes("UTF-8");
+            }
+        });
+
+        final UsageRecordEncoder encoder = new UsageRecordEncoder();
+        final ByteBuffer heap = ByteBuffer.allocate(8192);
+        Bench.measure("UsageRecordEncoder, heap buffer", new Bench.Operation() {
+            public Object run() {
+                heap.clear();
+                encoder.encode(ur, heap);
+                return heap;
+            }
+        });
+
+        final ByteBuffer direct = ByteBuffer.allocateDirect(8192);
+        Bench.measure("UsageRecordEncoder, direct buffer", new Bench.Operation() {
+            public Object run() {
+                direct.clear();
+                encoder.encode(ur, direct);
+                return direct;
+            }
+        });
+    }
+}
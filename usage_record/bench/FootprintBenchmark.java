@@ -0,0 +1,40 @@
+import es.bsc.ur4j.UsageRecord;
+
+/**
+ * Measures the heap retained per UsageRecord by keeping a large batch of typical records
+ * alive and comparing the used heap before and after they were created.
+ */
+public final class FootprintBenchmark {
+
+    private static final int RECORDS = 200000;
+
+    public static void main(String[] args) throws Exception {
+        UsageRecord[] batch = new UsageRecord[RECORDS];
+        long before = usedHeap();
+
+        for (int i = 0; i < RECORDS; i++)
+            batch[i] = Records.typical();
+
+        long after = usedHeap();
+        System.out.println(String.format("%-50s %14.1f bytes/record", "UsageRecord retained heap",
+                (double) (after - before) / RECORDS));
+
+        // keep the batch reachable until the heap has been measured
+        if (batch[RECORDS - 1].getRecordId() == null)
+            System.out.println();
+    }
+
+    /**
+     * Helper method: get the heap in use after a full collection
+     *
+     * @return the used heap in bytes
+     */
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
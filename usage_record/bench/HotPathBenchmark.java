@@ -0,0 +1,102 @@
+import es.bsc.ur4j.RandomGUID;
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordPool;
+
+/**
+ * The suite of the ur4j hot paths: building a typical record, serialising it with toXml()
+ * and toPrettyXml(), validating it, and generating record identifiers, each run in one
+ * thread and in several threads at once. These are the numbers to compare against a
+ * baseline when changing the library.
+ * <P>
+ * A record keeps its XML and its validation outcome until it changes, so toXml() and
+ * validate() are measured on a new snapshot of a record that has not been serialised or
+ * validated, which costs them the whole encoding, and then again on a record that has.
+ */
+public final class HotPathBenchmark {
+
+    private static final int THREADS = 8;
+
+    public static void main(String[] args) throws Exception {
+        final UsageRecord ur = Records.typical();
+        final UsageRecordPool pool = new UsageRecordPool();
+        final UsageRecord encoded = Records.typical().snapshot();
+        encoded.toXml();
+        encoded.validate();
+
+        run("UsageRecord construction", new Bench.Operation() {
+            public Object run() {
+                return Records.typical();
+            }
+        });
+
+        run("UsageRecord from a pool", new Bench.Operation() {
+            public Object run() {
+                UsageRecord pooled = pool.acquire();
+                Records.fill(pooled);
+                String recordId = pooled.getRecordId();
+                pool.release(pooled);
+                return recordId;
+            }
+        });
+
+        run("toXml()", new Bench.Operation() {
+            public Object run() {
+                return ur.snapshot().toXml();
+            }
+        });
+
+        run("toXml(), kept", new Bench.Operation() {
+            public Object run() {
+                return encoded.toXml();
+            }
+        });
+
+        run("toPrettyXml()", new Bench.Operation() {
+            public Object run() {
+                return ur.toPrettyXml();
+            }
+        });
+
+        run("validate()", new Bench.Operation() {
+            public Object run() {
+                return ur.snapshot().validate();
+            }
+        });
+
+        run("validate(), kept", new Bench.Operation() {
+            public Object run() {
+                return encoded.validate();
+            }
+        });
+
+        run("RandomGUID MD5, non-secure", new Bench.Operation() {
+            public Object run() {
+                return new RandomGUID(false).toString();
+            }
+        });
+
+        run("RandomGUID MD5, secure", new Bench.Operation() {
+            public Object run() {
+                return new RandomGUID(true).toString();
+            }
+        });
+
+        run("RandomGUID RANDOM", new Bench.Operation() {
+            public Object run() {
+                return new RandomGUID(RandomGUID.Mode.RANDOM).toString();
+            }
+        });
+    }
+
+    /**
+     * Helper method: measure an operation in one thread and then in several
+     *
+     * @param name the name to report the results under
+     * @param operation the operation to measure, which must be thread safe
+     * @throws Exception if the operation fails
+     */
+    private static void run(String name, Bench.Operation operation) throws Exception {
+        Bench.measure(name, operation);
+        Bench.measure(name, THREADS, operation);
+    }
+}
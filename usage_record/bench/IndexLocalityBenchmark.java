@@ -0,0 +1,74 @@
+import es.bsc.ur4j.RandomGUID;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Simulates inserting record identifiers into a sorted on-disk index (the leaf pages of a
+ * B-tree) and counts how often an insert needs a page that isn't in a small page cache,
+ * i.e. how often a real index would have to read a page from disk.
+ */
+public final class IndexLocalityBenchmark {
+
+    private static final int INSERTS = 1000000;
+    private static final int KEYS_PER_PAGE = 128;
+    private static final int CACHED_PAGES = 256;
+
+    public static void main(String[] args) {
+        run(RandomGUID.Mode.RANDOM);
+        run(RandomGUID.Mode.TIME_ORDERED);
+    }
+
+    /**
+     * Helper method: insert identifiers of one mode into an empty index and report the misses
+     *
+     * @param mode the mode to generate identifiers with
+     */
+    private static void run(RandomGUID.Mode mode) {
+        // leaf pages by their first key, and a least recently used cache of pages
+        TreeMap<String, Page> pages = new TreeMap<String, Page>();
+        Map<Page, Boolean> cache = new LinkedHashMap<Page, Boolean>(CACHED_PAGES, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Page, Boolean> eldest) {
+                return size() > CACHED_PAGES;
+            }
+        };
+
+        Page first = new Page();
+        pages.put("", first);
+        cache.put(first, Boolean.TRUE);
+
+        long misses = 0;
+        long start = System.nanoTime();
+
+        for (int i = 0; i < INSERTS; i++) {
+            String key = new RandomGUID(mode).toString();
+            Page page = pages.floorEntry(key).getValue();
+
+            if (cache.put(page, Boolean.TRUE) == null)
+                misses++;
+
+            page.keys.add(key);
+            if (page.keys.size() > KEYS_PER_PAGE) {
+                // split the page, moving the upper half into a new page
+                Page upper = new Page();
+                while (upper.keys.size() < KEYS_PER_PAGE / 2)
+                    upper.keys.add(page.keys.pollLast());
+                pages.put(upper.keys.first(), upper);
+                cache.put(upper, Boolean.TRUE);
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-50s %14.1f %% of inserts miss the page cache, %d pages, %.0f ns/insert",
+                "Index locality, " + mode, 100.0 * misses / INSERTS, pages.size(), (double) elapsed / INSERTS));
+    }
+
+    /**
+     * A leaf page of the index. Pages are compared by identity so they can be cached.
+     */
+    private static final class Page {
+        private final TreeSet<String> keys = new TreeSet<String>();
+    }
+}
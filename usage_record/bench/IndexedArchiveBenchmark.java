@@ -0,0 +1,83 @@
+import es.bsc.ur4j.IndexedArchive;
+import es.bsc.ur4j.IndexedArchiveWriter;
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordsWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Measures writing typical records to an IndexedArchiveWriter against a plain
+ * UsageRecordsWriter on the same buffered file, and looking records up in the archive by
+ * recordId and by job id, which should not depend on the size of the archive.
+ */
+public final class IndexedArchiveBenchmark {
+
+    private static final int RECORDS = 200000;
+
+    public static void main(String[] args) throws Exception {
+        final UsageRecord[] records = new UsageRecord[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            records[i] = Records.typical();
+            records[i].setJobId("global " + i, "local " + i, null);
+        }
+
+        final File file = File.createTempFile("archive", ".xml");
+        try {
+            // The second round of each is reported, after the JIT has compiled both writers
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                UsageRecordsWriter plain = new UsageRecordsWriter(
+                        new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+                for (UsageRecord record : records)
+                    plain.write(record);
+                plain.close();
+                long plainElapsed = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                IndexedArchiveWriter indexed = new IndexedArchiveWriter(file);
+                for (UsageRecord record : records)
+                    indexed.write(record);
+                indexed.close();
+                long indexedElapsed = System.nanoTime() - start;
+
+                if (round == 1) {
+                    System.out.println(String.format("%-50s %14.1f ns/record",
+                            "UsageRecordsWriter, " + RECORDS + " records", (double) plainElapsed / RECORDS));
+                    System.out.println(String.format("%-50s %14.1f ns/record",
+                            "IndexedArchiveWriter, " + RECORDS + " records", (double) indexedElapsed / RECORDS));
+                }
+            }
+
+            final IndexedArchive archive = new IndexedArchive(file);
+            try {
+                Bench.measure("IndexedArchive.get", new Bench.Operation() {
+                    private int i;
+
+                    public Object run() throws Exception {
+                        i = (i + 7919) % RECORDS;
+                        return archive.get(records[i].getRecordId());
+                    }
+                });
+                Bench.measure("IndexedArchive.findByJobId", new Bench.Operation() {
+                    private int i;
+
+                    public Object run() throws Exception {
+                        i = (i + 7919) % RECORDS;
+                        return archive.findByJobId("local " + i);
+                    }
+                });
+            }
+            finally {
+                archive.close();
+            }
+        }
+        finally {
+            file.delete();
+            new File(file.getPath() + ".rid").delete();
+            new File(file.getPath() + ".jid").delete();
+            new File(file.getPath() + ".uid").delete();
+        }
+    }
+}
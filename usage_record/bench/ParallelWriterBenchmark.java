@@ -0,0 +1,66 @@
+import es.bsc.ur4j.ParallelRecordsWriter;
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordsWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares writing a batch of typical records, plain and gzip compressed, with a
+ * UsageRecordsWriter on one thread and with a ParallelRecordsWriter on the common
+ * ForkJoinPool. The output is thrown away, so only encoding and compressing are measured.
+ */
+public final class ParallelWriterBenchmark {
+
+    private static final int BATCH = 10000;
+
+    public static void main(String[] args) throws Exception {
+        final UsageRecord[] records = new UsageRecord[BATCH];
+        for (int i = 0; i < BATCH; i++)
+            records[i] = Records.typical().snapshot();
+
+        for (final boolean gzip : new boolean[] { false, true }) {
+            String suffix = (gzip ? ", gzip, " : ", ") + BATCH + " records";
+
+            Bench.measure("UsageRecordsWriter" + suffix, new Bench.Operation() {
+                public Object run() throws Exception {
+                    Discard discard = new Discard();
+                    UsageRecordsWriter writer = new UsageRecordsWriter(gzip
+                            ? new BufferedOutputStream(new GZIPOutputStream(discard), 64 * 1024) : discard);
+                    for (UsageRecord record : records)
+                        writer.write(record);
+                    writer.close();
+                    return discard.count;
+                }
+            });
+
+            Bench.measure("ParallelRecordsWriter" + suffix, new Bench.Operation() {
+                public Object run() throws Exception {
+                    Discard discard = new Discard();
+                    ParallelRecordsWriter writer = new ParallelRecordsWriter(discard, gzip);
+                    for (UsageRecord record : records)
+                        writer.write(record);
+                    writer.close();
+                    return discard.count;
+                }
+            });
+        }
+    }
+
+    /**
+     * An output stream that counts the bytes written to it and drops them
+     */
+    private static final class Discard extends OutputStream {
+
+        long count;
+
+        public void write(int b) {
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
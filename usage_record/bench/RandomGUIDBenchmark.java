@@ -0,0 +1,101 @@
+import es.bsc.ur4j.RandomGUID;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures the cost of generating a record identifier with each RandomGUID mode, in bulk and
+ * from several threads at once, and of looking one up in a map by its string and by its
+ * binary form
+ */
+public final class RandomGUIDBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Bench.measure("RandomGUID MD5, non-secure", new Bench.Operation() {
+            public Object run() {
+                return new RandomGUID(false).toString();
+            }
+        });
+
+        Bench.measure("RandomGUID MD5, secure", new Bench.Operation() {
+            public Object run() {
+                return new RandomGUID(true).toString();
+            }
+        });
+
+        Bench.measure("RandomGUID RANDOM", new Bench.Operation() {
+            public Object run() {
+                return new RandomGUID(RandomGUID.Mode.RANDOM).toString();
+            }
+        });
+
+        Bench.measure("RandomGUID TIME_ORDERED", new Bench.Operation() {
+            public Object run() {
+                return new RandomGUID(RandomGUID.Mode.TIME_ORDERED).toString();
+            }
+        });
+
+        // The MD5 modes from 1, 8 and 32 threads, as in the collectors
+        int[] threads = { 1, 8, 32 };
+        for (int n : threads) {
+            Bench.measure("RandomGUID MD5, non-secure", n, new Bench.Operation() {
+                public Object run() {
+                    return new RandomGUID(false).toString();
+                }
+            });
+            Bench.measure("RandomGUID MD5, secure", n, new Bench.Operation() {
+                public Object run() {
+                    return new RandomGUID(true).toString();
+                }
+            });
+        }
+
+        final long[] ids = new long[2 * 1000];
+        Bench.measure("RandomGUID.generate RANDOM, 1000 ids", new Bench.Operation() {
+            public Object run() {
+                RandomGUID.generate(RandomGUID.Mode.RANDOM, ids, 0, 1000);
+                return ids;
+            }
+        });
+
+        Bench.measure("RandomGUID.generate TIME_ORDERED, 1000 ids", new Bench.Operation() {
+            public Object run() {
+                RandomGUID.generate(RandomGUID.Mode.TIME_ORDERED, ids, 0, 1000);
+                return ids;
+            }
+        });
+
+        // Look up each of 1000 ids in a map keyed on the string and in one keyed on the GUID.
+        // The strings are copied for each lookup, as a recordId read back from a document is a
+        // new string whose hash code hasn't been worked out yet.
+        final String[] strings = new String[1000];
+        final RandomGUID[] guids = new RandomGUID[1000];
+        final Map<String, Integer> byString = new HashMap<String, Integer>();
+        final Map<RandomGUID, Integer> byGuid = new HashMap<RandomGUID, Integer>();
+        RandomGUID.generate(RandomGUID.Mode.RANDOM, ids, 0, 1000);
+        for (int i = 0; i < 1000; i++) {
+            guids[i] = new RandomGUID(ids[2 * i], ids[2 * i + 1]);
+            strings[i] = guids[i].toString();
+            byString.put(guids[i].toString(), i);
+            byGuid.put(new RandomGUID(ids[2 * i], ids[2 * i + 1]), i);
+        }
+
+        Bench.measure("HashMap<String> lookup, 1000 ids", new Bench.Operation() {
+            public Object run() {
+                int sum = 0;
+                for (String s : strings)
+                    sum += byString.get(new String(s));
+                return sum;
+            }
+        });
+
+        Bench.measure("HashMap<RandomGUID> lookup, 1000 ids", new Bench.Operation() {
+            public Object run() {
+                int sum = 0;
+                for (RandomGUID guid : guids)
+                    sum += byGuid.get(guid);
+                return sum;
+            }
+        });
+    }
+}
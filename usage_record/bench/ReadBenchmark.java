@@ -0,0 +1,36 @@
+import es.bsc.ur4j.UsageRecordReader;
+import es.bsc.ur4j.UsageRecordsWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Measures how fast a UsageRecords document can be read back with UsageRecordReader
+ */
+public final class ReadBenchmark {
+
+    private static final int RECORDS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        UsageRecordsWriter writer = new UsageRecordsWriter(bytes);
+        for (int i = 0; i < RECORDS; i++)
+            writer.write(Records.typical());
+        writer.close();
+        final byte[] document = bytes.toByteArray();
+
+        double nanos = Bench.measure("UsageRecordReader, " + RECORDS + " records", new Bench.Operation() {
+            public Object run() throws Exception {
+                UsageRecordReader reader = new UsageRecordReader(new ByteArrayInputStream(document));
+                Object last = null;
+                while (reader.hasNext())
+                    last = reader.next();
+                reader.close();
+                return last;
+            }
+        });
+
+        System.out.println(String.format("%-50s %14.1f ns/record %8.1f MB/s", "",
+                nanos / RECORDS, document.length / (nanos / 1000.0)));
+    }
+}
@@ -0,0 +1,40 @@
+import es.bsc.ur4j.UsageRecord;
+
+/**
+ * Usage records shared by the benchmarks
+ */
+public final class Records {
+
+    private Records() {
+    }
+
+    /**
+     * Create a record with the mix of elements a batch system typically reports
+     * at the end of a job
+     *
+     * @return a complete, valid usage record
+     */
+    public static UsageRecord typical() {
+        UsageRecord ur = new UsageRecord();
+        fill(ur);
+        return ur;
+    }
+
+    /**
+     * Fill a blank record with the elements of a typical record
+     *
+     * @param ur a new or reset record
+     */
+    public static void fill(UsageRecord ur) {
+        ur.setRecordId(true);
+        ur.setJobId("https://grid.example.org/jobs/4711", "4711.batch01", "31337");
+        ur.addUserId("user042", "/C=ES/O=BSC/CN=A Grid User");
+        ur.setJobName("namd-run-17", null);
+        ur.setCharge(12.75f, null, "hours", null);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        ur.addProjectName("bsc-life-sciences", null);
+        ur.addDisk(2048, null, UsageRecord.DiskType.scratch, UsageRecord.Metric.max);
+        ur.addNetwork(512, UsageRecord.Unit.MB, UsageRecord.Metric.total, null);
+        ur.addMemory(4096, UsageRecord.Unit.MB, UsageRecord.Metric.max, UsageRecord.MemoryType.physical, null);
+    }
+}
@@ -0,0 +1,69 @@
+import es.bsc.ur4j.RecordSpool;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures appending typical records to a RecordSpool: in one thread syncing every 1000
+ * records, and in several threads each syncing after every record so that the syncs are
+ * committed in groups. The spool is checkpointed as it goes so the segments are recycled
+ * rather than filling the disk. The records per second are only as good as the disk the
+ * temporary directory is on.
+ */
+public final class SpoolBenchmark {
+
+    private static final int THREADS = 8;
+    private static final int SYNC_EVERY = 1000;
+    private static final int CHECKPOINT_EVERY = 100000;
+
+    public static void main(String[] args) throws Exception {
+        final byte[] record = Records.typical().toXml().getBytes(StandardCharsets.UTF_8);
+        File directory = File.createTempFile("spool", "");
+        directory.delete();
+
+        final RecordSpool spool = new RecordSpool(directory);
+        final AtomicLong appended = new AtomicLong();
+        try {
+            report(Bench.measure("RecordSpool append, sync every " + SYNC_EVERY, new Bench.Operation() {
+                public Object run() throws Exception {
+                    long position = spool.append(record);
+                    long count = appended.incrementAndGet();
+                    if (count % SYNC_EVERY == 0)
+                        spool.sync();
+                    if (count % CHECKPOINT_EVERY == 0)
+                        spool.checkpoint(position);
+                    return null;
+                }
+            }));
+
+            report(Bench.measure("RecordSpool append and sync", THREADS, new Bench.Operation() {
+                public Object run() throws Exception {
+                    long position = spool.append(record);
+                    spool.sync();
+                    if (appended.incrementAndGet() % CHECKPOINT_EVERY == 0)
+                        spool.checkpoint(position);
+                    return null;
+                }
+            }));
+        }
+        finally {
+            spool.close();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files)
+                    file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * Helper method: print the records per second a time per record comes to
+     *
+     * @param nanos the mean time per record in nanoseconds
+     */
+    private static void report(double nanos) {
+        System.out.println(String.format("%-50s %14.0f records/s", "", 1e9 / nanos));
+    }
+}
@@ -0,0 +1,25 @@
+import es.bsc.ur4j.UsageRecord;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the time from the start of the JVM to the first UsageRecord.toXml(), which is
+ * what a short-lived accounting hook started for each job pays. Run it in a fresh JVM.
+ */
+public final class StartupBenchmark {
+
+    public static void main(String[] args) {
+        long start = System.currentTimeMillis();
+
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(true);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        String xml = ur.toXml();
+
+        long end = System.currentTimeMillis();
+        long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+        System.out.println(String.format("%-50s %14d ms (%d ms in main, %d chars)",
+                "JVM start to first toXml()", end - jvmStart, end - start, xml.length()));
+    }
+}
@@ -0,0 +1,63 @@
+import es.bsc.ur4j.BatchValidator;
+import es.bsc.ur4j.UsageRecord;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.SchemaFactory;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares validating a record with the shared, pre-compiled schema against compiling
+ * the schema for every record, which is what validate() used to cost per call, and validating
+ * a batch of records one by one against a BatchValidator on the common ForkJoinPool. Records
+ * keep the outcome of validate(), so it is called on new snapshots of records that have not
+ * been validated.
+ */
+public final class ValidateBenchmark {
+
+    private static final int BATCH = 1000;
+
+    public static void main(String[] args) throws Exception {
+        final UsageRecord ur = Records.typical();
+        final URL schema = UsageRecord.class.getResource("urwg-schema.09.02.xsd");
+
+        Bench.measure("validate() with compiled schema", new Bench.Operation() {
+            public Object run() {
+                return ur.snapshot().validate();
+            }
+        });
+
+        Bench.measure("validate with schema compiled per record", new Bench.Operation() {
+            public Object run() throws Exception {
+                SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                factory.newSchema(schema).newValidator().validate(new StreamSource(new StringReader(ur.toXml())));
+                return factory;
+            }
+        });
+
+        final List<UsageRecord> batch = new ArrayList<UsageRecord>(BATCH);
+        for (int i = 0; i < BATCH; i++)
+            batch.add(Records.typical());
+
+        Bench.measure("validate() of " + BATCH + " records in turn", new Bench.Operation() {
+            public Object run() {
+                int valid = 0;
+                for (UsageRecord record : batch) {
+                    if (record.snapshot().validate())
+                        valid++;
+                }
+                return valid;
+            }
+        });
+
+        final BatchValidator validator = new BatchValidator();
+        Bench.measure("BatchValidator of " + BATCH + " records", new Bench.Operation() {
+            public Object run() {
+                return validator.validate(batch);
+            }
+        });
+    }
+}
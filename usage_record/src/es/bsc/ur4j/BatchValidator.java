@@ -0,0 +1,538 @@
+package es.bsc.ur4j;
+
+import org.xml.sax.SAXException;
+
+import javax.xml.stream.*;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Validator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Validates large batches of usage records against the UR.098 schema on a ForkJoinPool, so
+ * that re-validating an archive uses every core instead of one.
+ * <P>
+ * A batch is split in halves until the pieces are CHUNK_SIZE records or fewer, and each piece
+ * is validated by one task with one validator taken from the pool of validators of the
+ * compiled schema. A UsageRecords document is read on the calling thread and handed to the
+ * pool CHUNK_SIZE records at a time, with a bounded number of chunks waiting, so a file of any
+ * size is validated with constant memory while it is being parsed.
+ * <P>
+ * The records of a document are validated as they were written: each record element is copied
+ * out of the document as it is, with the namespaces declared on the root, and the copy is
+ * validated. A record that is valid is then read with a UsageRecordReader, so the records
+ * reported are both those the schema rejects, including elements a UsageRecordReader would
+ * skip, and those ur4j cannot read, such as a Status that is not one of UsageRecord.Status.
+ * <P>
+ * Only the records that are not valid are reported, each with its position in the batch, in
+ * the order of the batch. Unlike UsageRecord.validate() nothing is logged.
+ * <P>
+ * This class is thread safe.
+ */
+public final class BatchValidator {
+
+    public static final int CHUNK_SIZE = 64;
+
+    private static final XMLInputFactory inputFactory = createInputFactory();
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Create a validator that runs on the common ForkJoinPool
+     */
+    public BatchValidator() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a validator that runs on a pool
+     *
+     * @param pool the pool to validate on
+     */
+    public BatchValidator(ForkJoinPool pool) {
+        if (pool == null)
+            throw new IllegalArgumentException("The pool must not be null");
+        this.pool = pool;
+    }
+
+    /**
+     * Validate a collection of records
+     *
+     * @param records the records to validate
+     * @return the reports of the records that are not valid, in the order of the collection
+     */
+    public List<Report> validate(Collection<UsageRecord> records) {
+        Entry[] batch = new Entry[records.size()];
+        int i = 0;
+        for (UsageRecord record : records)
+            batch[i++] = new RecordEntry(record);
+        return pool.invoke(new ValidateTask(batch, 0, batch.length, 0));
+    }
+
+    /**
+     * Validate the records of a UsageRecords document (or of a single UsageRecord document).
+     * Elements of a UsageRecords document that are not records are skipped. The stream is
+     * read to the end but is not closed.
+     *
+     * @param stream the document to validate
+     * @return the reports of the records that are not valid, in the order of the document
+     * @throws UsageRecordException if the stream is not a well formed document, or its root
+     * is not a usage record or UsageRecords
+     */
+    public List<Report> validate(InputStream stream) throws UsageRecordException {
+        int maxWaiting = 2 * pool.getParallelism();
+        ArrayDeque<ForkJoinTask<List<Report>>> waiting = new ArrayDeque<ForkJoinTask<List<Report>>>();
+        List<Report> reports = new ArrayList<Report>();
+        long index = 0;
+
+        try {
+            XMLStreamReader in = inputFactory.createXMLStreamReader(stream);
+            in.nextTag();
+            boolean singleRecord = isRecord(in.getLocalName());
+            if (!singleRecord && !in.getLocalName().equals("UsageRecords"))
+                throw new UsageRecordException("Not a usage record document: " + in.getLocalName());
+            String[] namespaces = singleRecord ? new String[0] : namespaces(in);
+
+            boolean more = true;
+            while (more) {
+                Entry[] chunk = new Entry[CHUNK_SIZE];
+                int size = 0;
+                while (size < CHUNK_SIZE && more) {
+                    if (singleRecord) {
+                        chunk[size++] = copyRecord(in, namespaces);
+                        more = false;
+                    }
+                    else if (nextRecord(in)) {
+                        chunk[size++] = copyRecord(in, namespaces);
+                    }
+                    else {
+                        more = false;
+                    }
+                }
+                if (size == 0)
+                    break;
+
+                waiting.add(pool.submit(new ValidateTask(chunk, 0, size, index)));
+                index += size;
+                if (waiting.size() > maxWaiting)
+                    reports.addAll(waiting.remove().join());
+            }
+            while (!waiting.isEmpty())
+                reports.addAll(waiting.remove().join());
+        }
+        catch (XMLStreamException e) {
+            throw new UsageRecordException(e);
+        }
+        finally {
+            // Only left if the document could not be read
+            for (ForkJoinTask<List<Report>> task : waiting)
+                task.cancel(false);
+        }
+        return reports;
+    }
+
+    /**
+     * Helper method: create the factory for the stream readers. DTDs are refused so no
+     * external entities are fetched.
+     *
+     * @return the factory
+     */
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory f = XMLInputFactory.newInstance();
+        f.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        return f;
+    }
+
+    /**
+     * Helper method: test if an element name is one of the usage record elements
+     *
+     * @param name the local name of the element
+     * @return true if the element holds a usage record
+     */
+    private static boolean isRecord(String name) {
+        return name.equals("UsageRecord") || name.equals("JobUsageRecord") || name.equals("Usage");
+    }
+
+    /**
+     * Helper method: get the namespaces declared on the current element
+     *
+     * @param in the reader, on a start element
+     * @return the prefixes and URIs of the namespaces, as (prefix, URI) pairs
+     */
+    private static String[] namespaces(XMLStreamReader in) {
+        String[] namespaces = new String[2 * in.getNamespaceCount()];
+        for (int i = 0; i < in.getNamespaceCount(); i++) {
+            namespaces[2 * i] = in.getNamespacePrefix(i);
+            namespaces[2 * i + 1] = in.getNamespaceURI(i);
+        }
+        return namespaces;
+    }
+
+    /**
+     * Helper method: move to the start of the next record of a UsageRecords document,
+     * skipping any other elements
+     *
+     * @param in the reader, inside the UsageRecords element
+     * @return true if the reader is on the start of a record, false at the end of the document
+     * @throws XMLStreamException if the document is not well formed
+     */
+    private static boolean nextRecord(XMLStreamReader in) throws XMLStreamException {
+        while (in.hasNext()) {
+            int event = in.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (isRecord(in.getLocalName()))
+                    return true;
+                skipElement(in);
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT) {
+                return false; // the end of UsageRecords
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Helper method: skip the element the reader is on, with everything inside it
+     *
+     * @param in the reader, on a start element
+     * @throws XMLStreamException if the document is not well formed
+     */
+    private static void skipElement(XMLStreamReader in) throws XMLStreamException {
+        for (int depth = 1; depth > 0; ) {
+            int event = in.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+
+    /**
+     * Helper method: copy the record element the reader is on into a document of its own.
+     * The namespaces declared on the root of the document are declared again on the copy, so
+     * it means the same as it does in the document.
+     *
+     * @param in the reader, on the start of the record; it is left on its end
+     * @param namespaces the namespaces declared on the root of the document, as returned by
+     * namespaces(), or none if the record is the root
+     * @return the copied record
+     * @throws XMLStreamException if the document is not well formed
+     */
+    private static Entry copyRecord(XMLStreamReader in, String[] namespaces) throws XMLStreamException {
+        StringWriter copy = new StringWriter(2048);
+        XMLStreamWriter out = outputFactory.createXMLStreamWriter(copy);
+        String recordId = null;
+
+        for (int depth = 0; ; ) {
+            switch (in.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    out.writeStartElement(prefix(in.getPrefix()), in.getLocalName(), uri(in.getNamespaceURI()));
+                    if (depth++ == 0) {
+                        for (int i = 0; i < namespaces.length; i += 2) {
+                            if (!declares(in, namespaces[i]))
+                                writeNamespace(out, namespaces[i], namespaces[i + 1]);
+                        }
+                    }
+                    for (int i = 0; i < in.getNamespaceCount(); i++)
+                        writeNamespace(out, in.getNamespacePrefix(i), in.getNamespaceURI(i));
+                    for (int i = 0; i < in.getAttributeCount(); i++) {
+                        out.writeAttribute(prefix(in.getAttributePrefix(i)), uri(in.getAttributeNamespace(i)),
+                                in.getAttributeLocalName(i), in.getAttributeValue(i));
+                        if (depth == 2 && in.getLocalName().equals("RecordIdentity")
+                                && in.getAttributeLocalName(i).equals("recordId"))
+                            recordId = in.getAttributeValue(i);
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    out.writeEndElement();
+                    if (--depth == 0) {
+                        out.close();
+                        return new DocumentEntry(copy.toString(), recordId);
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    out.writeCharacters(in.getTextCharacters(), in.getTextStart(), in.getTextLength());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    out.writeComment(in.getText());
+                    break;
+                default:
+                    break;
+            }
+            in.next();
+        }
+    }
+
+    /**
+     * Helper method: test if the current element declares a prefix itself
+     *
+     * @param in the reader, on a start element
+     * @param prefix the prefix (null or empty for the default namespace)
+     * @return true if the element declares the prefix
+     */
+    private static boolean declares(XMLStreamReader in, String prefix) {
+        for (int i = 0; i < in.getNamespaceCount(); i++) {
+            if (prefix(in.getNamespacePrefix(i)).equals(prefix(prefix)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Helper method: declare a namespace on the element being written
+     *
+     * @param out the writer, on a start element
+     * @param prefix the prefix (null or empty for the default namespace)
+     * @param uri the URI of the namespace
+     * @throws XMLStreamException if the namespace cannot be written
+     */
+    private static void writeNamespace(XMLStreamWriter out, String prefix, String uri) throws XMLStreamException {
+        if (prefix == null || prefix.length() == 0)
+            out.writeDefaultNamespace(uri(uri));
+        else
+            out.writeNamespace(prefix, uri(uri));
+    }
+
+    /**
+     * Helper method: a prefix as the writer takes it
+     *
+     * @param prefix the prefix from the reader (may be null)
+     * @return the prefix, or an empty string for none
+     */
+    private static String prefix(String prefix) {
+        return prefix == null ? "" : prefix;
+    }
+
+    /**
+     * Helper method: a namespace URI as the writer takes it
+     *
+     * @param uri the URI from the reader (may be null)
+     * @return the URI, or an empty string for no namespace
+     */
+    private static String uri(String uri) {
+        return uri == null ? "" : uri;
+    }
+
+    /**
+     * The report of a record that is not valid
+     */
+    public static final class Report {
+
+        private final long index;
+        private final String recordId;
+        private final String message;
+
+        /**
+         * Helper constructor: create a report
+         *
+         * @param index the position of the record in the batch
+         * @param recordId the recordId of the record
+         * @param message why the record is not valid
+         */
+        private Report(long index, String recordId, String message) {
+            this.index = index;
+            this.recordId = recordId;
+            this.message = message;
+        }
+
+        /**
+         * Get the position of the record in the batch
+         *
+         * @return the position, counting from 0
+         */
+        public long getIndex() {
+            return index;
+        }
+
+        /**
+         * Get the recordId of the record
+         *
+         * @return the recordId, or null if it is not set
+         */
+        public String getRecordId() {
+            return recordId;
+        }
+
+        /**
+         * Get why the record is not valid
+         *
+         * @return the message of the validator
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        public String toString() {
+            return index + " " + recordId + ": " + message;
+        }
+    }
+
+    /**
+     * A record of a batch to validate
+     */
+    private static abstract class Entry {
+
+        /**
+         * Get the recordId of the record
+         *
+         * @return the recordId, or null if it is not set
+         */
+        abstract String getRecordId();
+
+        /**
+         * Validate the record
+         *
+         * @param validator the validator to use
+         * @throws SAXException if the record is not valid
+         * @throws IOException if the record cannot be read
+         * @throws UsageRecordException if the record cannot be validated
+         */
+        abstract void validate(Validator validator) throws SAXException, IOException, UsageRecordException;
+    }
+
+    /**
+     * A UsageRecord to validate
+     */
+    private static final class RecordEntry extends Entry {
+
+        private final UsageRecord record;
+
+        /**
+         * Create an entry
+         *
+         * @param record the record
+         */
+        RecordEntry(UsageRecord record) {
+            this.record = record;
+        }
+
+        String getRecordId() {
+            return record.getRecordId();
+        }
+
+        void validate(Validator validator) throws SAXException, IOException, UsageRecordException {
+            record.validate(validator);
+        }
+    }
+
+    /**
+     * A record copied out of a document, to validate as it was written
+     */
+    private static final class DocumentEntry extends Entry {
+
+        private final String document;
+        private final String recordId;
+
+        /**
+         * Create an entry
+         *
+         * @param document the record, as a document of its own
+         * @param recordId the recordId of the record, or null if it has none
+         */
+        DocumentEntry(String document, String recordId) {
+            this.document = document;
+            this.recordId = recordId;
+        }
+
+        String getRecordId() {
+            return recordId;
+        }
+
+        void validate(Validator validator) throws SAXException, IOException, UsageRecordException {
+            validator.validate(new StreamSource(new StringReader(document)));
+            new UsageRecordReader(new StringReader(document)).next();
+        }
+    }
+
+    /**
+     * Validates a range of a batch, splitting it while it is larger than a chunk
+     */
+    private static final class ValidateTask extends RecursiveTask<List<Report>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Entry[] entries;
+        private final int from;
+        private final int to;
+        private final long firstIndex;
+
+        /**
+         * Create a task
+         *
+         * @param entries the records of the batch
+         * @param from the first record of the range
+         * @param to the record after the last of the range
+         * @param firstIndex the position in the whole batch of entries[0]
+         */
+        ValidateTask(Entry[] entries, int from, int to, long firstIndex) {
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.firstIndex = firstIndex;
+        }
+
+        protected List<Report> compute() {
+            if (to - from > CHUNK_SIZE) {
+                int middle = (from + to) >>> 1;
+                ValidateTask left = new ValidateTask(entries, from, middle, firstIndex);
+                left.fork();
+                List<Report> reports = new ValidateTask(entries, middle, to, firstIndex).compute();
+                List<Report> leftReports = left.join();
+                if (reports.isEmpty())
+                    return leftReports;
+                leftReports.addAll(reports);
+                return leftReports;
+            }
+
+            List<Report> reports = new ArrayList<Report>(0);
+            Validator validator = UsageRecordSchema.acquire();
+            try {
+                for (int i = from; i < to; i++) {
+                    String message = validate(entries[i], validator);
+                    if (message != null)
+                        reports.add(new Report(firstIndex + i, entries[i].getRecordId(), message));
+                }
+            }
+            finally {
+                UsageRecordSchema.release(validator);
+            }
+            return reports;
+        }
+
+        /**
+         * Helper method: validate a record
+         *
+         * @param entry the record
+         * @param validator the validator to use
+         * @return why the record is not valid, or null if it is valid
+         */
+        private static String validate(Entry entry, Validator validator) {
+            try {
+                entry.validate(validator);
+                return null;
+            }
+            catch (SAXException e) {
+                return e.getMessage();
+            }
+            catch (IOException e) {
+                return e.getMessage();
+            }
+            catch (UsageRecordException e) {
+                return e.getMessage();
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package es.bsc.ur4j;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A reader for a stream of usage records written by a BinaryRecordWriter. The records are
+ * read one at a time as next() is called, and the dictionary of repeated strings is built up
+ * as the stream is read, so the memory used does not grow with the number of records (only
+ * with the number of different strings, up to the dictionary size).
+ * <P>
+ * This class is not thread safe.
+ */
+public final class BinaryRecordReader implements Iterator<UsageRecord>, Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream stream;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    private String[] dictionary = new String[64];
+    private int dictionarySize;
+    private long recordCount;
+    private boolean finished;
+
+    /**
+     * Create a reader for the records in an input stream
+     *
+     * @param stream the stream to read the records from
+     * @throws UsageRecordException if the stream was not written by a BinaryRecordWriter
+     * @throws IOException if the stream cannot be read
+     */
+    public BinaryRecordReader(InputStream stream) throws IOException, UsageRecordException {
+        this.stream = stream;
+        for (byte b : BinaryRecordWriter.MAGIC) {
+            if (!fill(1) || buffer[position++] != b)
+                throw new UsageRecordException("Not a ur4j binary record stream");
+        }
+    }
+
+    /**
+     * Test if there is another record in the stream
+     *
+     * @return true if next() will return a record
+     * @throws UsageRecordException if the stream cannot be read
+     */
+    public boolean hasNext() throws UsageRecordException {
+        if (finished)
+            return false;
+
+        try {
+            if (fill(1))
+                return true;
+        }
+        catch (IOException e) {
+            throw new UsageRecordException(e);
+        }
+        finished = true;
+        return false;
+    }
+
+    /**
+     * Read the next record from the stream
+     *
+     * @return the next usage record
+     * @throws NoSuchElementException if there are no more records
+     * @throws UsageRecordException if the stream cannot be read or is truncated or corrupt
+     */
+    public UsageRecord next() throws UsageRecordException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        try {
+            UsageRecord record = UsageRecord.readFrom(this);
+            recordCount++;
+            return record;
+        }
+        catch (IOException e) {
+            throw new UsageRecordException(e);
+        }
+        catch (IndexOutOfBoundsException e) {
+            // An enum ordinal or dictionary reference that doesn't exist
+            throw new UsageRecordException("Corrupt ur4j binary record stream");
+        }
+    }
+
+    /**
+     * Records cannot be removed from the stream
+     *
+     * @throws UnsupportedOperationException always
+     */
+    public void remove() {
+        throw new UnsupportedOperationException("Records cannot be removed from the stream");
+    }
+
+    /**
+     * Get the number of records read so far
+     *
+     * @return the number of records returned by next()
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Close the reader and the underlying stream
+     *
+     * @throws IOException if the underlying stream cannot be closed
+     */
+    public void close() throws IOException {
+        finished = true;
+        stream.close();
+    }
+
+    /**
+     * Read a number written as a varint
+     *
+     * @return the number
+     * @throws IOException if the stream cannot be read or ends in the middle of the number
+     */
+    long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            require(1);
+            byte b = buffer[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new UsageRecordException("Corrupt ur4j binary record stream");
+    }
+
+    /**
+     * Read a number written as a varint that must fit in an int
+     *
+     * @return the number
+     * @throws IOException if the stream cannot be read or ends in the middle of the number
+     */
+    int readVarint32() throws IOException {
+        long value = readVarint();
+        if (value > Integer.MAX_VALUE)
+            throw new UsageRecordException("Corrupt ur4j binary record stream");
+        return (int) value;
+    }
+
+    /**
+     * Read an int written as four bytes
+     *
+     * @return the int
+     * @throws IOException if the stream cannot be read or ends in the middle of the int
+     */
+    int readInt() throws IOException {
+        require(4);
+        int value = ((buffer[position] & 0xFF) << 24) | ((buffer[position + 1] & 0xFF) << 16)
+                | ((buffer[position + 2] & 0xFF) << 8) | (buffer[position + 3] & 0xFF);
+        position += 4;
+        return value;
+    }
+
+    /**
+     * Read a long written as eight bytes
+     *
+     * @return the long
+     * @throws IOException if the stream cannot be read or ends in the middle of the long
+     */
+    long readLong() throws IOException {
+        long high = readInt();
+        return (high << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Read a string written by writeString() or writeLiteral()
+     *
+     * @return the string, or null if a null was written
+     * @throws IOException if the stream cannot be read or ends in the middle of the string
+     */
+    String readString() throws IOException {
+        int tag = readVarint32();
+        switch (tag) {
+            case BinaryRecordWriter.STRING_NULL:
+                return null;
+            case BinaryRecordWriter.STRING_LITERAL:
+                return readUtf8();
+            case BinaryRecordWriter.STRING_NEW:
+                String value = readUtf8();
+                if (dictionarySize == dictionary.length)
+                    dictionary = Arrays.copyOf(dictionary, dictionarySize * 2);
+                dictionary[dictionarySize++] = value;
+                return value;
+            default:
+                int index = tag - BinaryRecordWriter.STRING_REFERENCE;
+                if (index >= dictionarySize)
+                    throw new UsageRecordException("Corrupt ur4j binary record stream");
+                return dictionary[index];
+        }
+    }
+
+    /**
+     * Convert seconds since the epoch to a createTime of the form yyyy-MM-ddTHH:mm:ssZ
+     *
+     * @param seconds the seconds since the epoch (not negative)
+     * @return the createTime
+     */
+    static String formatTime(long seconds) {
+        long days = seconds / 86400;
+        int secondOfDay = (int) (seconds % 86400);
+
+        // The civil date of a day since the epoch, in the proleptic Gregorian calendar
+        long z = days + 719468;
+        long era = z / 146097;
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        char[] chars = new char[20];
+        putDigits(chars, 0, year, 4);
+        chars[4] = '-';
+        putDigits(chars, 5, month, 2);
+        chars[7] = '-';
+        putDigits(chars, 8, day, 2);
+        chars[10] = 'T';
+        putDigits(chars, 11, secondOfDay / 3600, 2);
+        chars[13] = ':';
+        putDigits(chars, 14, secondOfDay / 60 % 60, 2);
+        chars[16] = ':';
+        putDigits(chars, 17, secondOfDay % 60, 2);
+        chars[19] = 'Z';
+        return new String(chars);
+    }
+
+    /**
+     * Helper method: write the lowest decimal digits of a number into a char array
+     *
+     * @param chars the array to write the digits to
+     * @param offset the index of the first digit
+     * @param value the number
+     * @param digits the number of digits to write
+     */
+    private static void putDigits(char[] chars, int offset, long value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * Helper method: read a string written as its length in bytes and its UTF-8 encoding
+     *
+     * @return the string
+     * @throws IOException if the stream cannot be read or ends in the middle of the string
+     */
+    private String readUtf8() throws IOException {
+        int length = readVarint32();
+        if (length <= BUFFER_SIZE) {
+            require(length);
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        // Longer than the buffer: copy it out a buffer at a time
+        byte[] bytes = new byte[length];
+        int done = 0;
+        while (done < length) {
+            require(1);
+            int n = Math.min(limit - position, length - done);
+            System.arraycopy(buffer, position, bytes, done, n);
+            position += n;
+            done += n;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Helper method: make sure the buffer holds a number of bytes, failing if the stream ends
+     * before it does
+     *
+     * @param bytes the number of bytes needed, no more than the size of the buffer
+     * @throws IOException if the stream cannot be read
+     * @throws UsageRecordException if the stream ends first
+     */
+    private void require(int bytes) throws IOException {
+        if (!fill(bytes))
+            throw new UsageRecordException("The ur4j binary record stream is truncated");
+    }
+
+    /**
+     * Helper method: read from the stream until the buffer holds a number of bytes or the
+     * stream ends
+     *
+     * @param bytes the number of bytes needed, no more than the size of the buffer
+     * @return true if the buffer holds the bytes, false if the stream ended first
+     * @throws IOException if the stream cannot be read
+     */
+    private boolean fill(int bytes) throws IOException {
+        if (limit - position >= bytes)
+            return true;
+
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+        while (limit < bytes) {
+            int n = stream.read(buffer, limit, buffer.length - limit);
+            if (n < 0)
+                return false;
+            limit += n;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,307 @@
+package es.bsc.ur4j;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A writer for a stream of usage records in the compact ur4j binary encoding, for internal
+ * transport and archives. The records are read back with a BinaryRecordReader, and convert
+ * back to exactly the same GFD.098 XML as the records that were written.
+ * <P>
+ * The encoding leaves out everything the XML repeats in every record: there are no element
+ * names or namespace declarations, only the values in a fixed order. Numbers are written as
+ * varints (seven bits a byte), the Status, Unit, Metric, DiskType and MemoryType values as
+ * their ordinals, a recordId that is a GUID as its 16 bytes and a createTime as seconds since
+ * the epoch. Strings that repeat from record to record (user ids, project names, job names,
+ * resources, descriptions and so on) go into a dictionary kept for the stream: the first time
+ * a string is written it is written in full, and after that only its number in the
+ * dictionary is written. Identifiers that are different in every record, such as the job
+ * ids, are always written in full and kept out of the dictionary.
+ * <P>
+ * The writer should be used as follows:
+ * <P>
+ * <UL>
+ * <LI> Create the writer with the OutputStream the records should go to.
+ * <LI> Call write(UsageRecord) for each record.
+ * <LI> Call close() to flush the records and close the underlying stream.
+ * </UL>
+ * <P>
+ * This class is not thread safe.
+ */
+public final class BinaryRecordWriter implements Closeable, Flushable {
+
+    // The start of every stream: "UR4B" and the version of the encoding
+    static final byte[] MAGIC = { 'U', 'R', '4', 'B', 1 };
+
+    // The most strings the dictionary of a stream holds, and the longest string it holds
+    static final int DICTIONARY_SIZE = 65536;
+    static final int DICTIONARY_STRING_LENGTH = 256;
+
+    // The tags that start an encoded string; a tag of STRING_REFERENCE + n refers to string n
+    // of the dictionary
+    static final int STRING_NULL = 0;
+    static final int STRING_LITERAL = 1;
+    static final int STRING_NEW = 2;
+    static final int STRING_REFERENCE = 3;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream stream;
+    private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int count;
+    private long recordCount;
+    private boolean closed;
+
+    /**
+     * Create a writer that writes the records to an output stream
+     *
+     * @param stream the stream to write the records to
+     * @throws IOException if the start of the stream cannot be written
+     */
+    public BinaryRecordWriter(OutputStream stream) throws IOException {
+        this.stream = stream;
+        stream.write(MAGIC);
+    }
+
+    /**
+     * Write a usage record to the stream
+     *
+     * @param record the usage record to write
+     * @throws UsageRecordException if the writer is closed, or the recordId or status of the
+     * record are not set
+     * @throws IOException if the record cannot be written
+     */
+    public void write(UsageRecord record) throws IOException, UsageRecordException {
+        if (closed)
+            throw new UsageRecordException("The writer has been closed");
+
+        record.writeTo(this);
+        recordCount++;
+        if (count >= BUFFER_SIZE)
+            drain();
+    }
+
+    /**
+     * Get the number of records written so far
+     *
+     * @return the number of records written to the stream
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Flush the records written so far to the underlying stream
+     *
+     * @throws IOException if the underlying stream cannot be written or flushed
+     */
+    public void flush() throws IOException {
+        drain();
+        stream.flush();
+    }
+
+    /**
+     * Flush the records and close the underlying stream. Calling close() on a closed writer
+     * has no effect.
+     *
+     * @throws IOException if the records cannot be written or the stream cannot be closed
+     */
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            drain();
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Write a number that is not negative as a varint: seven bits a byte, least significant
+     * first, with the top bit set on every byte but the last
+     *
+     * @param value the number to write
+     */
+    void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[count++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[count++] = (byte) value;
+    }
+
+    /**
+     * Write an int as four bytes, most significant first
+     *
+     * @param value the int to write
+     */
+    void writeInt(int value) {
+        ensureCapacity(4);
+        buffer[count++] = (byte) (value >>> 24);
+        buffer[count++] = (byte) (value >>> 16);
+        buffer[count++] = (byte) (value >>> 8);
+        buffer[count++] = (byte) value;
+    }
+
+    /**
+     * Write a long as eight bytes, most significant first
+     *
+     * @param value the long to write
+     */
+    void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    /**
+     * Write a string that is likely to be repeated in later records, through the dictionary
+     *
+     * @param value the string to write (may be null)
+     */
+    void writeString(String value) {
+        if (value == null) {
+            writeVarint(STRING_NULL);
+            return;
+        }
+
+        Integer index = dictionary.get(value);
+        if (index != null) {
+            writeVarint(STRING_REFERENCE + index);
+        }
+        else if (dictionary.size() < DICTIONARY_SIZE && value.length() <= DICTIONARY_STRING_LENGTH) {
+            dictionary.put(value, dictionary.size());
+            writeVarint(STRING_NEW);
+            writeUtf8(value);
+        }
+        else {
+            writeVarint(STRING_LITERAL);
+            writeUtf8(value);
+        }
+    }
+
+    /**
+     * Write a string that is unlikely to be repeated, in full and without adding it to the
+     * dictionary
+     *
+     * @param value the string to write (may be null)
+     */
+    void writeLiteral(String value) {
+        if (value == null) {
+            writeVarint(STRING_NULL);
+        }
+        else {
+            writeVarint(STRING_LITERAL);
+            writeUtf8(value);
+        }
+    }
+
+    /**
+     * Convert a createTime in the form UsageRecord.setRecordId() writes it,
+     * yyyy-MM-ddTHH:mm:ssZ, to the seconds since the epoch
+     *
+     * @param time the createTime
+     * @return the seconds since the epoch, or -1 if the time is not in that exact form (or is
+     * before the epoch), in which case it must be written as a string to keep it unchanged
+     */
+    static long parseTime(String time) {
+        if (time.length() != 20 || time.charAt(4) != '-' || time.charAt(7) != '-' || time.charAt(10) != 'T'
+                || time.charAt(13) != ':' || time.charAt(16) != ':' || time.charAt(19) != 'Z')
+            return -1;
+
+        int year = digits(time, 0, 4);
+        int month = digits(time, 5, 2);
+        int day = digits(time, 8, 2);
+        int hour = digits(time, 11, 2);
+        int minute = digits(time, 14, 2);
+        int second = digits(time, 17, 2);
+        if (year < 1970 || month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59
+                || second > 59)
+            return -1;
+
+        long seconds = daysFromCivil(year, month, day) * 86400L + hour * 3600 + minute * 60 + second;
+
+        // Rejects the days a month doesn't have, such as February 30
+        return BinaryRecordReader.formatTime(seconds).equals(time) ? seconds : -1;
+    }
+
+    /**
+     * Helper method: read a number written in decimal digits
+     *
+     * @param s the string holding the number
+     * @param offset the index of the first digit
+     * @param length the number of digits
+     * @return the number, or -1 if a character is not a digit
+     */
+    private static int digits(String s, int offset, int length) {
+        int value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Helper method: the number of days from the epoch to a date in the proleptic Gregorian
+     * calendar
+     *
+     * @param year the year
+     * @param month the month, from 1
+     * @param day the day of the month, from 1
+     * @return the days since 1970-01-01
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        int era = year / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    /**
+     * Helper method: write a string as its length in bytes and its UTF-8 encoding
+     *
+     * @param value the string to write
+     */
+    private void writeUtf8(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    /**
+     * Helper method: make room in the buffer for more bytes, growing it if needed. The buffer
+     * is only drained between records, so a record is always written to the stream in one go.
+     *
+     * @param bytes the number of bytes about to be written
+     */
+    private void ensureCapacity(int bytes) {
+        if (count + bytes > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + bytes));
+    }
+
+    /**
+     * Helper method: write the buffered records to the underlying stream
+     *
+     * @throws IOException if the stream cannot be written
+     */
+    private void drain() throws IOException {
+        if (count > 0) {
+            stream.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,604 @@
+package es.bsc.ur4j;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * A column store of usage records for analytical scans, such as the total charge of a
+ * project over a month, over billions of records.
+ * <P>
+ * Each record appended becomes a row of fixed width values: the createTime in seconds since
+ * the epoch, the charge, the Status ordinal, the first LocalUserId, GlobalUserName and
+ * ProjectName and the JobName as numbers in a dictionary of strings, and for each of Disk,
+ * Network and Memory the size of the first entry in bytes and its packed unit, metric and type
+ * ordinals. The rest of the record is not kept: the store is for totals, the records themselves
+ * belong in an archive (see BinaryRecordWriter).
+ * <P>
+ * The rows are kept in segment files in a directory, each mapped into memory and holding a
+ * fixed number of rows column by column, so a scan of one column reads consecutive memory.
+ * Nothing about a row is on the Java heap: appends and scans are reads and writes of the
+ * mappings, and only the dictionary of distinct strings is held in memory, so the number of
+ * rows the store holds does not add to the garbage collector's work.
+ * <P>
+ * The store is made durable by sync() and close(); rows appended since the last sync() may
+ * be lost if the process or the machine crashes. The number of rows in the header of a
+ * segment is only written by sync(), once the strings the rows refer to are on disk, so a row
+ * whose values reached the mapped file before a crash is not counted unless its strings were
+ * kept too. Opening the store again on its directory carries on from the rows last synced.
+ * <P>
+ * This class is not thread safe.
+ */
+public final class ColumnarRecordStore implements Closeable {
+
+    /** The string columns of a row */
+    public static enum StringColumn { LocalUserId, GlobalUserName, ProjectName, JobName }
+
+    public static final int DEFAULT_SEGMENT_ROWS = 1024 * 1024;
+
+    // Each segment starts with the number of rows it has room for and the number synced
+    private static final int HEADER_SIZE = 16;
+    private static final int CAPACITY_OFFSET = 0;
+    private static final int ROWS_OFFSET = 4;
+
+    // The columns of a segment, widest first so every value is aligned: the sizes of the three
+    // resources and the createTime (longs), the charge and the four strings (ints), the codes
+    // of the three resources (shorts) and the status (a byte)
+    private static final int CREATE_TIME = 3;
+    private static final int LONG_COLUMNS = 4;
+    private static final int CHARGE = 0;
+    private static final int INT_COLUMNS = 5;
+    private static final int SHORT_COLUMNS = 3;
+    private static final int ROW_WIDTH = 8 * LONG_COLUMNS + 4 * INT_COLUMNS + 2 * SHORT_COLUMNS + 1;
+
+    private static final String SEGMENT_PREFIX = "columns-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String DICTIONARY = "dictionary";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final UsageRecord.Status[] STATUSES = UsageRecord.Status.values();
+
+    private final File directory;
+    private final int segmentRows;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private long rowCount;
+    private long syncedRows;
+
+    private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+    private final List<String> strings = new ArrayList<String>();
+    private final DataOutputStream dictionaryOut;
+    private final FileOutputStream dictionaryFile;
+    private boolean closed;
+
+    // The last createTime appended and its seconds, as records usually come in time order
+    private String lastTime;
+    private long lastSeconds = -1;
+
+    /**
+     * Open the store in a directory with the default number of rows in a segment
+     *
+     * @param directory the directory of the store
+     * @throws IOException if the store cannot be opened
+     */
+    public ColumnarRecordStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_ROWS);
+    }
+
+    /**
+     * Open the store in a directory. The directory is created if it doesn't exist; if it
+     * already holds a store the store is opened with the rows it holds, and the number of rows
+     * in a segment it was created with.
+     *
+     * @param directory the directory of the store
+     * @param segmentRows the number of rows in a segment file of a new store
+     * @throws IllegalArgumentException if segmentRows is not positive or makes a segment larger
+     * than 2GB
+     * @throws IOException if the store cannot be opened
+     */
+    public ColumnarRecordStore(File directory, int segmentRows) throws IOException {
+        if (segmentRows <= 0 || segmentRows > (Integer.MAX_VALUE - HEADER_SIZE) / ROW_WIDTH)
+            throw new IllegalArgumentException("The segment rows must be positive and fit in 2GB: " + segmentRows);
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create the store directory " + directory);
+        this.directory = directory;
+
+        File first = segmentFile(0);
+        if (first.exists()) {
+            RandomAccessFile file = new RandomAccessFile(first, "r");
+            try {
+                segmentRows = file.readInt();
+            }
+            finally {
+                file.close();
+            }
+        }
+        this.segmentRows = segmentRows;
+
+        // The synced rows are those of the full segments and of the first one that isn't full;
+        // the segments after it hold no synced rows and are mapped again when they are reached
+        for (int number = 0; segmentFile(number).exists(); number++) {
+            MappedByteBuffer segment = mapSegment(number);
+            int rows = segment.getInt(ROWS_OFFSET);
+            if (rows == 0)
+                break;
+            segments.add(segment);
+            rowCount += rows;
+            if (rows < segmentRows)
+                break;
+        }
+        syncedRows = rowCount;
+
+        readDictionary();
+        dictionaryFile = new FileOutputStream(new File(directory, DICTIONARY), true);
+        dictionaryOut = new DataOutputStream(new BufferedOutputStream(dictionaryFile));
+    }
+
+    /**
+     * Append a record to the store as a new row
+     *
+     * @param record the record to append
+     * @return the number of the row
+     * @throws UsageRecordException if the store has been closed
+     * @throws IOException if a new segment cannot be created or a new string cannot be written
+     * to the dictionary
+     */
+    public long append(UsageRecord record) throws IOException, UsageRecordException {
+        if (closed)
+            throw new UsageRecordException("The store has been closed");
+
+        int index = (int) (rowCount % segmentRows);
+        if (index == 0) {
+            // The segment may be left over from rows that were never synced
+            MappedByteBuffer segment = mapSegment(segments.size());
+            segment.putInt(ROWS_OFFSET, 0);
+            segments.add(segment);
+        }
+        MappedByteBuffer segment = segments.get(segments.size() - 1);
+
+        String createTime = record.getCreateTimeinUTC();
+        if (createTime != null && !createTime.equals(lastTime)) {
+            lastTime = createTime;
+            lastSeconds = BinaryRecordWriter.parseTime(createTime);
+        }
+        segment.putLong(longColumn(CREATE_TIME) + 8 * index, createTime == null ? -1 : lastSeconds);
+        segment.putFloat(intColumn(CHARGE) + 4 * index, record.isChargeSet() ? record.getChargeValue() : Float.NaN);
+        segment.put(statusColumn() + index, (byte) (record.getStatus() == null ? -1 : record.getStatus().ordinal()));
+
+        boolean hasUser = record.getUserIdCount() > 0;
+        putString(segment, StringColumn.LocalUserId, index, hasUser ? record.getLocalUserId(0) : null);
+        putString(segment, StringColumn.GlobalUserName, index, hasUser ? record.getGlobalUserName(0) : null);
+        putString(segment, StringColumn.ProjectName, index,
+                record.getProjectNameCount() > 0 ? record.getProjectName(0) : null);
+        putString(segment, StringColumn.JobName, index, record.getJobName());
+
+        putResource(segment, UsageAggregator.Resource.Disk, index, record.getDisks());
+        putResource(segment, UsageAggregator.Resource.Network, index, record.getNetworks());
+        putResource(segment, UsageAggregator.Resource.Memory, index, record.getMemories());
+        return rowCount++;
+    }
+
+    /**
+     * Get the number of rows in the store
+     *
+     * @return the number of rows
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Get the createTime of a row
+     *
+     * @param row the number of the row
+     * @return the createTime in seconds since the epoch, or -1 if the record had none
+     */
+    public long getCreateTime(long row) {
+        return segment(row).getLong(longColumn(CREATE_TIME) + 8 * index(row));
+    }
+
+    /**
+     * Get the charge of a row
+     *
+     * @param row the number of the row
+     * @return the charge, or NaN if the record had none
+     */
+    public float getCharge(long row) {
+        return segment(row).getFloat(intColumn(CHARGE) + 4 * index(row));
+    }
+
+    /**
+     * Get the status of a row
+     *
+     * @param row the number of the row
+     * @return the status, or null if the record had none
+     */
+    public UsageRecord.Status getStatus(long row) {
+        int ordinal = segment(row).get(statusColumn() + index(row));
+        return ordinal < 0 ? null : STATUSES[ordinal];
+    }
+
+    /**
+     * Get the number of the string in a string column of a row. Compare it with the number
+     * lookup() returns to filter rows without comparing strings.
+     *
+     * @param column the column
+     * @param row the number of the row
+     * @return the number of the string in the dictionary, or -1 if the record had none
+     */
+    public int getStringId(StringColumn column, long row) {
+        return segment(row).getInt(stringColumn(column) + 4 * index(row));
+    }
+
+    /**
+     * Get the size of the first entry of a resource in a row
+     *
+     * @param resource the resource
+     * @param row the number of the row
+     * @return the size in bytes (as it was for Disk, which has no unit), or -1 if the record
+     * had no entry
+     */
+    public long getSize(UsageAggregator.Resource resource, long row) {
+        return segment(row).getLong(longColumn(resource.ordinal()) + 8 * index(row));
+    }
+
+    /**
+     * Get the metric of the first entry of a resource in a row
+     *
+     * @param resource the resource
+     * @param row the number of the row
+     * @return the metric, or null if the record had no entry or the entry had no metric
+     */
+    public UsageRecord.Metric getMetric(UsageAggregator.Resource resource, long row) {
+        return DifferentiatedProperties.metric(segment(row).getShort(codeColumn(resource) + 2 * index(row)));
+    }
+
+    /**
+     * Get the number of a string in the dictionary
+     *
+     * @param value the string
+     * @return the number of the string, or -1 if no row has it
+     */
+    public int lookup(String value) {
+        Integer id = stringIds.get(value);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Get a string from the dictionary
+     *
+     * @param id the number of the string
+     * @return the string, or null if id is -1
+     */
+    public String getString(int id) {
+        return id < 0 ? null : strings.get(id);
+    }
+
+    /**
+     * Sum the charges of the rows with a string and a createTime in a range. Rows without a
+     * charge are left out.
+     *
+     * @param column the string column to filter on
+     * @param value the string the rows must have, or null for every row
+     * @param from the earliest createTime, in seconds since the epoch
+     * @param to the createTime after the latest, in seconds since the epoch
+     * @return the total charge
+     */
+    public double sumCharge(StringColumn column, String value, long from, long to) {
+        int id = value == null ? -1 : lookup(value);
+        if (value != null && id < 0)
+            return 0;
+
+        double sum = 0;
+        int stringColumn = stringColumn(column);
+        for (int s = 0; s < segments.size(); s++) {
+            MappedByteBuffer segment = segments.get(s);
+            for (int i = 0, rows = rows(s); i < rows; i++) {
+                if (matches(segment, i, stringColumn, id, from, to)) {
+                    float charge = segment.getFloat(intColumn(CHARGE) + 4 * i);
+                    if (!Float.isNaN(charge))
+                        sum += charge;
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Sum the sizes of a resource of the rows with a string and a createTime in a range. As in
+     * UsageAggregator, only entries with a total metric, or none, are summed: rows whose entry
+     * is a min, max or average, and rows without an entry for the resource, are left out.
+     *
+     * @param resource the resource
+     * @param column the string column to filter on
+     * @param value the string the rows must have, or null for every row
+     * @param from the earliest createTime, in seconds since the epoch
+     * @param to the createTime after the latest, in seconds since the epoch
+     * @return the total size in bytes (or as it was for Disk)
+     */
+    public long sumSize(UsageAggregator.Resource resource, StringColumn column, String value, long from, long to) {
+        int id = value == null ? -1 : lookup(value);
+        if (value != null && id < 0)
+            return 0;
+
+        long sum = 0;
+        int stringColumn = stringColumn(column);
+        int sizeColumn = longColumn(resource.ordinal());
+        int codeColumn = codeColumn(resource);
+        for (int s = 0; s < segments.size(); s++) {
+            MappedByteBuffer segment = segments.get(s);
+            for (int i = 0, rows = rows(s); i < rows; i++) {
+                if (matches(segment, i, stringColumn, id, from, to)) {
+                    long size = segment.getLong(sizeColumn + 8 * i);
+                    UsageRecord.Metric metric = DifferentiatedProperties.metric(segment.getShort(codeColumn + 2 * i));
+                    if (size >= 0 && (metric == null || metric == UsageRecord.Metric.total))
+                        sum += size;
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Write the new strings of the dictionary, force the segments to disk and then count the
+     * rows appended since the last sync in the segment headers
+     *
+     * @throws IOException if the store cannot be written
+     */
+    public void sync() throws IOException {
+        dictionaryOut.flush();
+        dictionaryFile.getFD().sync();
+
+        // Segment by segment in order, so the rows counted after a crash are always the first
+        for (int s = (int) (syncedRows / segmentRows); s < segments.size(); s++) {
+            MappedByteBuffer segment = segments.get(s);
+            segment.force();
+            segment.putInt(ROWS_OFFSET, rows(s));
+            segment.force();
+        }
+        syncedRows = rowCount;
+    }
+
+    /**
+     * Sync and close the store. Calling close() on a closed store has no effect.
+     *
+     * @throws IOException if the store cannot be written
+     */
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            sync();
+        }
+        finally {
+            dictionaryOut.close();
+        }
+    }
+
+    /**
+     * Helper method: test if a row passes the string and createTime filters of a scan
+     *
+     * @param segment the segment of the row
+     * @param index the index of the row in the segment
+     * @param stringColumn the offset of the string column
+     * @param id the number of the string the row must have, or -1 for any
+     * @param from the earliest createTime
+     * @param to the createTime after the latest
+     * @return true if the row passes
+     */
+    private boolean matches(MappedByteBuffer segment, int index, int stringColumn, int id, long from, long to) {
+        if (id >= 0 && segment.getInt(stringColumn + 4 * index) != id)
+            return false;
+        long time = segment.getLong(longColumn(CREATE_TIME) + 8 * index);
+        return time >= from && time < to;
+    }
+
+    /**
+     * Helper method: store a string of a row as its number in the dictionary, adding it to
+     * the dictionary if it is new
+     *
+     * @param segment the segment of the row
+     * @param column the column
+     * @param index the index of the row in the segment
+     * @param value the string (may be null)
+     * @throws IOException if the string cannot be written to the dictionary
+     */
+    private void putString(MappedByteBuffer segment, StringColumn column, int index, String value)
+            throws IOException {
+        int id = -1;
+        if (value != null) {
+            Integer known = stringIds.get(value);
+            if (known != null) {
+                id = known;
+            }
+            else {
+                byte[] bytes = value.getBytes(UTF8);
+                dictionaryOut.writeInt(bytes.length);
+                dictionaryOut.write(bytes);
+                id = strings.size();
+                strings.add(value);
+                stringIds.put(value, id);
+            }
+        }
+        segment.putInt(stringColumn(column) + 4 * index, id);
+    }
+
+    /**
+     * Helper method: store the first entry of a resource of a row
+     *
+     * @param segment the segment of the row
+     * @param resource the resource
+     * @param index the index of the row in the segment
+     * @param properties the entries of the resource (may be null)
+     */
+    private void putResource(MappedByteBuffer segment, UsageAggregator.Resource resource, int index,
+                             DifferentiatedProperties properties) {
+        boolean present = properties != null && properties.size() > 0;
+        segment.putLong(longColumn(resource.ordinal()) + 8 * index, present ? properties.getSizeInBytes(0) : -1);
+        segment.putShort(codeColumn(resource) + 2 * index, (short) (present ? properties.getCode(0) : 0));
+    }
+
+    /**
+     * Helper method: read the dictionary written so far. A string torn by a crash at the end
+     * of the file is cut off.
+     *
+     * @throws IOException if the dictionary cannot be read
+     */
+    private void readDictionary() throws IOException {
+        File file = new File(directory, DICTIONARY);
+        if (!file.exists())
+            return;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        long length = 0;
+        try {
+            while (true) {
+                int size = in.readInt();
+                byte[] bytes = new byte[size];
+                in.readFully(bytes);
+                String value = new String(bytes, UTF8);
+                stringIds.put(value, strings.size());
+                strings.add(value);
+                length += 4 + size;
+            }
+        }
+        catch (EOFException e) {
+            // the end of the dictionary, or of the last whole string in it
+        }
+        finally {
+            in.close();
+        }
+
+        if (file.length() != length) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+            }
+            finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Helper method: map a segment file into memory, creating it if it doesn't exist
+     *
+     * @param number the number of the segment
+     * @return the mapped segment
+     * @throws IOException if the segment cannot be created or mapped
+     */
+    private MappedByteBuffer mapSegment(int number) throws IOException {
+        File file = segmentFile(number);
+        boolean created = !file.exists();
+        long size = HEADER_SIZE + (long) segmentRows * ROW_WIDTH;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (created)
+                raf.setLength(size);
+            // The mapping stays valid once the file is closed
+            MappedByteBuffer segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (created)
+                segment.putInt(CAPACITY_OFFSET, segmentRows);
+            return segment;
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Helper method: the file of a segment
+     *
+     * @param number the number of the segment
+     * @return the file
+     */
+    private File segmentFile(int number) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%010d", number) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Helper method: the segment holding a row
+     *
+     * @param row the number of the row
+     * @return the segment
+     * @throws IndexOutOfBoundsException if there is no such row
+     */
+    private MappedByteBuffer segment(long row) {
+        if (row < 0 || row >= rowCount)
+            throw new IndexOutOfBoundsException("No row " + row + " in a store of " + rowCount + " rows");
+        return segments.get((int) (row / segmentRows));
+    }
+
+    /**
+     * Helper method: the number of rows in a segment
+     *
+     * @param number the number of the segment
+     * @return the rows appended to the segment
+     */
+    private int rows(int number) {
+        return (int) Math.min(segmentRows, rowCount - (long) number * segmentRows);
+    }
+
+    /**
+     * Helper method: the index of a row in its segment
+     *
+     * @param row the number of the row
+     * @return the index in the segment
+     */
+    private int index(long row) {
+        return (int) (row % segmentRows);
+    }
+
+    /**
+     * Helper method: the offset of a long column in a segment
+     *
+     * @param column the number of the long column
+     * @return the offset of the first value
+     */
+    private int longColumn(int column) {
+        return HEADER_SIZE + 8 * column * segmentRows;
+    }
+
+    /**
+     * Helper method: the offset of an int column in a segment
+     *
+     * @param column the number of the int column
+     * @return the offset of the first value
+     */
+    private int intColumn(int column) {
+        return longColumn(LONG_COLUMNS) + 4 * column * segmentRows;
+    }
+
+    /**
+     * Helper method: the offset of a string column in a segment
+     *
+     * @param column the string column
+     * @return the offset of the first value
+     */
+    private int stringColumn(StringColumn column) {
+        return intColumn(CHARGE + 1 + column.ordinal());
+    }
+
+    /**
+     * Helper method: the offset of the code column of a resource in a segment
+     *
+     * @param resource the resource
+     * @return the offset of the first value
+     */
+    private int codeColumn(UsageAggregator.Resource resource) {
+        return intColumn(INT_COLUMNS) + 2 * resource.ordinal() * segmentRows;
+    }
+
+    /**
+     * Helper method: the offset of the status column in a segment
+     *
+     * @return the offset of the first value
+     */
+    private int statusColumn() {
+        return intColumn(INT_COLUMNS) + 2 * SHORT_COLUMNS * segmentRows;
+    }
+}
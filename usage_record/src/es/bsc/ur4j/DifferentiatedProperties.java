@@ -0,0 +1,213 @@
+package es.bsc.ur4j;
+
+import java.util.Arrays;
+
+/**
+ * The entries of one kind of differentiated property (Disk, Network or Memory) of a usage record.
+ * <P>
+ * The entries are kept in small parallel arrays rather than as an object each: the size in a
+ * long, the unit, metric and type packed into one short as enum ordinals, and the description,
+ * which is usually missing, in an array that is only created for the first description.
+ * The arrays start with room for one entry, which is all most records need.
+ */
+final class DifferentiatedProperties {
+
+    // Layout of the packed codes: each field holds ordinal + 1, with 0 meaning not set
+    private static final int UNIT_SHIFT   = 0;
+    private static final int METRIC_SHIFT = 4;
+    private static final int TYPE_SHIFT   = 7;
+    private static final int UNIT_MASK    = 0xF;
+    private static final int METRIC_MASK  = 0x7;
+    private static final int TYPE_MASK    = 0x3;
+
+    private static final UsageRecord.Unit[] UNITS = UsageRecord.Unit.values();
+    private static final UsageRecord.Metric[] METRICS = UsageRecord.Metric.values();
+
+    private long[] sizes = new long[1];
+    private short[] codes = new short[1];
+    private String[] descriptions;
+    private int count;
+
+    /**
+     * Add an entry
+     *
+     * @param size the amount of the resource used
+     * @param description (optional - may be null)
+     * @param unit (optional - may be null)
+     * @param metric (optional - may be null)
+     * @param type the DiskType or MemoryType of the entry (optional - may be null)
+     */
+    void add(long size, String description, UsageRecord.Unit unit, UsageRecord.Metric metric, Enum<?> type) {
+        add(size, description, (code(unit) << UNIT_SHIFT)
+                | (code(metric) << METRIC_SHIFT)
+                | (code(type) << TYPE_SHIFT));
+    }
+
+    /**
+     * Add an entry with its unit, metric and type already packed, as returned by getCode()
+     *
+     * @param size the amount of the resource used
+     * @param description (optional - may be null)
+     * @param code the packed unit, metric and type of the entry
+     */
+    void add(long size, String description, int code) {
+        if (count == sizes.length) {
+            int capacity = count * 2;
+            sizes = Arrays.copyOf(sizes, capacity);
+            codes = Arrays.copyOf(codes, capacity);
+            if (descriptions != null)
+                descriptions = Arrays.copyOf(descriptions, capacity);
+        }
+
+        if (description != null) {
+            if (descriptions == null)
+                descriptions = new String[sizes.length];
+            descriptions[count] = description;
+        }
+
+        sizes[count] = size;
+        codes[count] = (short) code;
+        count++;
+    }
+
+    /**
+     * Remove every entry, keeping the arrays for the entries added next
+     */
+    void clear() {
+        if (descriptions != null)
+            Arrays.fill(descriptions, 0, count, null);
+        count = 0;
+    }
+
+    /**
+     * Copy the entries
+     *
+     * @return a copy of the entries, sharing no arrays with these
+     */
+    DifferentiatedProperties copy() {
+        DifferentiatedProperties copy = new DifferentiatedProperties();
+        copy.sizes = Arrays.copyOf(sizes, count == 0 ? 1 : count);
+        copy.codes = Arrays.copyOf(codes, copy.sizes.length);
+        if (descriptions != null)
+            copy.descriptions = Arrays.copyOf(descriptions, copy.sizes.length);
+        copy.count = count;
+        return copy;
+    }
+
+    /**
+     * Get the number of entries
+     *
+     * @return the number of entries added
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Get the size of an entry
+     *
+     * @param index the index of the entry
+     * @return the amount of the resource used
+     */
+    long getSize(int index) {
+        return sizes[index];
+    }
+
+    /**
+     * Get the unit, metric and type of an entry packed into one number, for the binary encoding
+     *
+     * @param index the index of the entry
+     * @return the packed unit, metric and type
+     */
+    int getCode(int index) {
+        return codes[index];
+    }
+
+    /**
+     * Get the size of an entry in bytes, converted from its unit. Sizes in bits are rounded
+     * down to whole bytes, and sizes too large for a long are capped at Long.MAX_VALUE.
+     *
+     * @param index the index of the entry
+     * @return the size in bytes, or the size as it is if the entry has no unit
+     */
+    long getSizeInBytes(int index) {
+        int code = (codes[index] >> UNIT_SHIFT) & UNIT_MASK;
+        return code == 0 ? sizes[index] : UNITS[code - 1].toBytes(sizes[index]);
+    }
+
+    /**
+     * Get the description of an entry
+     *
+     * @param index the index of the entry
+     * @return the description, or null if it wasn't given
+     */
+    String getDescription(int index) {
+        return descriptions == null ? null : descriptions[index];
+    }
+
+    /**
+     * Get the unit of an entry
+     *
+     * @param index the index of the entry
+     * @return the unit, or null if it wasn't given
+     */
+    UsageRecord.Unit getUnit(int index) {
+        int code = (codes[index] >> UNIT_SHIFT) & UNIT_MASK;
+        return code == 0 ? null : UNITS[code - 1];
+    }
+
+    /**
+     * Get the metric of an entry
+     *
+     * @param index the index of the entry
+     * @return the metric, or null if it wasn't given
+     */
+    UsageRecord.Metric getMetric(int index) {
+        return metric(codes[index]);
+    }
+
+    /**
+     * Get the metric packed into the code of an entry
+     *
+     * @param code the code of the entry, as returned by getCode()
+     * @return the metric, or null if it wasn't given
+     */
+    static UsageRecord.Metric metric(int code) {
+        int metric = (code >> METRIC_SHIFT) & METRIC_MASK;
+        return metric == 0 ? null : METRICS[metric - 1];
+    }
+
+    /**
+     * Get the ordinal of the DiskType or MemoryType of an entry
+     *
+     * @param index the index of the entry
+     * @return the ordinal of the type, or -1 if it wasn't given
+     */
+    int getTypeOrdinal(int index) {
+        return ((codes[index] >> TYPE_SHIFT) & TYPE_MASK) - 1;
+    }
+
+    /**
+     * Test if a code read from a binary record stream is one that add() could have packed
+     *
+     * @param code the packed unit, metric and type
+     * @param types the number of DiskType or MemoryType values, or 0 if the entries have no type
+     * @return true if each field is in range and no other bits are set
+     */
+    static boolean isValidCode(int code, int types) {
+        return code >= 0 && code >> TYPE_SHIFT <= TYPE_MASK
+                && ((code >> UNIT_SHIFT) & UNIT_MASK) <= UNITS.length
+                && ((code >> METRIC_SHIFT) & METRIC_MASK) <= METRICS.length
+                && ((code >> TYPE_SHIFT) & TYPE_MASK) <= types;
+    }
+
+    /**
+     * Helper method: the code of an optional enum value
+     *
+     * @param value the enum value (may be null)
+     * @return ordinal + 1, or 0 if the value is null
+     */
+    private static int code(Enum<?> value) {
+        return value == null ? 0 : value.ordinal() + 1;
+    }
+}
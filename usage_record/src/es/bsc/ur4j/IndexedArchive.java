@@ -0,0 +1,255 @@
+package es.bsc.ur4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Looks records up in an archive written by an IndexedArchiveWriter, through the indexes
+ * written alongside it: by recordId, by GlobalJobId or LocalJobId, and by LocalUserId over a
+ * range of createTimes. A lookup reads a few index slots and then only the records that
+ * match, so it takes the same time however large the archive is.
+ * <P>
+ * This class is thread safe: the files are only read, with positional reads.
+ */
+public final class IndexedArchive implements Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // A record is read back on its own by putting it in a UsageRecords element declaring the
+    // namespaces it uses
+    private static final byte[] PREFIX = ("<UsageRecords xmlns=\"" + UsageRecord.URF_NAMESPACE
+            + "\" xmlns:urf=\"" + UsageRecord.URF_NAMESPACE
+            + "\" xmlns:xsi=\"" + UsageRecord.XSI_NAMESPACE
+            + "\" xmlns:ds=\"" + UsageRecord.DS_NAMESPACE + "\">").getBytes(UTF8);
+    private static final byte[] SUFFIX = "</UsageRecords>".getBytes(UTF8);
+
+    private final FileChannel archive;
+    private final FileChannel recordIds;
+    private final FileChannel jobIds;
+    private final FileChannel users;
+    private final int recordIdSlots;
+    private final int jobIdSlots;
+    private final int userEntries;
+
+    /**
+     * Open an archive and its indexes
+     *
+     * @param file the archive file
+     * @throws IOException if the archive or an index cannot be opened
+     * @throws UsageRecordException if an index is not an index written by IndexedArchiveWriter
+     */
+    public IndexedArchive(File file) throws IOException, UsageRecordException {
+        archive = new RandomAccessFile(file, "r").getChannel();
+        recordIds = new RandomAccessFile(file.getPath() + IndexedArchiveWriter.RECORD_ID_INDEX, "r").getChannel();
+        jobIds = new RandomAccessFile(file.getPath() + IndexedArchiveWriter.JOB_ID_INDEX, "r").getChannel();
+        users = new RandomAccessFile(file.getPath() + IndexedArchiveWriter.USER_INDEX, "r").getChannel();
+
+        recordIdSlots = readHeader(recordIds);
+        jobIdSlots = readHeader(jobIds);
+        userEntries = readHeader(users);
+    }
+
+    /**
+     * Get the record with a recordId
+     *
+     * @param recordId the recordId
+     * @return the record, or null if there is no record with the recordId in the archive
+     * @throws IOException if the archive cannot be read
+     */
+    public UsageRecord get(String recordId) throws IOException {
+        for (UsageRecord record : probe(recordIds, recordIdSlots, recordId)) {
+            if (recordId.equals(record.getRecordId()))
+                return record;
+        }
+        return null;
+    }
+
+    /**
+     * Get the records of a job
+     *
+     * @param jobId the GlobalJobId or LocalJobId of the job
+     * @return the records with the job id, in the order they are in the archive
+     * @throws IOException if the archive cannot be read
+     */
+    public List<UsageRecord> findByJobId(String jobId) throws IOException {
+        List<UsageRecord> found = new ArrayList<UsageRecord>();
+        for (UsageRecord record : probe(jobIds, jobIdSlots, jobId)) {
+            if (jobId.equals(record.getGlobalJobId()) || jobId.equals(record.getLocalJobId()))
+                found.add(record);
+        }
+        return found;
+    }
+
+    /**
+     * Get the records of a user created in a range of times. Records without a createTime
+     * are found with a range that includes -1.
+     *
+     * @param localUserId the LocalUserId of the user
+     * @param from the earliest createTime, in seconds since the epoch
+     * @param to the createTime after the latest, in seconds since the epoch
+     * @return the records, in createTime order
+     * @throws IOException if the archive cannot be read
+     */
+    public List<UsageRecord> findByUser(String localUserId, long from, long to) throws IOException {
+        long hash = IndexedArchiveWriter.hash(localUserId);
+        ByteBuffer entry = ByteBuffer.allocate(IndexedArchiveWriter.SORTED_ENTRY_SIZE);
+
+        // Find the first entry at or after (hash, from)
+        int low = 0;
+        int high = userEntries;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            readEntry(users, userPosition(middle), entry);
+            if (IndexedArchiveWriter.compareEntries(entry.getLong(0), entry.getLong(8), hash, from) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        List<UsageRecord> found = new ArrayList<UsageRecord>();
+        for (int i = low; i < userEntries; i++) {
+            readEntry(users, userPosition(i), entry);
+            if (entry.getLong(0) != hash || entry.getLong(8) >= to)
+                break;
+
+            UsageRecord record = readRecord(entry.getLong(16), entry.getInt(24));
+            for (int u = 0; u < record.getUserIdCount(); u++) {
+                if (localUserId.equals(record.getLocalUserId(u))) {
+                    found.add(record);
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Close the archive and its indexes
+     *
+     * @throws IOException if a file cannot be closed
+     */
+    public void close() throws IOException {
+        try {
+            archive.close();
+            recordIds.close();
+            jobIds.close();
+        }
+        finally {
+            users.close();
+        }
+    }
+
+    /**
+     * Helper method: read the records in the slots of a hash index with the hash of a key,
+     * which are the records with the key and any whose key has the same hash
+     *
+     * @param index the index
+     * @param slots the number of slots in the index
+     * @param key the key
+     * @return the records, in the order they are in the archive
+     * @throws IOException if the index or the archive cannot be read
+     */
+    private List<UsageRecord> probe(FileChannel index, int slots, String key) throws IOException {
+        long hash = IndexedArchiveWriter.hash(key);
+        ByteBuffer slot = ByteBuffer.allocate(IndexedArchiveWriter.HASH_SLOT_SIZE);
+        List<UsageRecord> records = new ArrayList<UsageRecord>(1);
+
+        for (long s = IndexedArchiveWriter.slot(hash, slots); ; s = (s + 1) & (slots - 1)) {
+            readEntry(index, IndexedArchiveWriter.HASH_HEADER_SIZE + s * IndexedArchiveWriter.HASH_SLOT_SIZE, slot);
+            long slotHash = slot.getLong(0);
+            if (slotHash == 0)
+                break;
+            if (slotHash == hash)
+                records.add(readRecord(slot.getLong(8), slot.getInt(16)));
+        }
+        return records;
+    }
+
+    /**
+     * Helper method: read a record from the archive
+     *
+     * @param offset the offset of the record
+     * @param length the length of the record
+     * @return the record
+     * @throws IOException if the archive cannot be read
+     */
+    private UsageRecord readRecord(long offset, int length) throws IOException {
+        byte[] bytes = new byte[PREFIX.length + length + SUFFIX.length];
+        System.arraycopy(PREFIX, 0, bytes, 0, PREFIX.length);
+        readFully(archive, offset, ByteBuffer.wrap(bytes, PREFIX.length, length));
+        System.arraycopy(SUFFIX, 0, bytes, PREFIX.length + length, SUFFIX.length);
+
+        // The first record can start with the end of the start tag of the UsageRecords element
+        int start = PREFIX.length;
+        while (bytes[start] != '<')
+            bytes[start++] = ' ';
+
+        UsageRecordReader reader = new UsageRecordReader(new ByteArrayInputStream(bytes));
+        try {
+            return reader.next();
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Helper method: read the header of an index
+     *
+     * @param index the index
+     * @return the number of slots or entries in the index
+     * @throws IOException if the index cannot be read
+     * @throws UsageRecordException if the file is not an index
+     */
+    private static int readHeader(FileChannel index) throws IOException, UsageRecordException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        readEntry(index, 0, header);
+        if (header.getInt(0) != IndexedArchiveWriter.INDEX_MAGIC)
+            throw new UsageRecordException("Not a ur4j archive index");
+        return header.getInt(4);
+    }
+
+    /**
+     * Helper method: the position of an entry of the user index
+     *
+     * @param entry the number of the entry
+     * @return the position in the file
+     */
+    private static long userPosition(int entry) {
+        return IndexedArchiveWriter.SORTED_HEADER_SIZE + (long) entry * IndexedArchiveWriter.SORTED_ENTRY_SIZE;
+    }
+
+    /**
+     * Helper method: fill a buffer from a position of a file
+     *
+     * @param channel the file
+     * @param position the position to read from
+     * @param buffer the buffer to fill, from its position to its limit
+     * @throws IOException if the file cannot be read or ends first
+     */
+    private static void readEntry(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        readFully(channel, position, buffer);
+    }
+
+    /**
+     * Helper method: read from a position of a file until a buffer is full
+     *
+     * @param channel the file
+     * @param position the position to read from
+     * @param buffer the buffer to fill
+     * @throws IOException if the file cannot be read or ends first
+     */
+    private static void readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new EOFException("The archive or its index is truncated");
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package es.bsc.ur4j;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Writes a UsageRecords archive file with indexes alongside it, so that records can be looked
+ * up in the archive with an IndexedArchive instead of reading the whole file.
+ * <P>
+ * The archive is an ordinary UsageRecords document, written with a UsageRecordsWriter. While
+ * it is written the writer notes where each record starts and ends in the file, and when it
+ * is closed three index files are written next to it:
+ * <P>
+ * <UL>
+ * <LI> file.rid : a hash index of the recordIds
+ * <LI> file.jid : a hash index of the GlobalJobIds and LocalJobIds
+ * <LI> file.uid : an index of the LocalUserIds and createTimes, sorted by user and then time
+ * </UL>
+ * <P>
+ * Each index entry holds a 64 bit hash of the key and the offset and length of the record in
+ * the archive; the hash indexes are open addressing tables and the user index is sorted so
+ * that the records of a user in a time range are next to each other. The keys themselves are
+ * not kept, the record found is checked against the key when it is read.
+ * <P>
+ * Adding a record to the indexes costs a flush of the XML writer into the buffered file
+ * stream and a few hashes. The entries of the records written are held in primitive arrays
+ * until close() writes the indexes: 20 bytes for the recordId of a record, 20 for each of its
+ * job ids and 28 for each of its LocalUserIds, so about 90 bytes a record, and close() needs
+ * another 4 bytes a slot or entry while it writes each index. The heap given to the JVM
+ * therefore limits how many records one archive file can hold, as well as MAX_INDEX_ENTRIES.
+ * <P>
+ * Each index holds at most MAX_INDEX_ENTRIES entries (so that a hash index, with room for
+ * twice its entries rounded up to a power of two, has at most 2^30 slots). As a record has
+ * two job ids, an archive file holds at most MAX_INDEX_ENTRIES / 2 (268,435,456) records with
+ * distinct global and local job ids; write() refuses a record that would take an index past
+ * the limit, and a larger archive has to be split into several files.
+ * <P>
+ * This class is not thread safe.
+ */
+public final class IndexedArchiveWriter implements Closeable {
+
+    static final String RECORD_ID_INDEX = ".rid";
+    static final String JOB_ID_INDEX = ".jid";
+    static final String USER_INDEX = ".uid";
+
+    // The first int of each index file
+    static final int INDEX_MAGIC = 0x55523449; // "UR4I"
+
+    // Hash index files: magic, number of slots, then slots of hash, offset, length and padding
+    static final int HASH_HEADER_SIZE = 8;
+    static final int HASH_SLOT_SIZE = 24;
+
+    // The user index: magic, number of entries, then entries of hash, time, offset and length
+    static final int SORTED_HEADER_SIZE = 8;
+    static final int SORTED_ENTRY_SIZE = 32;
+
+    /**
+     * The most entries an index of one archive file holds
+     */
+    public static final int MAX_INDEX_ENTRIES = 1 << 29;
+
+    // The most slots of a hash index, for MAX_INDEX_ENTRIES entries
+    static final long MAX_SLOTS = 1L << 30;
+
+    private final File file;
+    private final CountingOutputStream counter;
+    private final UsageRecordsWriter writer;
+
+    private final Entries recordIds = new Entries(false);
+    private final Entries jobIds = new Entries(false);
+    private final Entries users = new Entries(true);
+
+    private boolean closed;
+
+    /**
+     * Create an archive file and start writing its UsageRecords document
+     *
+     * @param file the archive file
+     * @throws IOException if the file cannot be created
+     */
+    public IndexedArchiveWriter(File file) throws IOException {
+        this.file = file;
+        counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        writer = new UsageRecordsWriter(counter);
+    }
+
+    /**
+     * Write a usage record to the archive and add it to the indexes
+     *
+     * @param record the usage record to write
+     * @throws UsageRecordException if the writer is closed, the recordId or status of the record
+     * are not set, the record would take an index past MAX_INDEX_ENTRIES, or the record cannot
+     * be written
+     */
+    public void write(UsageRecord record) throws UsageRecordException {
+        if (closed)
+            throw new UsageRecordException("The writer has been closed");
+        if (recordIds.count == MAX_INDEX_ENTRIES || jobIds.count > MAX_INDEX_ENTRIES - 2
+                || users.count > MAX_INDEX_ENTRIES - record.getUserIdCount())
+            throw new UsageRecordException("The archive cannot index more than " + MAX_INDEX_ENTRIES
+                    + " entries, write the rest of the records to another archive");
+
+        writer.flushWriter();
+        long start = counter.count;
+        writer.write(record);
+        writer.flushWriter();
+        int length = (int) (counter.count - start);
+
+        recordIds.add(hash(record.getRecordId()), 0, start, length);
+        if (record.getGlobalJobId() != null)
+            jobIds.add(hash(record.getGlobalJobId()), 0, start, length);
+        if (record.getLocalJobId() != null && !record.getLocalJobId().equals(record.getGlobalJobId()))
+            jobIds.add(hash(record.getLocalJobId()), 0, start, length);
+
+        String createTime = record.getCreateTimeinUTC();
+        long time = createTime == null ? -1 : BinaryRecordWriter.parseTime(createTime);
+        for (int i = 0; i < record.getUserIdCount(); i++) {
+            String user = record.getLocalUserId(i);
+            if (user != null)
+                users.add(hash(user), time, start, length);
+        }
+    }
+
+    /**
+     * Get the number of records written so far
+     *
+     * @return the number of records written to the archive
+     */
+    public long getRecordCount() {
+        return writer.getRecordCount();
+    }
+
+    /**
+     * End the archive document, close the file and write the indexes. Calling close() on a
+     * closed writer has no effect.
+     *
+     * @throws IOException if the archive or the indexes cannot be written
+     */
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+
+        writer.close();
+        writeHashIndex(new File(file.getPath() + RECORD_ID_INDEX), recordIds);
+        writeHashIndex(new File(file.getPath() + JOB_ID_INDEX), jobIds);
+        writeSortedIndex(new File(file.getPath() + USER_INDEX), users);
+    }
+
+    /**
+     * The 64 bit FNV-1a hash of a key, which is never 0 so that 0 can mark an empty slot
+     *
+     * @param key the key
+     * @return the hash
+     */
+    static long hash(String key) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * The slot of the hash index a hash starts probing at
+     *
+     * @param hash the hash of the key
+     * @param slots the number of slots, a power of two
+     * @return the slot
+     */
+    static long slot(long hash, long slots) {
+        return (hash ^ (hash >>> 32)) & (slots - 1);
+    }
+
+    /**
+     * The number of slots of a hash index: twice its entries, rounded up to a power of two
+     *
+     * @param entries the number of entries of the index
+     * @return the number of slots
+     * @throws UsageRecordException if there are more than MAX_INDEX_ENTRIES entries
+     */
+    static int slots(int entries) throws UsageRecordException {
+        long slots = Long.highestOneBit(Math.max(2L * entries, 1) * 2 - 1);
+        if (slots > MAX_SLOTS)
+            throw new UsageRecordException("An index cannot hold more than " + MAX_INDEX_ENTRIES + " entries");
+        return (int) slots;
+    }
+
+    /**
+     * Helper method: write a hash index with room for twice its entries
+     *
+     * @param indexFile the file to write the index to
+     * @param entries the entries of the index
+     * @throws IOException if the index cannot be written
+     */
+    private static void writeHashIndex(File indexFile, Entries entries) throws IOException {
+        int slots = slots(entries.count);
+
+        // The number of the entry in each slot, plus one so that 0 is an empty slot
+        int[] table = new int[slots];
+        for (int i = 0; i < entries.count; i++) {
+            int slot = (int) slot(entries.hashes[i], slots);
+            while (table[slot] != 0)
+                slot = (slot + 1) & (slots - 1);
+            table[slot] = i + 1;
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(slots);
+            for (int slot = 0; slot < slots; slot++) {
+                int i = table[slot] - 1;
+                out.writeLong(i < 0 ? 0 : entries.hashes[i]);
+                out.writeLong(i < 0 ? 0 : entries.offsets[i]);
+                out.writeInt(i < 0 ? 0 : entries.lengths[i]);
+                out.writeInt(0);
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Helper method: write an index sorted by hash and then time
+     *
+     * @param indexFile the file to write the index to
+     * @param entries the entries of the index
+     * @throws IOException if the index cannot be written
+     */
+    private static void writeSortedIndex(File indexFile, Entries entries) throws IOException {
+        int[] order = new int[entries.count];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        sort(order, 0, order.length, entries);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(entries.count);
+            for (int i : order) {
+                out.writeLong(entries.hashes[i]);
+                out.writeLong(entries.times[i]);
+                out.writeLong(entries.offsets[i]);
+                out.writeInt(entries.lengths[i]);
+                out.writeInt(0);
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Helper method: sort part of a permutation of the entries into the order of the user
+     * index, with a quicksort that recurses into the smaller part and finishes small parts with
+     * an insertion sort
+     *
+     * @param order the numbers of the entries
+     * @param from the first position to sort
+     * @param to the position after the last to sort
+     * @param entries the entries
+     */
+    private static void sort(int[] order, int from, int to, Entries entries) {
+        while (to - from > 16) {
+            int pivot = order[from + (to - from) / 2];
+            int i = from;
+            int j = to - 1;
+            while (i <= j) {
+                while (entries.compare(order[i], pivot) < 0)
+                    i++;
+                while (entries.compare(order[j], pivot) > 0)
+                    j--;
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i++] = order[j];
+                    order[j--] = swap;
+                }
+            }
+            if (j + 1 - from < to - i) {
+                sort(order, from, j + 1, entries);
+                from = i;
+            }
+            else {
+                sort(order, i, to, entries);
+                to = j + 1;
+            }
+        }
+
+        for (int i = from + 1; i < to; i++) {
+            int entry = order[i];
+            int j = i;
+            while (j > from && entries.compare(order[j - 1], entry) > 0) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = entry;
+        }
+    }
+
+    /**
+     * The order of the entries of the user index: by hash, then by time
+     *
+     * @param hash1 the hash of the first entry
+     * @param time1 the time of the first entry
+     * @param hash2 the hash of the second entry
+     * @param time2 the time of the second entry
+     * @return less than, equal to or greater than 0 as the first entry comes before, with or
+     * after the second
+     */
+    static int compareEntries(long hash1, long time1, long hash2, long time2) {
+        int c = Long.compare(hash1, hash2);
+        return c != 0 ? c : Long.compare(time1, time2);
+    }
+
+    /**
+     * The entries of an index, in growing parallel arrays
+     */
+    private static final class Entries {
+
+        long[] hashes = new long[64];
+        long[] times;
+        long[] offsets = new long[64];
+        int[] lengths = new int[64];
+        int count;
+
+        /**
+         * Create an empty list of entries
+         *
+         * @param timed whether the entries have times, which only the user index keeps
+         */
+        Entries(boolean timed) {
+            if (timed)
+                times = new long[64];
+        }
+
+        /**
+         * Add an entry
+         *
+         * @param hash the hash of the key
+         * @param time the createTime of the record in seconds since the epoch
+         * @param offset the offset of the record in the archive
+         * @param length the length of the record in the archive
+         */
+        void add(long hash, long time, long offset, int length) {
+            if (count == hashes.length) {
+                int capacity = count * 2;
+                hashes = Arrays.copyOf(hashes, capacity);
+                if (times != null)
+                    times = Arrays.copyOf(times, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            hashes[count] = hash;
+            if (times != null)
+                times[count] = time;
+            offsets[count] = offset;
+            lengths[count] = length;
+            count++;
+        }
+
+        /**
+         * Compare two entries in the order of the user index, putting the entries of the same
+         * user at the same time in the order of the archive
+         *
+         * @param a the number of the first entry
+         * @param b the number of the second entry
+         * @return less than, equal to or greater than 0 as the first entry comes before, with or
+         * after the second
+         */
+        int compare(int a, int b) {
+            int c = compareEntries(hashes[a], times[a], hashes[b], times[b]);
+            return c != 0 ? c : Long.compare(offsets[a], offsets[b]);
+        }
+    }
+
+    /**
+     * An output stream that counts the bytes written through it
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        /**
+         * Create a counting stream
+         *
+         * @param out the stream to write to
+         */
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package es.bsc.ur4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a UsageRecords document, optionally gzip compressed, encoding and compressing the
+ * records on several threads.
+ * <P>
+ * The records given to write() are collected into chunks of chunkSize records. Each chunk is
+ * encoded by a task on the executor into its own buffer and, when the output is compressed,
+ * compressed there as a gzip member of its own. The buffers are written to the stream in the
+ * order of the chunks, between the start and the end of the document, so the output is the
+ * same document a UsageRecordsWriter writes. Compressed, it is a series of gzip members, which
+ * is a single valid gzip stream (as written by pigz), read back whole by GZIPInputStream and
+ * by gunzip.
+ * <P>
+ * Memory is bounded: write() blocks while twice the number of processors chunks are being
+ * encoded or waiting to be written.
+ * <P>
+ * The writer should be used as follows:
+ * <P>
+ * <UL>
+ * <LI> Create the writer with the OutputStream the document should go to.
+ * <LI> Call write(UsageRecord) for each record.
+ * <LI> Call close() to write the last chunk and end the document. This also closes the
+ * underlying stream.
+ * </UL>
+ * <P>
+ * This class is not thread safe.
+ */
+public final class ParallelRecordsWriter implements Closeable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+
+    private final OutputStream stream;
+    private final boolean gzip;
+    private final ExecutorService executor;
+    private final int chunkSize;
+    private final int maxInFlight;
+    private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+
+    private UsageRecord[] chunk;
+    private int chunkCount;
+    private long recordCount;
+    private boolean closed;
+
+    /**
+     * Create a writer that encodes on the common ForkJoinPool
+     *
+     * @param stream the stream to write the document to
+     * @param gzip true to compress the document
+     * @throws UsageRecordException if the start of the document cannot be written
+     */
+    public ParallelRecordsWriter(OutputStream stream, boolean gzip) throws UsageRecordException {
+        this(stream, gzip, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Create a writer
+     *
+     * @param stream the stream to write the document to
+     * @param gzip true to compress the document
+     * @param executor the executor to encode and compress the chunks on
+     * @param chunkSize the number of records in a chunk
+     * @throws UsageRecordException if the start of the document cannot be written
+     */
+    public ParallelRecordsWriter(OutputStream stream, boolean gzip, ExecutorService executor, int chunkSize)
+            throws UsageRecordException {
+        if (executor == null)
+            throw new IllegalArgumentException("The executor must not be null");
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("The chunk size must be at least 1");
+
+        this.stream = stream;
+        this.gzip = gzip;
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+        this.maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+        this.chunk = new UsageRecord[chunkSize];
+
+        try {
+            stream.write(encode(UsageRecordsWriter.containerStart()));
+        }
+        catch (IOException e) {
+            throw new UsageRecordException(e);
+        }
+    }
+
+    /**
+     * Write a usage record to the document. A snapshot of the record is written, so the record
+     * may be changed or reused once this method returns.
+     *
+     * @param record the usage record to write
+     * @throws UsageRecordException if the writer is closed, the recordId or status of the record
+     * are not set, a string of the record holds a character that is not legal in XML, or the
+     * chunks cannot be written
+     */
+    public void write(UsageRecord record) throws UsageRecordException {
+        if (closed)
+            throw new UsageRecordException("The writer has been closed");
+        record.checkRequiredElements();
+        record.checkCharacters();
+
+        chunk[chunkCount++] = record.snapshot();
+        recordCount++;
+        if (chunkCount == chunkSize) {
+            try {
+                submitChunk();
+                while (inFlight.size() > maxInFlight)
+                    writeChunk();
+            }
+            catch (IOException e) {
+                throw new UsageRecordException(e);
+            }
+        }
+    }
+
+    /**
+     * Get the number of records written so far
+     *
+     * @return the number of records written to the document
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Write the records still in chunks, end the document and close the underlying stream.
+     * Calling close() on a closed writer has no effect. The executor is not shut down.
+     *
+     * @throws IOException if a chunk or the end of the document cannot be written, or the
+     * stream cannot be closed
+     */
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            if (chunkCount > 0)
+                submitChunk();
+            while (!inFlight.isEmpty())
+                writeChunk();
+            stream.write(encode(UsageRecordsWriter.containerEnd()));
+        }
+        finally {
+            for (Future<byte[]> future : inFlight)
+                future.cancel(false);
+            stream.close();
+        }
+    }
+
+    /**
+     * Helper method: give the current chunk to the executor to encode and start a new one
+     */
+    private void submitChunk() {
+        final UsageRecord[] records = chunk;
+        final int count = chunkCount;
+        inFlight.add(executor.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return encode(records, count);
+            }
+        }));
+
+        chunk = new UsageRecord[chunkSize];
+        chunkCount = 0;
+    }
+
+    /**
+     * Helper method: wait for the oldest chunk in flight to be encoded and write it
+     *
+     * @throws IOException if the chunk cannot be encoded or written
+     */
+    private void writeChunk() throws IOException {
+        Future<byte[]> future = inFlight.peek();
+        byte[] bytes;
+        try {
+            bytes = future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a chunk");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof UsageRecordException)
+                throw (UsageRecordException) e.getCause();
+            throw new IOException("Cannot encode a chunk: " + e.getCause().getMessage());
+        }
+        inFlight.remove();
+        stream.write(bytes);
+    }
+
+    /**
+     * Helper method: encode a chunk of records as a fragment of the document, compressed if
+     * the output is compressed
+     *
+     * @param records the records of the chunk
+     * @param count the number of records in the chunk
+     * @return the bytes of the chunk
+     * @throws IOException if the chunk cannot be compressed
+     */
+    private byte[] encode(UsageRecord[] records, int count) throws IOException {
+        ChunkBuffer buffer = new ChunkBuffer(count * 1024);
+        UsageRecordsWriter writer = new UsageRecordsWriter(buffer, true);
+        for (int i = 0; i < count; i++)
+            writer.write(records[i]);
+        writer.close();
+        return gzip ? compress(buffer.bytes, buffer.count) : Arrays.copyOf(buffer.bytes, buffer.count);
+    }
+
+    /**
+     * Helper method: the start or end of the document, compressed as a gzip member of its own
+     * if the output is compressed
+     *
+     * @param bytes the start or end of the document
+     * @return the bytes to write
+     * @throws IOException if the bytes cannot be compressed
+     */
+    private byte[] encode(byte[] bytes) throws IOException {
+        return gzip ? compress(bytes, bytes.length) : bytes;
+    }
+
+    /**
+     * Helper method: compress bytes as one gzip member
+     *
+     * @param bytes the bytes to compress
+     * @param count the number of bytes to compress
+     * @return the gzip member
+     * @throws IOException if the bytes cannot be compressed
+     */
+    private static byte[] compress(byte[] bytes, int count) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(count / 4 + 64);
+        GZIPOutputStream out = new GZIPOutputStream(compressed, 64 * 1024);
+        out.write(bytes, 0, count);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    /**
+     * The buffer a chunk is encoded into. The XML writer writes to its stream a byte at a
+     * time, so unlike ByteArrayOutputStream the writes are not synchronized.
+     */
+    private static final class ChunkBuffer extends OutputStream {
+
+        byte[] bytes;
+        int count;
+
+        /**
+         * Create a buffer
+         *
+         * @param capacity the number of bytes the buffer starts with room for
+         */
+        ChunkBuffer(int capacity) {
+            bytes = new byte[Math.max(capacity, 64)];
+        }
+
+        public void write(int b) {
+            if (count == bytes.length)
+                bytes = Arrays.copyOf(bytes, 2 * count);
+            bytes[count++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            if (count + len > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, count + len));
+            System.arraycopy(b, off, bytes, count, len);
+            count += len;
+        }
+    }
+}
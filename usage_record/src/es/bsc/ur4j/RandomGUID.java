@@ -18,7 +18,11 @@ package es.bsc.ur4j;/*
  */
 
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.security.*;
 
 /*
@@ -89,40 +93,127 @@ import java.security.*;
  * - Marc
  */
 
-public final class RandomGUID {
+public final class RandomGUID implements Comparable<RandomGUID> {
 
-    //private String valueBeforeMD5 = "";
-    private String valueAfterMD5 = "";
-    private static Random myRand;
-    private static SecureRandom mySecureRand;
+    /*
+     * How the 128 bits of a GUID are produced.
+     *
+     * MD5 and SECURE_MD5 are the original algorithm described above, hashing the
+     * host, the time and a number from the basic or the secure random generator.
+     * For SECURE_MD5 each thread has a secure generator of its own, seeded from
+     * the shared one, so threads generating secure GUIDs don't wait on each other.
+     * RANDOM skips the hash: the bits come straight from a generator owned by the
+     * calling thread (ThreadLocalRandom), and are laid out as an RFC 4122 version
+     * 4 UUID. It is not suitable where the GUIDs have to be unguessable, but it is
+     * much cheaper and doesn't contend between threads, so it is the mode used for
+     * usage record identities.
+     *
+     * TIME_ORDERED lays the GUID out like a version 7 UUID: the first 48 bits are
+     * the time in milliseconds, then a 12 bit counter, then 62 random bits.  The
+     * GUIDs (and their strings) sort in the order they were generated, in this JVM
+     * even within the same millisecond, so records stored in an index on their
+     * recordId are added next to each other rather than all over the index.
+     */
+    public static enum Mode { MD5, SECURE_MD5, RANDOM, TIME_ORDERED }
 
-    private static String s_id;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private long mostSigBits;
+    private long leastSigBits;
 
     /*
-     * Static block to take care of one time secureRandom seed.
-     * It takes a few seconds to initialize SecureRandom.  You might
-     * want to consider removing this static block or replacing
-     * it with a "time since first loaded" seed to reduce this time.
-     * This block will run only once per JVM instance.
+     * The time and counter of the last TIME_ORDERED GUID: milliseconds << 12 | counter.
      */
+    private static final AtomicLong lastTimeAndCounter = new AtomicLong();
 
-    static {
-        mySecureRand = new SecureRandom();
-        long secureInitializer = mySecureRand.nextLong();
-        myRand = new Random(secureInitializer);
-        try {
-            s_id = InetAddress.getLocalHost().toString();
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
+    /*
+     * Set by the first call of initializeInBackground(), so only one
+     * initializer thread is ever started.
+     */
+    private static final AtomicBoolean initializerStarted = new AtomicBoolean();
+
+    /*
+     * Holder for the one time secureRandom seed and the host identity, which
+     * only the MD5 modes use.  It takes a few seconds to initialize
+     * SecureRandom on a machine short of entropy, and looking up the local
+     * host can stall for as long on a node with broken DNS, so this is no
+     * longer done in a static block of RandomGUID: the JVM runs the block
+     * below the first time an MD5 GUID is generated (or when
+     * initializeInBackground() asks for it), and RANDOM GUIDs never wait
+     * for it.  This block will run only once per JVM instance.
+     */
+    private static final class Seeds {
+
+        private static final SecureRandom mySecureRand;
+        private static final Random myRand;
+        private static final String s_id;
+
+        static {
+            mySecureRand = new SecureRandom();
+            long secureInitializer = mySecureRand.nextLong();
+            myRand = new Random(secureInitializer);
+
+            String id = null;
+            try {
+                id = InetAddress.getLocalHost().toString();
+            } catch (UnknownHostException e) {
+                e.printStackTrace();
+            }
+            s_id = id;
+        }
+
+        /*
+         * Each thread's own secure generator for SECURE_MD5.  Every thread
+         * drawing from mySecureRand would queue on its lock, so a thread gets
+         * a SHA1PRNG of its own the first time it needs one, seeded with 256
+         * bits from mySecureRand; after that the threads don't share anything.
+         */
+        private static final ThreadLocal<SecureRandom> threadSecureRand = new ThreadLocal<SecureRandom>() {
+            protected SecureRandom initialValue() {
+                byte[] seed = new byte[32];
+                mySecureRand.nextBytes(seed);
+                try {
+                    // Seeded before it is first used, SHA1PRNG uses only this seed
+                    SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+                    random.setSeed(seed);
+                    return random;
+                } catch (NoSuchAlgorithmException e) {
+                    return new SecureRandom(seed);
+                }
+            }
+        };
+
+        /*
+         * Does nothing, but calling it makes the JVM run the static block.
+         */
+        private static void initialize() {
         }
     }
 
+    /*
+     * Start setting up the secure seed and host identity in a background
+     * daemon thread, so that the first MD5 GUID doesn't have to wait for
+     * them.  Returns at once; only the first call starts the thread.
+     */
+    public static void initializeInBackground() {
+        if (!initializerStarted.compareAndSet(false, true))
+            return;
+
+        Thread thread = new Thread("RandomGUID initializer") {
+            public void run() {
+                Seeds.initialize();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     /*
      * Default constructor.  With no specification of security option,
      * this constructor defaults to lower security, high performance.
      */
     public RandomGUID() {
-        getRandomGUID(false);
+        this(Mode.MD5);
     }
 
     /*
@@ -132,7 +223,151 @@ public final class RandomGUID {
      * with a single cryptographically strong random number.
      */
     public RandomGUID(boolean secure) {
-        getRandomGUID(secure);
+        this(secure ? Mode.SECURE_MD5 : Mode.MD5);
+    }
+
+    /*
+     * Constructor choosing how the GUID is generated (see Mode).
+     */
+    public RandomGUID(Mode mode) {
+        switch (mode) {
+            case RANDOM:
+                getRandomBits();
+                break;
+            case TIME_ORDERED:
+                getTimeOrderedBits();
+                break;
+            case SECURE_MD5:
+                getRandomGUID(true);
+                break;
+            default:
+                getRandomGUID(false);
+        }
+    }
+
+    /*
+     * Constructor for a GUID already held as two longs, for example one
+     * filled in by generate() or read back from storage.
+     */
+    public RandomGUID(long mostSigBits, long leastSigBits) {
+        this.mostSigBits = mostSigBits;
+        this.leastSigBits = leastSigBits;
+    }
+
+    /*
+     * Parse a GUID in the standard format written by toString().  Upper
+     * and lower case hex digits are accepted.
+     *
+     * Throws IllegalArgumentException if the string isn't a GUID.
+     */
+    public static RandomGUID fromString(String guid) {
+        if (guid.length() != 36 || guid.charAt(8) != '-' || guid.charAt(13) != '-'
+                || guid.charAt(18) != '-' || guid.charAt(23) != '-')
+            throw new IllegalArgumentException("Not a GUID: " + guid);
+
+        long msb = fromHex(guid, 0, 8);
+        msb = (msb << 16) | fromHex(guid, 9, 4);
+        msb = (msb << 16) | fromHex(guid, 14, 4);
+        long lsb = fromHex(guid, 19, 4);
+        lsb = (lsb << 48) | fromHex(guid, 24, 12);
+        return new RandomGUID(msb, lsb);
+    }
+
+    /*
+     * Read a GUID written by writeTo() from the current position of a
+     * buffer, which is moved on by 16 bytes.
+     */
+    public static RandomGUID readFrom(ByteBuffer buffer) {
+        long msb = buffer.getLong();
+        return new RandomGUID(msb, buffer.getLong());
+    }
+
+    /*
+     * Generate count GUIDs into an array of longs, each as two longs (the
+     * most then the least significant bits) starting at ids[offset], so
+     * the array needs room for 2 * count longs after offset.  No objects
+     * are created for the RANDOM and TIME_ORDERED modes: RANDOM takes the
+     * bits from the calling thread's generator, and TIME_ORDERED reserves
+     * the whole block of time and counter values with one update of the
+     * shared counter, so a thread generating GUIDs in blocks hardly ever
+     * contends with the others.  The MD5 modes create a GUID at a time.
+     */
+    public static void generate(Mode mode, long[] ids, int offset, int count) {
+        if (offset < 0 || count < 0 || offset + 2L * count > ids.length)
+            throw new IndexOutOfBoundsException("No room for " + count + " GUIDs at " + offset);
+
+        int end = offset + 2 * count;
+        switch (mode) {
+            case RANDOM: {
+                Random random = ThreadLocalRandom.current();
+                for (int i = offset; i < end; i += 2) {
+                    ids[i] = randomMostSigBits(random.nextLong());
+                    ids[i + 1] = randomLeastSigBits(random.nextLong());
+                }
+                break;
+            }
+            case TIME_ORDERED: {
+                Random random = ThreadLocalRandom.current();
+                long next = reserveTimeAndCounter(count);
+                for (int i = offset; i < end; i += 2) {
+                    ids[i] = timeOrderedMostSigBits(next++);
+                    ids[i + 1] = randomLeastSigBits(random.nextLong());
+                }
+                break;
+            }
+            default:
+                for (int i = offset; i < end; i += 2) {
+                    RandomGUID guid = new RandomGUID(mode);
+                    ids[i] = guid.mostSigBits;
+                    ids[i + 1] = guid.leastSigBits;
+                }
+        }
+    }
+
+    /*
+     * The first 64 bits of the GUID.
+     */
+    public long getMostSignificantBits() {
+        return mostSigBits;
+    }
+
+    /*
+     * The last 64 bits of the GUID.
+     */
+    public long getLeastSignificantBits() {
+        return leastSigBits;
+    }
+
+    /*
+     * Write the 16 bytes of the GUID at the current position of a buffer,
+     * in the buffer's byte order (big endian, the order of the string,
+     * unless it has been changed).
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putLong(mostSigBits);
+        buffer.putLong(leastSigBits);
+    }
+
+    public boolean equals(Object obj) {
+        if (!(obj instanceof RandomGUID))
+            return false;
+        RandomGUID other = (RandomGUID) obj;
+        return mostSigBits == other.mostSigBits && leastSigBits == other.leastSigBits;
+    }
+
+    public int hashCode() {
+        long bits = mostSigBits ^ leastSigBits;
+        return (int) (bits >> 32) ^ (int) bits;
+    }
+
+    /*
+     * GUIDs are compared as unsigned 128 bit numbers, which is the order
+     * of their strings, so TIME_ORDERED GUIDs compare in the order they
+     * were generated.
+     */
+    public int compareTo(RandomGUID other) {
+        int result = Long.compareUnsigned(mostSigBits, other.mostSigBits);
+        return result != 0 ? result : Long.compareUnsigned(leastSigBits, other.leastSigBits);
     }
 
     /*
@@ -153,9 +388,9 @@ public final class RandomGUID {
             long rand;
 
             if (secure) {
-                rand = mySecureRand.nextLong();
+                rand = Seeds.threadSecureRand.get().nextLong();
             } else {
-                rand = myRand.nextLong();
+                rand = Seeds.myRand.nextLong();
             }
 
             // This StringBuffer can be a long as you need; the MD5
@@ -164,7 +399,7 @@ public final class RandomGUID {
             // You could even stream a file through the MD5 making
             // the odds of guessing it at least as great as that
             // of guessing the contents of the file!
-            sbValueBeforeMD5.append(s_id);
+            sbValueBeforeMD5.append(Seeds.s_id);
             sbValueBeforeMD5.append(":");
             sbValueBeforeMD5.append(Long.toString(time));
             sbValueBeforeMD5.append(":");
@@ -174,38 +409,116 @@ public final class RandomGUID {
             md5.update(valueBeforeMD5.getBytes());
 
             byte[] array = md5.digest();
-            StringBuffer sb = new StringBuffer();
-            for (byte anArray : array) {
-                int b = anArray & 0xFF;
-                if (b < 0x10) sb.append('0');
-                sb.append(Integer.toHexString(b));
-            }
-
-            valueAfterMD5 = sb.toString();
+            for (int i = 0; i < 8; i++)
+                mostSigBits = (mostSigBits << 8) | (array[i] & 0xFF);
+            for (int i = 8; i < 16; i++)
+                leastSigBits = (leastSigBits << 8) | (array[i] & 0xFF);
 
         } catch (Exception e) {
             System.out.println("Error:" + e);
         }
     }
 
+    /*
+     * Method to generate the GUID straight from the calling thread's
+     * random generator.
+     */
+    private void getRandomBits() {
+        Random random = ThreadLocalRandom.current();
+        mostSigBits = randomMostSigBits(random.nextLong());
+        leastSigBits = randomLeastSigBits(random.nextLong());
+    }
+
+    /*
+     * Method to generate a time ordered GUID.
+     */
+    private void getTimeOrderedBits() {
+        mostSigBits = timeOrderedMostSigBits(reserveTimeAndCounter(1));
+        leastSigBits = randomLeastSigBits(ThreadLocalRandom.current().nextLong());
+    }
+
+    /*
+     * Reserve count consecutive time and counter values for TIME_ORDERED
+     * GUIDs, returning the first.  If the clock hasn't moved on (or has
+     * gone back) since the last GUID the counter carries on from where it
+     * was instead, carrying into the time if it runs out, so the GUIDs from
+     * this JVM always increase.
+     */
+    private static long reserveTimeAndCounter(int count) {
+        long now = System.currentTimeMillis() << 12;
+        long last;
+        long first;
+        do {
+            last = lastTimeAndCounter.get();
+            first = now > last ? now : last + 1;
+        } while (!lastTimeAndCounter.compareAndSet(last, first + count - 1));
+        return first;
+    }
+
+    /*
+     * The first 64 bits of a random GUID, with the version (4) set.
+     */
+    private static long randomMostSigBits(long bits) {
+        return (bits & ~0xF000L) | 0x4000L;
+    }
+
+    /*
+     * The last 64 bits of a GUID, with the variant (RFC 4122) set.
+     */
+    private static long randomLeastSigBits(long bits) {
+        return (bits & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+    }
+
+    /*
+     * The first 64 bits of a time ordered GUID, with the version (7) set.
+     */
+    private static long timeOrderedMostSigBits(long timeAndCounter) {
+        return ((timeAndCounter >>> 12) << 16) | 0x7000L | (timeAndCounter & 0xFFFL);
+    }
+
     /*
      * Convert to the standard format for GUID
      * (Useful for SQL Server UniqueIdentifiers, etc.)
      * Example: C2FEEEAC-CFCD-11D1-8B05-00600806D9B6
+     *
+     * The hex digits are written straight into the characters of the
+     * result, so the only object created is the String returned.
      */
     public String toString() {
-        String raw = valueAfterMD5.toUpperCase();
-        StringBuffer sb = new StringBuffer();
-        sb.append(raw.substring(0, 8));
-        sb.append("-");
-        sb.append(raw.substring(8, 12));
-        sb.append("-");
-        sb.append(raw.substring(12, 16));
-        sb.append("-");
-        sb.append(raw.substring(16, 20));
-        sb.append("-");
-        sb.append(raw.substring(20));
-
-        return sb.toString();
+        char[] chars = new char[36];
+        toHex(chars, 0, mostSigBits >>> 32, 8);
+        chars[8] = '-';
+        toHex(chars, 9, mostSigBits >>> 16, 4);
+        chars[13] = '-';
+        toHex(chars, 14, mostSigBits, 4);
+        chars[18] = '-';
+        toHex(chars, 19, leastSigBits >>> 48, 4);
+        chars[23] = '-';
+        toHex(chars, 24, leastSigBits, 12);
+        return new String(chars);
+    }
+
+    /*
+     * Write the lowest digits of a value as upper case hex digits.
+     */
+    private static void toHex(char[] chars, int offset, long value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            chars[i] = HEX_DIGITS[(int) value & 0xF];
+            value >>>= 4;
+        }
+    }
+
+    /*
+     * Read hex digits of a string as a value.
+     */
+    private static long fromHex(String s, int offset, int digits) {
+        long value = 0;
+        for (int i = offset; i < offset + digits; i++) {
+            int digit = Character.digit(s.charAt(i), 16);
+            if (digit < 0)
+                throw new IllegalArgumentException("Not a GUID: " + s);
+            value = (value << 4) | digit;
+        }
+        return value;
     }
 }
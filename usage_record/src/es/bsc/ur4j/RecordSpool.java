@@ -0,0 +1,631 @@
+package es.bsc.ur4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A crash safe spool for usage records waiting to be delivered, so that records survive the
+ * node going down between the end of a job and the delivery of its record.
+ * <P>
+ * Serialized records are appended to segment files in a directory. Each segment is a fixed
+ * size file mapped into memory, so an append is a copy into the mapping with no system call;
+ * when a segment is full a new one is started. Each entry is written as its length, a CRC32
+ * of its bytes and the bytes themselves, so an entry torn by a crash is recognised and the
+ * spool is recovered up to the entry before it.
+ * <P>
+ * Appended records are made durable by sync(), which forces the mapped segment to disk. Syncs
+ * are group commits: when several threads call sync() at once one of them forces the segment
+ * for all of them, so the cost of the force is shared by every record appended since the last
+ * one. Once records have been delivered, checkpoint() records how far delivery has got and
+ * deletes the segments before it. When the spool is opened again, replay() returns the entries
+ * after the checkpoint, the ones that still have to be delivered.
+ * <P>
+ * Positions in the spool are longs: the segment number in the high 32 bits and the offset in
+ * the segment in the low 32 bits, so positions increase along the spool.
+ * <P>
+ * The spool should be used as follows:
+ * <P>
+ * <UL>
+ * <LI> Open the spool on its directory and deliver the records returned by replay().
+ * <LI> Call append() for each new record, then sync() before the record is acknowledged.
+ * <LI> Call checkpoint() with the position returned by append() once the record is delivered.
+ * <LI> Call close() to sync the spool and close the segment.
+ * </UL>
+ * <P>
+ * This class is thread safe.
+ */
+public final class RecordSpool implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 8; // length and CRC32
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final int segmentSize;
+
+    // Guarded by this: the segment being appended to and the position of the next entry
+    private int segmentNumber;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long writePosition;
+    private long checkpoint;
+    private boolean closed;
+
+    // Guarded by syncLock: how far the spool is known to be on disk, and if a sync is running
+    private final Object syncLock = new Object();
+    private long durablePosition;
+    private boolean syncing;
+
+    /**
+     * Open the spool in a directory, with the default segment size. The directory is created
+     * if it doesn't exist; if it holds a spool, the spool is recovered.
+     *
+     * @param directory the directory of the spool
+     * @throws IOException if the spool cannot be opened
+     */
+    public RecordSpool(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open the spool in a directory. The directory is created if it doesn't exist; if it holds
+     * a spool, the spool is recovered: the write position is put after the last whole entry of
+     * the last segment and anything torn after it is cleared.
+     *
+     * @param directory the directory of the spool
+     * @param segmentSize the size of new segment files in bytes, which limits the size of a record
+     * @throws IOException if the spool cannot be opened
+     */
+    public RecordSpool(File directory, int segmentSize) throws IOException {
+        if (segmentSize <= HEADER_SIZE)
+            throw new IllegalArgumentException("The segment size is too small: " + segmentSize);
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create the spool directory " + directory);
+
+        int[] segments = segmentNumbers();
+        checkpoint = readCheckpoint();
+        if (checkpoint < 0)
+            checkpoint = segments.length == 0 ? 0 : position(segments[0], 0);
+
+        if (segments.length == 0) {
+            openSegment(segmentNumber(checkpoint));
+            writePosition = position(segmentNumber, 0);
+        }
+        else {
+            openSegment(segments[segments.length - 1]);
+            writePosition = position(segmentNumber, recoverTail());
+        }
+        durablePosition = writePosition;
+    }
+
+    /**
+     * Append a serialized record to the spool. The record is not durable until sync() has
+     * been called.
+     *
+     * @param record the bytes of the record
+     * @return the position after the record, to pass to checkpoint() once it has been delivered
+     * @throws IOException if a new segment cannot be started
+     * @throws UsageRecordException if the spool is closed, or the record is empty or larger than
+     * a segment
+     */
+    public long append(byte[] record) throws IOException, UsageRecordException {
+        // A length of 0 marks the end of a segment, so an empty entry would hide those after it
+        if (record.length == 0)
+            throw new UsageRecordException("An empty record cannot be spooled");
+        if (record.length > segmentSize - HEADER_SIZE)
+            throw new UsageRecordException("The record is larger than a spool segment: " + record.length + " bytes");
+
+        // Worked out before taking the lock, so appending threads only queue for the copy
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+
+        synchronized (this) {
+            if (closed)
+                throw new UsageRecordException("The spool has been closed");
+
+            int offset = offset(writePosition);
+            if (offset + HEADER_SIZE + record.length > segment.capacity()) {
+                // Full: the rest of this segment stays zero, which marks its end
+                segment.force();
+                openSegment(segmentNumber + 1);
+                offset = 0;
+            }
+
+            // The bytes go in before the length, so a reader never sees a length without its entry
+            segment.position(offset + HEADER_SIZE);
+            segment.put(record);
+            segment.putInt(offset + 4, (int) crc.getValue());
+            segment.putInt(offset, record.length);
+
+            writePosition = position(segmentNumber, offset + HEADER_SIZE + record.length);
+            return writePosition;
+        }
+    }
+
+    /**
+     * Append a usage record to the spool, serialized with toXml() as UTF-8. Entries written
+     * by this method can be read back with a UsageRecordReader.
+     *
+     * @param record the record
+     * @return the position after the record, to pass to checkpoint() once it has been delivered
+     * @throws IOException if a new segment cannot be started
+     * @throws UsageRecordException if the record cannot be serialized or the spool is closed
+     */
+    public long append(UsageRecord record) throws IOException, UsageRecordException {
+        return append(record.toXml().getBytes(UTF8));
+    }
+
+    /**
+     * Make every record appended before this call durable. If another thread is already
+     * forcing the spool to disk this waits for it and, if that wasn't enough, forces it once
+     * more for every thread waiting, so concurrent syncs share the cost of one force.
+     *
+     * @throws IOException if the spool cannot be forced to disk or the thread is interrupted
+     */
+    public void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            target = writePosition;
+        }
+        syncTo(target);
+    }
+
+    /**
+     * Helper method: make every entry before a position durable, as sync() does
+     *
+     * @param target the position
+     * @throws IOException if the spool cannot be forced to disk or the thread is interrupted
+     */
+    private void syncTo(long target) throws IOException {
+        while (true) {
+            synchronized (syncLock) {
+                while (syncing && durablePosition < target) {
+                    try {
+                        syncLock.wait();
+                    }
+                    catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted while waiting for the spool to sync");
+                    }
+                }
+                if (durablePosition >= target)
+                    return;
+                syncing = true;
+            }
+
+            long position;
+            MappedByteBuffer buffer;
+            synchronized (this) {
+                position = writePosition;
+                buffer = segment;
+            }
+
+            boolean forced = false;
+            try {
+                // The segments before this one were forced when they were filled
+                buffer.force();
+                forced = true;
+            }
+            finally {
+                synchronized (syncLock) {
+                    syncing = false;
+                    if (forced && position > durablePosition)
+                        durablePosition = position;
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Record that every entry before a position has been delivered, so that replay() starts
+     * after them when the spool is opened again, and delete the segments before it. The
+     * checkpoint is written to a new file which replaces the old one, so it is never torn.
+     * The entries before the position are synced first if they have not been, so that the
+     * checkpoint is never past the end of the spool recovered after a crash.
+     *
+     * @param position a position returned by append()
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public synchronized void checkpoint(long position) throws IOException {
+        if (position <= checkpoint)
+            return;
+        if (position > writePosition)
+            throw new UsageRecordException("Cannot checkpoint past the end of the spool");
+        syncTo(position);
+
+        ByteBuffer bytes = ByteBuffer.allocate(12);
+        bytes.putLong(position);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), 0, 8);
+        bytes.putInt((int) crc.getValue());
+
+        File temporary = new File(directory, CHECKPOINT + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            out.write(bytes.array());
+            out.getChannel().force(true);
+        }
+        finally {
+            out.close();
+        }
+        Files.move(temporary.toPath(), new File(directory, CHECKPOINT).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        checkpoint = position;
+
+        for (int number : segmentNumbers()) {
+            if (number < segmentNumber(position) && number < segmentNumber)
+                new File(directory, segmentName(number)).delete();
+        }
+    }
+
+    /**
+     * Get the position of the checkpoint: the entries before it have been delivered
+     *
+     * @return the position of the checkpoint
+     */
+    public synchronized long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Get the position the next record will be appended at (or after, if it starts a new segment)
+     *
+     * @return the end of the spool
+     */
+    public synchronized long getWritePosition() {
+        return writePosition;
+    }
+
+    /**
+     * Read the entries between the checkpoint and the end of the spool as it is now, in the
+     * order they were appended
+     *
+     * @return an iterator over the bytes of the entries
+     * @throws UsageRecordException if the spool is closed
+     */
+    public synchronized Replay replay() throws UsageRecordException {
+        if (closed)
+            throw new UsageRecordException("The spool has been closed");
+        return new Replay(checkpoint, writePosition);
+    }
+
+    /**
+     * Sync the spool and close the segment. Calling close() again does nothing.
+     *
+     * @throws IOException if the spool cannot be forced to disk
+     */
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        segment.force();
+        channel.close();
+    }
+
+    /**
+     * Reads the entries between two positions of the spool. Each segment is mapped read-only
+     * as it is reached. Entries appended after the replay was created are not returned.
+     */
+    public final class Replay implements Iterator<byte[]> {
+
+        private final long end;
+        private long position;
+        private long returnedPosition;
+        private int mappedNumber = -1;
+        private MappedByteBuffer mapped;
+        private byte[] next;
+
+        /**
+         * Create a replay
+         *
+         * @param start the position of the first entry
+         * @param end the position after the last entry
+         */
+        private Replay(long start, long end) {
+            this.position = start;
+            this.returnedPosition = start;
+            this.end = end;
+        }
+
+        /**
+         * Test if there is another entry before the end of the replay
+         *
+         * @return true if next() will return an entry
+         * @throws UsageRecordException if the spool cannot be read or an entry is corrupt
+         */
+        public boolean hasNext() throws UsageRecordException {
+            if (next != null)
+                return true;
+
+            while (position < end) {
+                int number = segmentNumber(position);
+                int offset = offset(position);
+                try {
+                    map(number);
+                }
+                catch (IOException e) {
+                    throw new UsageRecordException(e);
+                }
+
+                int length = offset + HEADER_SIZE <= mapped.capacity() ? mapped.getInt(offset) : 0;
+                if (length == 0) {
+                    // The end of this segment: go on to the next one
+                    position = position(number + 1, 0);
+                    continue;
+                }
+
+                next = readEntry(mapped, offset, length);
+                if (next == null)
+                    throw new UsageRecordException("Corrupt spool entry at segment " + number + " offset " + offset);
+                position = position(number, offset + HEADER_SIZE + length);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Get the next entry
+         *
+         * @return the bytes of the entry
+         * @throws NoSuchElementException if there are no more entries
+         * @throws UsageRecordException if the spool cannot be read or an entry is corrupt
+         */
+        public byte[] next() throws UsageRecordException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            byte[] entry = next;
+            next = null;
+            returnedPosition = position;
+            return entry;
+        }
+
+        /**
+         * Get the position after the entry last returned by next(), to pass to checkpoint()
+         * once the entry has been delivered
+         *
+         * @return the position after the last entry returned
+         */
+        public long getPosition() {
+            return returnedPosition;
+        }
+
+        /**
+         * Entries cannot be removed from the spool, use checkpoint()
+         *
+         * @throws UnsupportedOperationException always
+         */
+        public void remove() {
+            throw new UnsupportedOperationException("Entries cannot be removed from the spool, use checkpoint()");
+        }
+
+        /**
+         * Helper method: map a segment read-only, unless it is the one already mapped
+         *
+         * @param number the number of the segment
+         * @throws IOException if the segment cannot be mapped
+         */
+        private void map(int number) throws IOException {
+            if (number == mappedNumber)
+                return;
+
+            RandomAccessFile file = new RandomAccessFile(new File(directory, segmentName(number)), "r");
+            try {
+                mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                mappedNumber = number;
+            }
+            finally {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Helper method: map a segment for appending, creating it if it doesn't exist
+     *
+     * @param number the number of the segment
+     * @throws IOException if the segment cannot be created or mapped
+     */
+    private void openSegment(int number) throws IOException {
+        File file = new File(directory, segmentName(number));
+        boolean created = !file.exists();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long size = created ? segmentSize : raf.length();
+        if (created)
+            raf.setLength(size);
+
+        if (channel != null)
+            channel.close();
+        channel = raf.getChannel();
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        segmentNumber = number;
+
+        if (created)
+            syncDirectory();
+    }
+
+    /**
+     * Helper method: find the end of the entries in the last segment, and clear whatever is
+     * after it. A crash can leave a torn entry, or entries after one whose pages were lost;
+     * they were never synced, and are cleared so they can't be mistaken for new entries later.
+     *
+     * @return the offset after the last whole entry
+     */
+    private int recoverTail() {
+        int offset = 0;
+        while (offset + HEADER_SIZE <= segment.capacity()) {
+            int length = segment.getInt(offset);
+            if (length <= 0 || length > segment.capacity() - offset - HEADER_SIZE
+                    || readEntry(segment, offset, length) == null)
+                break;
+            offset += HEADER_SIZE + length;
+        }
+
+        // Only pages that aren't zero already are written
+        boolean cleared = false;
+        int capacity = segment.capacity();
+        int i = offset;
+        for (; i < capacity && (i & 7) != 0; i++) {
+            if (segment.get(i) != 0) {
+                segment.put(i, (byte) 0);
+                cleared = true;
+            }
+        }
+        for (; i + 8 <= capacity; i += 8) {
+            if (segment.getLong(i) != 0) {
+                segment.putLong(i, 0);
+                cleared = true;
+            }
+        }
+        for (; i < capacity; i++) {
+            if (segment.get(i) != 0) {
+                segment.put(i, (byte) 0);
+                cleared = true;
+            }
+        }
+        if (cleared)
+            segment.force();
+        return offset;
+    }
+
+    /**
+     * Helper method: read an entry and check its CRC
+     *
+     * @param buffer the segment holding the entry
+     * @param offset the offset of the entry
+     * @param length the length of the entry
+     * @return the bytes of the entry, or null if they don't match the CRC
+     */
+    private static byte[] readEntry(ByteBuffer buffer, int offset, int length) {
+        byte[] entry = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + HEADER_SIZE);
+        view.get(entry);
+
+        CRC32 crc = new CRC32();
+        crc.update(entry, 0, length);
+        return (int) crc.getValue() == buffer.getInt(offset + 4) ? entry : null;
+    }
+
+    /**
+     * Helper method: read the checkpoint file
+     *
+     * @return the checkpoint, or -1 if there is no (whole) checkpoint file
+     * @throws IOException if the file cannot be read
+     */
+    private long readCheckpoint() throws IOException {
+        File file = new File(directory, CHECKPOINT);
+        if (file.length() != 12)
+            return -1;
+
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), 0, 8);
+        long position = bytes.getLong();
+        return bytes.getInt() == (int) crc.getValue() ? position : -1;
+    }
+
+    /**
+     * Helper method: get the numbers of the segments in the directory, in order
+     *
+     * @return the segment numbers
+     */
+    private int[] segmentNumbers() {
+        String[] names = directory.list();
+        int[] numbers = new int[names == null ? 0 : names.length];
+        int count = 0;
+        for (int i = 0; i < numbers.length; i++) {
+            String name = names[i];
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    numbers[count] = Integer.parseInt(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    count++;
+                }
+                catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Helper method: force the directory to disk so that new and renamed files survive a crash.
+     * Not every platform can open a directory, in which case this does nothing.
+     */
+    private void syncDirectory() {
+        try {
+            FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            try {
+                dir.force(true);
+            }
+            finally {
+                dir.close();
+            }
+        }
+        catch (IOException e) {
+            // The platform can't sync a directory
+        }
+    }
+
+    /**
+     * Helper method: get the file name of a segment
+     *
+     * @param number the number of the segment
+     * @return the file name
+     */
+    private static String segmentName(int number) {
+        return SEGMENT_PREFIX + String.format("%010d", number) + SEGMENT_SUFFIX;
+    }
+
+    /**
+     * Helper method: get the position of an offset in a segment
+     *
+     * @param segment the number of the segment
+     * @param offset the offset in the segment
+     * @return the position in the spool
+     */
+    private static long position(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    /**
+     * Helper method: get the segment of a position
+     *
+     * @param position the position in the spool
+     * @return the number of the segment
+     */
+    private static int segmentNumber(long position) {
+        return (int) (position >>> 32);
+    }
+
+    /**
+     * Helper method: get the offset of a position in its segment
+     *
+     * @param position the position in the spool
+     * @return the offset in the segment
+     */
+    private static int offset(long position) {
+        return (int) position;
+    }
+}
@@ -0,0 +1,385 @@
+package es.bsc.ur4j;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Sends usage records to a Resource Usage Service (RUS) over HTTP, in batches.
+ * <P>
+ * Records are not sent one request each. send() puts a snapshot of the record on a bounded
+ * queue and returns; a background thread collects the queued records into a UsageRecords
+ * document of up to batchSize records, or of whatever has arrived when maxDelay has passed
+ * since the first record of the batch, and POSTs it to the service. Several batches can be in
+ * flight at once, each on its own sender thread, and the connections are kept alive between
+ * requests so they are reused.
+ * <P>
+ * A batch the service cannot take at the moment (a failed connection, a server error or too
+ * many requests) is retried, waiting twice as long each time, up to maxRetries times and then
+ * dropped and counted as failed. A batch the service rejects with any other status is dropped
+ * and counted as failed at once. Memory is bounded: there are never more than queueCapacity records waiting and
+ * maxInFlight batches being sent or retried. When the service slows down the batches in flight
+ * take longer, the queue fills up, and send() blocks until there is room, which slows the
+ * producers down to the rate the service can take.
+ * <P>
+ * The sender should be used as follows:
+ * <P>
+ * <UL>
+ * <LI> Create the sender with the URL of the service.
+ * <LI> Call send(UsageRecord) for each record, from any number of threads.
+ * <LI> Call close() to send the records still queued and stop the threads.
+ * </UL>
+ * <P>
+ * This class is thread safe.
+ */
+public final class RusSender implements Closeable {
+
+    private static final Logger log = Logger.getLogger(RusSender.class.getName());
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final long DEFAULT_MAX_DELAY = 1000;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+    private static final long RETRY_DELAY = 100;
+    private static final long POLL_INTERVAL = 100;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 60000;
+
+    private final URL url;
+    private final int batchSize;
+    private final long maxDelay;
+    private final int maxRetries;
+
+    private final BlockingQueue<UsageRecord> queue;
+    private final Semaphore inFlight;
+    private final ExecutorService senders;
+    private final Thread batcher;
+
+    // send() holds the read lock while it queues a record, close() takes the write lock to stop
+    // new records, so no record is queued after the batcher has seen the sender is closed
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+
+    private final AtomicLong sentRecords = new AtomicLong();
+    private final AtomicLong sentBatches = new AtomicLong();
+    private final AtomicLong failedRecords = new AtomicLong();
+
+    /**
+     * Create a sender with the default batching, in flight, queue and retry limits
+     *
+     * @param url the URL the service accepts UsageRecords documents on
+     */
+    public RusSender(URL url) {
+        this(url, DEFAULT_BATCH_SIZE, DEFAULT_MAX_DELAY, DEFAULT_MAX_IN_FLIGHT, DEFAULT_QUEUE_CAPACITY,
+                DEFAULT_MAX_RETRIES);
+    }
+
+    /**
+     * Create a sender
+     *
+     * @param url the URL the service accepts UsageRecords documents on
+     * @param batchSize the most records sent in one request
+     * @param maxDelay the longest a record waits for its batch to fill up, in milliseconds
+     * @param maxInFlight the most batches being sent (or waiting to be retried) at once
+     * @param queueCapacity the most records waiting to be put in a batch before send() blocks
+     * @param maxRetries how many times a batch is retried before it is dropped
+     * @throws IllegalArgumentException if a limit is not positive, or maxRetries is negative
+     */
+    public RusSender(URL url, int batchSize, long maxDelay, int maxInFlight, int queueCapacity,
+                     int maxRetries) {
+        if (batchSize <= 0 || maxDelay <= 0 || maxInFlight <= 0 || queueCapacity <= 0 || maxRetries < 0)
+            throw new IllegalArgumentException("The batching, in flight and queue limits must be positive");
+
+        this.url = url;
+        this.batchSize = batchSize;
+        this.maxDelay = maxDelay;
+        this.maxRetries = maxRetries;
+
+        queue = new ArrayBlockingQueue<UsageRecord>(queueCapacity);
+        inFlight = new Semaphore(maxInFlight);
+        senders = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "RusSender sender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        batcher = new Thread("RusSender batcher") {
+            public void run() {
+                collectBatches();
+            }
+        };
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    /**
+     * Queue a record to be sent. A snapshot of the record is queued, so the record may be
+     * changed or reused once this method returns. Blocks while the queue is full.
+     *
+     * @param record the record to send
+     * @throws UsageRecordException if the record has no recordId or status, holds a character
+     * that is not legal in XML, or the sender has been closed
+     * @throws InterruptedException if the thread is interrupted while waiting for room
+     */
+    public void send(UsageRecord record) throws UsageRecordException, InterruptedException {
+        record.checkRequiredElements();
+        record.checkCharacters();
+        UsageRecord snapshot = record.snapshot();
+
+        closeLock.readLock().lock();
+        try {
+            if (closed)
+                throw new UsageRecordException("The sender has been closed");
+            queue.put(snapshot);
+        }
+        finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of records the service has accepted
+     *
+     * @return the number of records sent
+     */
+    public long getSentRecords() {
+        return sentRecords.get();
+    }
+
+    /**
+     * Get the number of requests the service has accepted
+     *
+     * @return the number of batches sent
+     */
+    public long getSentBatches() {
+        return sentBatches.get();
+    }
+
+    /**
+     * Get the number of records dropped because they could not be written or the service
+     * would not accept them
+     *
+     * @return the number of records that could not be written, or were in batches that the
+     * service rejected or that failed after every retry
+     */
+    public long getFailedRecords() {
+        return failedRecords.get();
+    }
+
+    /**
+     * Send the records still queued, wait for every batch to be sent (or to fail), and stop
+     * the threads. Calling close() again does nothing.
+     *
+     * @throws IOException if the thread is interrupted while waiting
+     */
+    public void close() throws IOException {
+        closeLock.writeLock().lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+        }
+        finally {
+            closeLock.writeLock().unlock();
+        }
+
+        try {
+            batcher.join();
+            senders.shutdown();
+            while (!senders.awaitTermination(1, TimeUnit.SECONDS))
+                log.debug("Waiting for the batches in flight to be sent");
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while closing the sender");
+        }
+    }
+
+    /**
+     * Helper method: the batcher thread. Collects the queued records into batches and hands
+     * them to the sender threads until the sender is closed and the queue is empty.
+     */
+    private void collectBatches() {
+        try {
+            List<UsageRecord> batch = new ArrayList<UsageRecord>(batchSize);
+            while (true) {
+                // Polled rather than taken so that close() is noticed when the queue is empty
+                UsageRecord first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed && queue.isEmpty())
+                        return;
+                    continue;
+                }
+
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelay);
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0)
+                        continue;
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || closed) {
+                        // The records queued between the drain and close() still join this batch
+                        queue.drainTo(batch, batchSize - batch.size());
+                        break;
+                    }
+                    UsageRecord next = queue.poll(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL)),
+                            TimeUnit.NANOSECONDS);
+                    if (next != null)
+                        batch.add(next);
+                }
+
+                dispatch(batch);
+                batch = new ArrayList<UsageRecord>(batchSize);
+            }
+        }
+        catch (InterruptedException e) {
+            log.error("The RusSender batcher was interrupted, " + queue.size() + " records were not sent");
+        }
+    }
+
+    /**
+     * Helper method: write a batch as a UsageRecords document and hand it to a sender thread,
+     * waiting while there are already maxInFlight batches in flight. A record that cannot be
+     * written is left out of the batch and counted as failed.
+     *
+     * @param batch the records to send
+     * @throws InterruptedException if the batcher is interrupted while waiting
+     */
+    private void dispatch(List<UsageRecord> batch) throws InterruptedException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024 * batch.size());
+        UsageRecordsWriter writer = new UsageRecordsWriter(bytes);
+        for (UsageRecord record : batch) {
+            try {
+                writer.write(record);
+            }
+            catch (UsageRecordException e) {
+                log.error("Dropped usage record " + record.getRecordId() + " for " + url + ": " + e.getMessage());
+                failedRecords.incrementAndGet();
+            }
+        }
+        try {
+            writer.close();
+        }
+        catch (IOException e) {
+            throw new UsageRecordException(e); // cannot happen with a ByteArrayOutputStream
+        }
+
+        final byte[] document = bytes.toByteArray();
+        final int records = (int) writer.getRecordCount();
+        if (records == 0)
+            return;
+
+        inFlight.acquire();
+        senders.execute(new Runnable() {
+            public void run() {
+                try {
+                    sendBatch(document, records);
+                }
+                finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Helper method: POST a batch to the service, retrying until it is accepted or the retries
+     * run out. A failed connection, a server error (5xx) or too many requests (429) is retried,
+     * any other status is a rejection of the batch itself and it is dropped at once.
+     *
+     * @param document the UsageRecords document
+     * @param records the number of records in the document
+     */
+    private void sendBatch(byte[] document, int records) {
+        long delay = RETRY_DELAY;
+        for (int attempt = 0; ; attempt++) {
+            String problem;
+            try {
+                int status = post(document);
+                if (status >= 200 && status < 300) {
+                    sentRecords.addAndGet(records);
+                    sentBatches.incrementAndGet();
+                    return;
+                }
+                problem = "HTTP status " + status;
+                if (status < 500 && status != 429) {
+                    log.error("The service rejected a batch of " + records + " usage records for " + url + ": "
+                            + problem);
+                    failedRecords.addAndGet(records);
+                    return;
+                }
+            }
+            catch (IOException e) {
+                problem = e.toString();
+            }
+
+            if (attempt == maxRetries) {
+                log.error("Dropped a batch of " + records + " usage records for " + url + ": " + problem);
+                failedRecords.addAndGet(records);
+                return;
+            }
+
+            log.warn("Retrying a batch of " + records + " usage records for " + url + ": " + problem);
+            try {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e) {
+                failedRecords.addAndGet(records);
+                return;
+            }
+            delay *= 2;
+        }
+    }
+
+    /**
+     * Helper method: POST a document to the service. The response is read to the end and the
+     * connection is not disconnected, so it is kept alive and reused for the next request.
+     *
+     * @param document the UsageRecords document
+     * @return the HTTP status of the response
+     * @throws IOException if the request fails
+     */
+    private int post(byte[] document) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setRequestProperty("Content-Type", "text/xml; charset=UTF-8");
+        connection.setFixedLengthStreamingMode(document.length);
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(document);
+        }
+        finally {
+            out.close();
+        }
+
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            try {
+                byte[] buffer = new byte[1024];
+                while (in.read(buffer) >= 0) {
+                    // discard the response body so the connection can be reused
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        return status;
+    }
+}
@@ -0,0 +1,475 @@
+package es.bsc.ur4j;
+
+import java.util.*;
+
+/**
+ * Rolls usage records up into totals per user, per project and per time window, in one pass
+ * over any number of records.
+ * <P>
+ * Each record is added to a group for each of its user identities (or project names, as
+ * chosen when the aggregator is created) and for the time window its createTime falls in.
+ * A group holds the number of records, the sum of their charges and, for each of Disk,
+ * Network and Memory, the sizes of the entries combined according to their metric: entries
+ * with a total metric (or none) are summed, min and max entries keep the smallest and largest
+ * value seen, and average entries are averaged. Network and Memory sizes are converted to
+ * bytes from their storage unit with UsageRecord.Unit.toBytes() (KB being 1024 bytes, and
+ * sizes in bits rounded down to whole bytes); Disk entries have no unit and are taken as they
+ * are.
+ * <P>
+ * The records are not kept. The groups are kept in flat primitive arrays with an open
+ * addressing hash table on (name, window), and the names are held once each and referred to by
+ * number, so the memory used grows with the number of groups and never with the number of
+ * records. Adding a record reads its fields in place, without copying them.
+ * <P>
+ * To aggregate with several threads give each thread its own aggregator and merge() them
+ * when the threads are done.
+ * <P>
+ * This class is not thread safe.
+ */
+public final class UsageAggregator {
+
+    /** The property a record is grouped by */
+    public static enum Dimension { LocalUserId, GlobalUserName, ProjectName, None }
+
+    /** The differentiated properties that are aggregated */
+    public static enum Resource { Disk, Network, Memory }
+
+    // The values of each group, at group * STRIDE: the charge, then for each resource the
+    // total, min, max, sum of the averages and number of averages. The values of resource r
+    // are at r * RESOURCE_VALUES + TOTAL to r * RESOURCE_VALUES + AVERAGE_COUNT.
+    private static final int CHARGE = 0;
+    private static final int TOTAL = 1;
+    private static final int MIN = 2;
+    private static final int MAX = 3;
+    private static final int AVERAGE_SUM = 4;
+    private static final int AVERAGE_COUNT = 5;
+    private static final int RESOURCE_VALUES = 5;
+    private static final int STRIDE = 1 + 3 * RESOURCE_VALUES;
+
+    private static final int INITIAL_GROUPS = 64;
+
+    private final Dimension dimension;
+    private final long windowSeconds;
+
+    // The names of the groups; name 0 stands for a record without the dimension
+    private final Map<String, Integer> nameIds = new HashMap<String, Integer>();
+    private String[] names = new String[INITIAL_GROUPS];
+    private int nameCount = 1;
+
+    private int[] groupNames = new int[INITIAL_GROUPS];
+    private long[] groupWindows = new long[INITIAL_GROUPS];
+    private long[] groupRecords = new long[INITIAL_GROUPS];
+    private double[] values = new double[INITIAL_GROUPS * STRIDE];
+    private int groupCount;
+
+    // Open addressing on (name, window): each slot holds a group index + 1, or 0 when empty
+    private int[] table = new int[INITIAL_GROUPS * 2];
+
+    // The last createTime seen and its window, as records usually come in time order
+    private String lastTime;
+    private long lastWindow = -1;
+
+    private long recordCount;
+
+    /**
+     * Create an aggregator
+     *
+     * @param dimension the property to group the records by
+     * @param windowSeconds the length of the time windows in seconds, or 0 to put every
+     * record in the same window
+     * @throws IllegalArgumentException if the dimension is null or the window length is
+     * negative
+     */
+    public UsageAggregator(Dimension dimension, long windowSeconds) {
+        if (dimension == null || windowSeconds < 0)
+            throw new IllegalArgumentException("The dimension must be given and the window cannot be negative");
+
+        this.dimension = dimension;
+        this.windowSeconds = windowSeconds;
+    }
+
+    /**
+     * Add a record to the groups it belongs to
+     *
+     * @param record the record to add
+     */
+    public void add(UsageRecord record) {
+        long window = window(record.getCreateTimeinUTC());
+        recordCount++;
+
+        switch (dimension) {
+            case LocalUserId:
+                for (int i = 0; i < record.getUserIdCount(); i++)
+                    addTo(group(nameId(record.getLocalUserId(i)), window), record);
+                if (record.getUserIdCount() == 0)
+                    addTo(group(0, window), record);
+                break;
+            case GlobalUserName:
+                for (int i = 0; i < record.getUserIdCount(); i++)
+                    addTo(group(nameId(record.getGlobalUserName(i)), window), record);
+                if (record.getUserIdCount() == 0)
+                    addTo(group(0, window), record);
+                break;
+            case ProjectName:
+                for (int i = 0; i < record.getProjectNameCount(); i++)
+                    addTo(group(nameId(record.getProjectName(i)), window), record);
+                if (record.getProjectNameCount() == 0)
+                    addTo(group(0, window), record);
+                break;
+            default:
+                addTo(group(0, window), record);
+        }
+    }
+
+    /**
+     * Merge the groups of another aggregator, such as one filled by another thread, into this
+     * one. The other aggregator is not changed.
+     *
+     * @param other the aggregator to merge
+     * @throws IllegalArgumentException if the other aggregator has a different dimension or
+     * window length
+     */
+    public void merge(UsageAggregator other) {
+        if (other.dimension != dimension || other.windowSeconds != windowSeconds)
+            throw new IllegalArgumentException("Only aggregators with the same dimension and window can be merged");
+
+        recordCount += other.recordCount;
+        for (int g = 0; g < other.groupCount; g++) {
+            int otherName = other.groupNames[g];
+            int group = group(otherName == 0 ? 0 : nameId(other.names[otherName]), other.groupWindows[g]);
+            groupRecords[group] += other.groupRecords[g];
+
+            int to = group * STRIDE;
+            int from = g * STRIDE;
+            values[to + CHARGE] += other.values[from + CHARGE];
+            for (int r = 0; r < 3 * RESOURCE_VALUES; r += RESOURCE_VALUES) {
+                values[to + r + TOTAL] += other.values[from + r + TOTAL];
+                values[to + r + MIN] = Math.min(values[to + r + MIN], other.values[from + r + MIN]);
+                values[to + r + MAX] = Math.max(values[to + r + MAX], other.values[from + r + MAX]);
+                values[to + r + AVERAGE_SUM] += other.values[from + r + AVERAGE_SUM];
+                values[to + r + AVERAGE_COUNT] += other.values[from + r + AVERAGE_COUNT];
+            }
+        }
+    }
+
+    /**
+     * Get the number of records added, including the records of the merged aggregators
+     *
+     * @return the number of records
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Get the number of groups the records have been rolled up into
+     *
+     * @return the number of groups
+     */
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * Get the rolled up usage of every group, sorted by name (records without the dimension
+     * first) and then by window
+     *
+     * @return the rollups
+     */
+    public List<Rollup> getRollups() {
+        List<Rollup> rollups = new ArrayList<Rollup>(groupCount);
+        for (int g = 0; g < groupCount; g++) {
+            long window = groupWindows[g];
+            rollups.add(new Rollup(names[groupNames[g]], window < 0 ? -1 : window * windowSeconds,
+                    groupRecords[g], Arrays.copyOfRange(values, g * STRIDE, (g + 1) * STRIDE)));
+        }
+
+        Collections.sort(rollups, new Comparator<Rollup>() {
+            public int compare(Rollup a, Rollup b) {
+                if (a.name == null || b.name == null) {
+                    if (a.name != b.name)
+                        return a.name == null ? -1 : 1;
+                }
+                else if (!a.name.equals(b.name)) {
+                    return a.name.compareTo(b.name);
+                }
+                return a.windowStart < b.windowStart ? -1 : a.windowStart == b.windowStart ? 0 : 1;
+            }
+        });
+        return rollups;
+    }
+
+    /**
+     * The usage rolled up in one group: one name (user or project) in one time window
+     */
+    public static final class Rollup {
+
+        private final String name;
+        private final long windowStart;
+        private final long records;
+        private final double[] values;
+
+        /**
+         * Helper constructor: create a rollup from the values of a group
+         *
+         * @param name the name of the group
+         * @param windowStart the start of the window
+         * @param records the number of records in the group
+         * @param values the values of the group
+         */
+        private Rollup(String name, long windowStart, long records, double[] values) {
+            this.name = name;
+            this.windowStart = windowStart;
+            this.records = records;
+            this.values = values;
+        }
+
+        /**
+         * Get the user id, user name or project name the records are grouped by
+         *
+         * @return the name, or null for the records without one
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the start of the time window
+         *
+         * @return the seconds since the epoch the window starts at, or -1 for the records
+         * without a createTime, or for every record if there are no windows
+         */
+        public long getWindowStart() {
+            return windowStart;
+        }
+
+        /**
+         * Get the number of records in the group
+         *
+         * @return the number of records
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * Get the sum of the charges of the records
+         *
+         * @return the total charge
+         */
+        public double getCharge() {
+            return values[CHARGE];
+        }
+
+        /**
+         * Get the sum of the entries of a resource with a total metric or no metric
+         *
+         * @param resource the resource
+         * @return the total, in bytes for Network and Memory
+         */
+        public double getTotal(Resource resource) {
+            return values[offset(resource) + TOTAL];
+        }
+
+        /**
+         * Get the smallest of the entries of a resource with a min metric
+         *
+         * @param resource the resource
+         * @return the minimum, or NaN if there were no such entries
+         */
+        public double getMin(Resource resource) {
+            double min = values[offset(resource) + MIN];
+            return min == Double.POSITIVE_INFINITY ? Double.NaN : min;
+        }
+
+        /**
+         * Get the largest of the entries of a resource with a max metric
+         *
+         * @param resource the resource
+         * @return the maximum, or NaN if there were no such entries
+         */
+        public double getMax(Resource resource) {
+            double max = values[offset(resource) + MAX];
+            return max == Double.NEGATIVE_INFINITY ? Double.NaN : max;
+        }
+
+        /**
+         * Get the mean of the entries of a resource with an average metric
+         *
+         * @param resource the resource
+         * @return the average, or NaN if there were no such entries
+         */
+        public double getAverage(Resource resource) {
+            int offset = offset(resource);
+            return values[offset + AVERAGE_SUM] / values[offset + AVERAGE_COUNT];
+        }
+
+        /**
+         * Helper method: the offset of the values of a resource
+         *
+         * @param resource the resource
+         * @return the offset of the values of the resource from the start of the group
+         */
+        private static int offset(Resource resource) {
+            return resource.ordinal() * RESOURCE_VALUES;
+        }
+
+        public String toString() {
+            return name + "@" + windowStart + ": " + records + " records";
+        }
+    }
+
+    /**
+     * Helper method: get the window a createTime falls in
+     *
+     * @param time the createTime (may be null)
+     * @return the number of the window, or -1 if the record has no createTime in the form
+     * ur4j writes it or there are no windows
+     */
+    private long window(String time) {
+        if (windowSeconds == 0 || time == null)
+            return -1;
+        if (time.equals(lastTime))
+            return lastWindow;
+
+        long seconds = BinaryRecordWriter.parseTime(time);
+        lastTime = time;
+        lastWindow = seconds < 0 ? -1 : seconds / windowSeconds;
+        return lastWindow;
+    }
+
+    /**
+     * Helper method: get the number of a name, giving it one if it is new
+     *
+     * @param name the name (may be null)
+     * @return the number of the name
+     */
+    private int nameId(String name) {
+        if (name == null)
+            return 0;
+
+        Integer id = nameIds.get(name);
+        if (id != null)
+            return id;
+
+        if (nameCount == names.length)
+            names = Arrays.copyOf(names, nameCount * 2);
+        names[nameCount] = name;
+        nameIds.put(name, nameCount);
+        return nameCount++;
+    }
+
+    /**
+     * Helper method: find the group of a name and window, creating it if it is new
+     *
+     * @param name the number of the name
+     * @param window the number of the window
+     * @return the index of the group
+     */
+    private int group(int name, long window) {
+        int mask = table.length - 1;
+        int slot = hash(name, window) & mask;
+        while (table[slot] != 0) {
+            int group = table[slot] - 1;
+            if (groupNames[group] == name && groupWindows[group] == window)
+                return group;
+            slot = (slot + 1) & mask;
+        }
+
+        if (groupCount == groupNames.length) {
+            int capacity = groupCount * 2;
+            groupNames = Arrays.copyOf(groupNames, capacity);
+            groupWindows = Arrays.copyOf(groupWindows, capacity);
+            groupRecords = Arrays.copyOf(groupRecords, capacity);
+            values = Arrays.copyOf(values, capacity * STRIDE);
+        }
+
+        int group = groupCount++;
+        groupNames[group] = name;
+        groupWindows[group] = window;
+        for (int r = 0; r < 3 * RESOURCE_VALUES; r += RESOURCE_VALUES) {
+            values[group * STRIDE + r + MIN] = Double.POSITIVE_INFINITY;
+            values[group * STRIDE + r + MAX] = Double.NEGATIVE_INFINITY;
+        }
+
+        // Keep the table at most half full
+        if (2 * groupCount > table.length)
+            rehash();
+        else
+            table[slot] = group + 1;
+        return group;
+    }
+
+    /**
+     * Helper method: double the hash table and put the groups back into it
+     */
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int group = 0; group < groupCount; group++) {
+            int slot = hash(groupNames[group], groupWindows[group]) & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = group + 1;
+        }
+    }
+
+    /**
+     * Helper method: the hash of a name and window
+     *
+     * @param name the number of the name
+     * @param window the number of the window
+     * @return the hash, with the bits well mixed
+     */
+    private static int hash(int name, long window) {
+        long h = (name * 0x9E3779B97F4A7C15L) ^ window;
+        h *= 0xC2B2AE3D27D4EB4FL;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Helper method: add a record to a group
+     *
+     * @param group the index of the group
+     * @param record the record
+     */
+    private void addTo(int group, UsageRecord record) {
+        groupRecords[group]++;
+        int base = group * STRIDE;
+        values[base + CHARGE] += record.getChargeValue();
+        addProperties(base + Rollup.offset(Resource.Disk), record.getDisks());
+        addProperties(base + Rollup.offset(Resource.Network), record.getNetworks());
+        addProperties(base + Rollup.offset(Resource.Memory), record.getMemories());
+    }
+
+    /**
+     * Helper method: combine the entries of a differentiated property with the values of a
+     * group, according to their metric
+     *
+     * @param offset the offset of the values of the resource
+     * @param properties the entries (may be null)
+     */
+    private void addProperties(int offset, DifferentiatedProperties properties) {
+        if (properties == null)
+            return;
+
+        for (int i = 0; i < properties.size(); i++) {
+            double size = properties.getSizeInBytes(i);
+
+            UsageRecord.Metric metric = properties.getMetric(i);
+            if (metric == null || metric == UsageRecord.Metric.total) {
+                values[offset + TOTAL] += size;
+            }
+            else if (metric == UsageRecord.Metric.min) {
+                values[offset + MIN] = Math.min(values[offset + MIN], size);
+            }
+            else if (metric == UsageRecord.Metric.max) {
+                values[offset + MAX] = Math.max(values[offset + MAX], size);
+            }
+            else {
+                values[offset + AVERAGE_SUM] += size;
+                values[offset + AVERAGE_COUNT]++;
+            }
+        }
+    }
+}
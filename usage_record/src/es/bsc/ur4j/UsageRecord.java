@@ -1,16 +1,17 @@
 package es.bsc.ur4j;
 
 import org.apache.log4j.Logger;
-import org.jdom.input.SAXBuilder;
 import org.jdom.output.XMLOutputter;
 import org.jdom.output.Format;
+import org.jdom.transform.JDOMSource;
 import org.jdom.Document;
 import org.jdom.Namespace;
 import org.jdom.Element;
-import org.jdom.JDOMException;
-import org.xml.sax.ErrorHandler;
-import org.xml.sax.SAXParseException;
+import org.xml.sax.SAXException;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.validation.Validator;
 import java.util.*;
 import java.io.*;
 
@@ -46,53 +47,273 @@ public class UsageRecord {
 
     private static final Logger log = Logger.getLogger(UsageRecord.class.getName());
     public static enum Status {Aborted, Completed, Failed, Held, Queued, Started, Suspended }
-    public static enum Unit {b, B, KB, MB, GB, PB, EB, Kb, Mb, Gb, Pb, Eb }
+    public static enum Unit {
+        b(-3), B(0), KB(10), MB(20), GB(30), PB(50), EB(60), Kb(7), Mb(17), Gb(27), Pb(47), Eb(57);
+
+        // log2 of the bytes in the unit: b is an eighth of a byte and KB 1024 bytes
+        private final int shift;
+
+        Unit(int shift) {
+            this.shift = shift;
+        }
+
+        /**
+         * Convert a size in this unit to bytes, with a shift rather than a multiplication.
+         * Sizes in bits are rounded down to whole bytes, and sizes too large for a long are
+         * capped at Long.MAX_VALUE.
+         *
+         * @param size the size in this unit, not negative
+         * @return the size in bytes
+         */
+        public long toBytes(long size) {
+            if (shift < 0)
+                return size >> -shift;
+            return size > Long.MAX_VALUE >> shift ? Long.MAX_VALUE : size << shift;
+        }
+    }
     public static enum DiskType { scratch, temp }
     public static enum MemoryType { shared, physical, dedicated }
     public static enum Metric { average, total, min, max }
 
-    private Namespace def = Namespace.getNamespace("http://schema.ogf.org/urf/2003/09/urf");
-    private Namespace urf = Namespace.getNamespace("urf", "http://schema.ogf.org/urf/2003/09/urf");
-    private Namespace xsi = Namespace.getNamespace("xsi", "http://www.w3.org/2001/XMLSchema-instance");
-    private Namespace ds  = Namespace.getNamespace("ds", "http://www.w3.org/2000/09/xmldsig#");
+    static final String URF_NAMESPACE   = "http://schema.ogf.org/urf/2003/09/urf";
+    static final String XSI_NAMESPACE   = "http://www.w3.org/2001/XMLSchema-instance";
+    static final String DS_NAMESPACE    = "http://www.w3.org/2000/09/xmldsig#";
+    static final String SCHEMA_LOCATION = "http://www.gridforum.org/2003/ur-wg/urwg-schema.09.02.xsd";
+
+    private static final Namespace def = Namespace.getNamespace(URF_NAMESPACE);
+    private static final Namespace urf = Namespace.getNamespace("urf", URF_NAMESPACE);
+    private static final Namespace xsi = Namespace.getNamespace("xsi", XSI_NAMESPACE);
+    private static final Namespace ds  = Namespace.getNamespace("ds", DS_NAMESPACE);
+
+    // The outcome kept by validate() for a valid record, compared by identity
+    private static final String VALID = new String("valid");
+
+    private static final Status[] STATUSES = Status.values();
+    private static final DiskType[] DISK_TYPES = DiskType.values();
+    private static final MemoryType[] MEMORY_TYPES = MemoryType.values();
+
+    // The flags that start a record in the binary encoding (see BinaryRecordWriter)
+    private static final int BINARY_JOB_ID      = 1;
+    private static final int BINARY_CHARGE      = 2;
+    private static final int BINARY_GUID        = 4;
+    private static final int BINARY_CREATE_TIME = 8;
+
+    // The most user identities, project names, resources or entries of one differentiated
+    // property a record can have in the binary encoding
+    static final int MAX_BINARY_ELEMENTS = 1 << 20;
+
+    /*
+     * The record is held as plain fields, enums and small arrays; the JDOM document is only
+     * built when it is needed (toXml(), toPrettyXml() and validate()). Repeated elements with
+     * two values are kept as pairs in a flat array: user ids as (localUserId, globalUserName),
+     * project names and resources as (value, description).
+     *
+     * The fields are kept in a holder reached through a final field rather than in the record
+     * itself, so a snapshot is safely published by the final field rule of the memory model:
+     * any thread that sees a snapshot sees everything it holds, however it was handed over.
+     */
+    private static final class Fields {
+
+        String recordId;
+        String createTime;
+
+        boolean jobIdSet;
+        String globalJobId;
+        String localJobId;
+        String processId;
+
+        String jobName;
+        String jobNameDescription;
+
+        boolean chargeSet;
+        float charge;
+        String chargeDescription;
+        String chargeUnit;
+        String chargeFormula;
+
+        Status status;
+        String statusDescription;
+
+        String[] userIds;
+        int userIdCount;
+        String[] projectNames;
+        int projectNameCount;
+        String[] resources;
+        int resourceCount;
+
+        DifferentiatedProperties disks;
+        DifferentiatedProperties networks;
+        DifferentiatedProperties memories;
+
+        /**
+         * Copy the fields, with copies of the arrays so the copy shares nothing that can change
+         *
+         * @return a copy of the fields
+         */
+        Fields copy() {
+            Fields copy = new Fields();
+            copy.recordId = recordId;
+            copy.createTime = createTime;
+            copy.jobIdSet = jobIdSet;
+            copy.globalJobId = globalJobId;
+            copy.localJobId = localJobId;
+            copy.processId = processId;
+            copy.jobName = jobName;
+            copy.jobNameDescription = jobNameDescription;
+            copy.chargeSet = chargeSet;
+            copy.charge = charge;
+            copy.chargeDescription = chargeDescription;
+            copy.chargeUnit = chargeUnit;
+            copy.chargeFormula = chargeFormula;
+            copy.status = status;
+            copy.statusDescription = statusDescription;
+            copy.userIds = userIds == null ? null : userIds.clone();
+            copy.userIdCount = userIdCount;
+            copy.projectNames = projectNames == null ? null : projectNames.clone();
+            copy.projectNameCount = projectNameCount;
+            copy.resources = resources == null ? null : resources.clone();
+            copy.resourceCount = resourceCount;
+            copy.disks = disks == null ? null : disks.copy();
+            copy.networks = networks == null ? null : networks.copy();
+            copy.memories = memories == null ? null : memories.copy();
+            return copy;
+        }
+
+        /**
+         * Clear the fields, keeping the arrays and the differentiated properties (emptied) so
+         * that the record can be filled again without allocating them
+         */
+        void clear() {
+            recordId = null;
+            createTime = null;
+            jobIdSet = false;
+            globalJobId = null;
+            localJobId = null;
+            processId = null;
+            jobName = null;
+            jobNameDescription = null;
+            chargeSet = false;
+            charge = 0;
+            chargeDescription = null;
+            chargeUnit = null;
+            chargeFormula = null;
+            status = null;
+            statusDescription = null;
+            if (userIds != null)
+                Arrays.fill(userIds, 0, 2 * userIdCount, null);
+            userIdCount = 0;
+            if (projectNames != null)
+                Arrays.fill(projectNames, 0, 2 * projectNameCount, null);
+            projectNameCount = 0;
+            if (resources != null)
+                Arrays.fill(resources, 0, 2 * resourceCount, null);
+            resourceCount = 0;
+            if (disks != null)
+                disks.clear();
+            if (networks != null)
+                networks.clear();
+            if (memories != null)
+                memories.clear();
+        }
+    }
 
-    private Document document;
-    private Element root;
-    private Element chargeElement;
-    private Element jobIdElement;
-    private Element jobNameElement;
-    private Element recordIdElement;
-    private Element statusElement;
+    private final Fields fields;
+    private final boolean snapshot;
 
-    private ArrayList<Element> projectNameElements;
-    private ArrayList<Element> resourceTypeElements;
-    private ArrayList<Element> userIdElements;
-    private ArrayList<Element> diskElements;
-    private ArrayList<Element> networkElements;
-    private ArrayList<Element> memoryElements;
+    /*
+     * The output of toXml() and the outcome of validate() are kept until the record is next
+     * changed, so a record that is serialised or validated again (when it is resent, or
+     * validated and then written) is not encoded again. Every set and add method goes through
+     * checkMutable(), which forgets them. Both are immutable, so a snapshot shared between
+     * threads can publish them through these plain fields: a thread sees either null, and
+     * works them out again, or the complete value.
+     */
+    private String xml;
+    private String validation;
 
     /**
      * Default constructor
      */
     public UsageRecord() {
-        root = new Element("UsageRecord");
-        root.setNamespace(def);
-        root.addNamespaceDeclaration(urf);
-        root.addNamespaceDeclaration(xsi);
-        root.addNamespaceDeclaration(ds);
-        root.setAttribute("schemaLocation",
-                "http://www.gridforum.org/2003/ur-wg/urwg-schema.09.02.xsd", xsi);
+        this(new Fields(), false);
+    }
+
+    /**
+     * Helper constructor: create a record holding the given fields
+     *
+     * @param fields the fields of the record
+     * @param snapshot true if the record is an immutable snapshot
+     */
+    private UsageRecord(Fields fields, boolean snapshot) {
+        this.fields = fields;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Take an immutable snapshot of the record. A record is built up with the set and add
+     * methods and then frozen with this method: the snapshot holds a copy of the record as it
+     * is now, which later changes to this record don't affect, and it cannot be changed itself.
+     * <P>
+     * Any number of threads can serialise and validate a snapshot at the same time without
+     * locking, and a snapshot can be handed to other threads (for example to a writer thread
+     * through a queue, or even through a plain field) without any synchronization. The set and
+     * add methods of a snapshot throw a UsageRecordException.
+     *
+     * @return the snapshot, which is this record if it is already a snapshot
+     */
+    public final UsageRecord snapshot() {
+        if (snapshot)
+            return this;
+
+        UsageRecord copy = new UsageRecord(fields.copy(), true);
+        copy.xml = xml;
+        copy.validation = validation;
+        return copy;
+    }
+
+    /**
+     * Return the record to the state of a new record, so that it can be filled again (see
+     * UsageRecordPool). The arrays the record has grown to hold its elements are kept, so a
+     * record built again and again in a loop allocates only the strings it is given.
+     * Snapshots taken of the record before are not affected.
+     *
+     * @throws UsageRecordException if the record is a snapshot
+     */
+    public final void reset() throws UsageRecordException {
+        checkMutable();
+        fields.clear();
+    }
 
-        document = new Document(root);
+    /**
+     * Test if the record is an immutable snapshot
+     *
+     * @return true if the record was created by snapshot() and cannot be changed
+     */
+    public final boolean isSnapshot() {
+        return snapshot;
     }
 
     /**
-     * Set the record identity with a generated GUID for the recordId
+     * Set the record identity with a generated GUID for the recordId. The GUID is made
+     * of random bits from a per-thread generator (RandomGUID.Mode.RANDOM), which is fast
+     * but not suitable where the recordId must be unguessable.
      *
      * @param setCreateTime true = set create time now
      */
     public final void setRecordId(boolean setCreateTime) {
-        setRecordId(new RandomGUID().toString(), setCreateTime);
+        setRecordId(setCreateTime, RandomGUID.Mode.RANDOM);
+    }
+
+    /**
+     * Set the record identity with a GUID generated in the given mode for the recordId.
+     * Use RandomGUID.Mode.TIME_ORDERED when records are stored in an index on their recordId:
+     * records created close together then get recordIds that sort close together.
+     *
+     * @param setCreateTime true = set create time now
+     * @param mode how the GUID is generated
+     */
+    public final void setRecordId(boolean setCreateTime, RandomGUID.Mode mode) {
+        setRecordId(new RandomGUID(mode).toString(), setCreateTime);
     }
 
     /**
@@ -101,37 +322,70 @@ public class UsageRecord {
      * @param recordId the record identity of this record
      * @param setCreateTime if true the create time is set to now
      *
-     * @throws UsageRecordException if the recordId is null
+     * @throws UsageRecordException if the recordId is null or holds a character that is not
+     * legal in XML
      */
     public final void setRecordId(String recordId, boolean setCreateTime)
             throws UsageRecordException {
+        checkMutable();
 
         if (!parameterNotNull(recordId))
             throw new UsageRecordException("The recordId cannot be null");
+        checkCharacters(recordId);
 
-        recordIdElement = new Element("RecordIdentity", def);
-        recordIdElement.setAttribute("recordId", recordId, urf);
+        fields.recordId = recordId;
+        fields.createTime = setCreateTime ? currentTimeInUtc() : null;
+    }
 
-        if (setCreateTime)
-            recordIdElement.setAttribute("createTime", currentTimeInUtc(), urf);
+    /**
+     * Set the record identity element with a create time taken from an existing record.
+     * Used when reading records back in so the original create time is kept.
+     *
+     * @param recordId the record identity of this record
+     * @param createTime the create time in UTC (ISO8601) format (optional - may be null)
+     *
+     * @throws UsageRecordException if the recordId is null, or either holds a character that is
+     * not legal in XML
+     */
+    final void setRecordIdentity(String recordId, String createTime) throws UsageRecordException {
+        checkCharacters(createTime);
+        setRecordId(recordId, false);
+        fields.createTime = createTime;
     }
 
     /**
      * Get the record identity from the document
      *
-     * @return recordId as a String
+     * @return recordId as a String, or null if it hasn't been set
      */
     public final String getRecordId() {
-        return root.getChild("RecordIdentity").getAttributeValue("recordId");
+        return fields.recordId;
+    }
+
+    /**
+     * Get the record identity as a GUID, for use as a key in maps and indexes in place of the
+     * recordId string: a RandomGUID is two longs, compared and hashed without any string handling.
+     *
+     * @return the recordId as a GUID, or null if it hasn't been set or isn't a GUID
+     */
+    public final RandomGUID getRecordGUID() {
+        if (fields.recordId == null)
+            return null;
+        try {
+            return RandomGUID.fromString(fields.recordId);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
     /**
      * Get the time/date the record was created
      *
-     * @return createTime in Utc (ISO8601) formatted string
+     * @return createTime in Utc (ISO8601) formatted string, or null if it hasn't been set
      */
     public final String getCreateTimeinUTC() {
-        return root.getChild("RecordIdentity").getAttributeValue("createTime");
+        return fields.createTime;
     }
 
     /**
@@ -140,45 +394,44 @@ public class UsageRecord {
      * @param globalJobId (optional - may be null)
      * @param localJobId  (optional - may be null)
      * @param processId   (optional - may be null)
+     * @throws UsageRecordException if a value holds a character that is not legal in XML
      */
     public final void setJobId(String globalJobId, String localJobId, String processId) {
-        jobIdElement = new Element("JobIdentity", def);
-
-        if (parameterNotNull(globalJobId))
-            jobIdElement.addContent((new Element("GlobalJobId", def)).setText(globalJobId));
-
-        if (parameterNotNull(localJobId))
-            jobIdElement.addContent((new Element("LocalJobId", def)).setText(localJobId));
-
-        if (parameterNotNull(processId))
-            jobIdElement.addContent((new Element("ProcessId", def)).setText(processId));
+        checkMutable();
+        checkCharacters(globalJobId);
+        checkCharacters(localJobId);
+        checkCharacters(processId);
+        fields.jobIdSet = true;
+        fields.globalJobId = globalJobId;
+        fields.localJobId = localJobId;
+        fields.processId = processId;
     }
 
     /**
      * Return the GlobalJobId from the document.
      *
-     * @return globalJobId as a String
+     * @return globalJobId as a String, or null if it hasn't been set
      */
     public final String getGlobalJobId() {
-        return root.getChild("JobIdentity").getAttributeValue("GlobalJobId", urf);
+        return fields.globalJobId;
     }
 
     /**
      * Return the LocalJobId from the document.
      *
-     * @return localJobId as a String
+     * @return localJobId as a String, or null if it hasn't been set
      */
     public final String getLocalJobId() {
-        return root.getChild("JobIdentity").getAttributeValue("LocalJobId", urf);
+        return fields.localJobId;
     }
 
     /**
      * Return the ProcessId from the document.
      *
-     * @return processId as a String
+     * @return processId as a String, or null if it hasn't been set
      */
     public final String getProcessId() {
-        return root.getChild("JobIdentity").getAttributeValue("ProcessId", urf);
+        return fields.processId;
     }
 
     /**
@@ -186,22 +439,23 @@ public class UsageRecord {
      *
      * @param jobName associated with this usage record
      * @param description (optional - may be null)
+     * @throws UsageRecordException if a value holds a character that is not legal in XML
      */
     public final void setJobName(String jobName, String description) {
-        jobNameElement = new Element("JobName", def);
-        jobNameElement.setText(jobName);
-
-        if (parameterNotNull(description))
-            jobNameElement.setAttribute("description", description, urf);
+        checkMutable();
+        checkCharacters(jobName);
+        checkCharacters(description);
+        fields.jobName = jobName == null ? "" : jobName;
+        fields.jobNameDescription = description;
     }
 
     /**
      * Get the job name from the document
      *
-     * @return jobName as a String
+     * @return jobName as a String, or null if it hasn't been set
      */
     public final String getJobName() {
-        return root.getChildText("JobName");
+        return fields.jobName;
     }
 
     /**
@@ -211,28 +465,28 @@ public class UsageRecord {
      * @param description (optional - may be null)
      * @param unit        (optional - may be null)
      * @param formula     (optional - may be null)
+     * @throws UsageRecordException if a value holds a character that is not legal in XML
      */
     public final void setCharge(Float charge, String description, String unit, String formula) {
-        chargeElement = new Element("Charge", def);
-        chargeElement.addContent(charge.toString());
-
-        if (parameterNotNull(description))
-            chargeElement.setAttribute("description", description, urf);
-
-        if (parameterNotNull(unit))
-            chargeElement.setAttribute("unit", unit, urf);
-
-        if (parameterNotNull(formula))
-            chargeElement.setAttribute("formula", formula, urf);
+        checkMutable();
+        checkCharacters(description);
+        checkCharacters(unit);
+        checkCharacters(formula);
+        fields.charge = charge;
+        fields.chargeSet = true;
+        fields.chargeDescription = description;
+        fields.chargeUnit = unit;
+        fields.chargeFormula = formula;
     }
 
     /**
-     * Return the charge for this usage record.
+     * Return the charge for this usage record. Use isChargeSet() and getChargeValue() to read
+     * it without boxing it.
      *
-     * @return charge as a Float
+     * @return charge as a Float, or null if it hasn't been set
      */
     public final Float getCharge() {
-        return new Float(root.getChildText("Charge"));
+        return fields.chargeSet ? Float.valueOf(fields.charge) : null;
     }
 
     /**
@@ -240,22 +494,22 @@ public class UsageRecord {
      *
      * @param status of the usage record
      * @param description (optional - may be null)
+     * @throws UsageRecordException if the description holds a character that is not legal in XML
      */
     public final void setStatus(Status status, String description) {
-        statusElement = new Element("Status", def);
-        statusElement.setText(status.toString());
-
-        if (parameterNotNull(description))
-            statusElement.setAttribute("description", description, urf);
+        checkMutable();
+        checkCharacters(description);
+        fields.status = status;
+        fields.statusDescription = description;
     }
 
     /**
      * Return the status of the job.
      *
-     * @return status as a Status
+     * @return status as a Status, or null if it hasn't been set
      */
     public final Status getStatus() {
-        return Status.valueOf(root.getChildText("Status"));
+        return fields.status;
     }
 
     //public final Time getDuration() {
@@ -286,35 +540,398 @@ public class UsageRecord {
      *
      * @param projectName associated with this usage record
      * @param description (optional - may be null)
+     * @throws UsageRecordException if a value holds a character that is not legal in XML
      */
     public final void addProjectName(String projectName, String description) {
-        Element newProjectNameElement = new Element("ProjectName", def);
-        newProjectNameElement.addContent(projectName);
+        checkMutable();
+        checkCharacters(projectName);
+        checkCharacters(description);
+        fields.projectNames = addPair(fields.projectNames, fields.projectNameCount, projectName == null ? "" : projectName, description);
+        fields.projectNameCount++;
+    }
 
-        if (parameterNotNull(description))
-            newProjectNameElement.setAttribute("description", description, urf);
+    /**
+     * Get a list of the project names. Use getProjectNameCount() and getProjectName() to read
+     * them without copying them.
+     *
+     * @return list of projects names in an array (empty if none have been added)
+     */
+    public final String[] getProjectNames() {
+        String names[] = new String[fields.projectNameCount];
+        for (int i = 0; i < fields.projectNameCount; i++)
+            names[i] = fields.projectNames[2 * i];
+        return names;
+    }
 
-        if (projectNameElements == null)
-            projectNameElements = new ArrayList<Element>();
+    /**
+     * Test if the charge has been set, without boxing it
+     *
+     * @return true if the charge has been set
+     */
+    public final boolean isChargeSet() {
+        return fields.chargeSet;
+    }
 
-        projectNameElements.add(newProjectNameElement);
+    /**
+     * Get the charge without boxing it
+     *
+     * @return the charge, or 0 if it hasn't been set
+     */
+    public final float getChargeValue() {
+        return fields.charge;
     }
 
     /**
-     * Get a list of the project names.
+     * Get the number of user identities
      *
-     * @return list of projects names in an array
+     * @return the number of user identities added
      */
-    public final String[] getProjectNames() {
-        String projectNames[] = new String[projectNameElements.size()];
-        Iterator<Element> itr= projectNameElements.iterator();
-        int i = 0;
-        while(itr.hasNext()) {
-            Element element = itr.next();
-            projectNames[i] = element.getText(); // is this correct?
-            i++;
-        }
-        return projectNames;
+    public final int getUserIdCount() {
+        return fields.userIdCount;
+    }
+
+    /**
+     * Get the local user id of a user identity
+     *
+     * @param index the index of the user identity
+     * @return the localUserId, or null if it wasn't given
+     * @throws IndexOutOfBoundsException if there is no user identity with the index
+     */
+    public final String getLocalUserId(int index) {
+        return fields.userIds[pairIndex(index, fields.userIdCount)];
+    }
+
+    /**
+     * Get the global user name of a user identity
+     *
+     * @param index the index of the user identity
+     * @return the globalUserName, or null if it wasn't given
+     * @throws IndexOutOfBoundsException if there is no user identity with the index
+     */
+    public final String getGlobalUserName(int index) {
+        return fields.userIds[pairIndex(index, fields.userIdCount) + 1];
+    }
+
+    /**
+     * Get the number of project names
+     *
+     * @return the number of project names added
+     */
+    public final int getProjectNameCount() {
+        return fields.projectNameCount;
+    }
+
+    /**
+     * Get a project name without copying the others into an array
+     *
+     * @param index the index of the project name
+     * @return the project name
+     * @throws IndexOutOfBoundsException if there is no project name with the index
+     */
+    public final String getProjectName(int index) {
+        return fields.projectNames[pairIndex(index, fields.projectNameCount)];
+    }
+
+    /**
+     * Get the description of a project name
+     *
+     * @param index the index of the project name
+     * @return the description, or null if it wasn't given
+     * @throws IndexOutOfBoundsException if there is no project name with the index
+     */
+    public final String getProjectNameDescription(int index) {
+        return fields.projectNames[pairIndex(index, fields.projectNameCount) + 1];
+    }
+
+    /**
+     * Get the number of resource types
+     *
+     * @return the number of resource types added
+     */
+    public final int getResourceTypeCount() {
+        return fields.resourceCount;
+    }
+
+    /**
+     * Get a resource type
+     *
+     * @param index the index of the resource type
+     * @return the resource type
+     * @throws IndexOutOfBoundsException if there is no resource type with the index
+     */
+    public final String getResourceType(int index) {
+        return fields.resources[pairIndex(index, fields.resourceCount)];
+    }
+
+    /**
+     * Get the description of a resource type
+     *
+     * @param index the index of the resource type
+     * @return the description, or null if it wasn't given
+     * @throws IndexOutOfBoundsException if there is no resource type with the index
+     */
+    public final String getResourceTypeDescription(int index) {
+        return fields.resources[pairIndex(index, fields.resourceCount) + 1];
+    }
+
+    /**
+     * Get the number of Disk entries
+     *
+     * @return the number of disks added
+     */
+    public final int getDiskCount() {
+        return count(fields.disks);
+    }
+
+    /**
+     * Get the size of a Disk entry
+     *
+     * @param index the index of the entry
+     * @return the disk space used
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    public final long getDiskSize(int index) {
+        return entries(fields.disks, index).getSize(index);
+    }
+
+    /**
+     * Get the type of a Disk entry
+     *
+     * @param index the index of the entry
+     * @return the type, or null if it wasn't given
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    public final DiskType getDiskType(int index) {
+        int type = entries(fields.disks, index).getTypeOrdinal(index);
+        return type < 0 ? null : DISK_TYPES[type];
+    }
+
+    /**
+     * Get the metric of a Disk entry
+     *
+     * @param index the index of the entry
+     * @return the metric, or null if it wasn't given
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    public final Metric getDiskMetric(int index) {
+        return entries(fields.disks, index).getMetric(index);
+    }
+
+    /**
+     * Get the description of a Disk entry
+     *
+     * @param index the index of the entry
+     * @return the description, or null if it wasn't given
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    public final String getDiskDescription(int index) {
+        return entries(fields.disks, index).getDescription(index);
+    }
+
+    /**
+     * Get the number of Network entries
+     *
+     * @return the number of networks added
+     */
+    public final int getNetworkCount() {
+        return count(fields.networks);
+    }
+
+    /**
+     * Get the size of a Network entry
+     *
+     * @param index the index of the entry
+     * @return the network volume used, in the unit of the entry
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    public final long getNetworkSize(int index) {
+        return entries(fields.networks, index).getSize(index);
+    }
+
+    /**
+     * Get the unit of a Network entry
+     *
+     * @param index the index of the entry
+     * @return the unit, or null if it wasn't given
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    public final Unit getNetworkUnit(int index) {
+        return entries(fields.networks, index).getUnit(index);
+    }
+
+    /**
+     * Get the size of a Network entry in bytes, converted from its unit as Unit.toBytes() does
+     *
+     * @param index the index of the entry
+     * @return the network volume used in bytes, or the size as it is if the entry has no unit
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    public final long getNetworkBytes(int index) {
+        return entries(fields.networks, index).getSizeInBytes(index);
+    }
+
+    /**
+     * Get the metric of a Network entry
+     *
+     * @param index the index of the entry
+     * @return the metric, or null if it wasn't given
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    public final Metric getNetworkMetric(int index) {
+        return entries(fields.networks, index).getMetric(index);
+    }
+
+    /**
+     * Get the description of a Network entry
+     *
+     * @param index the index of the entry
+     * @return the description, or null if it wasn't given
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    public final String getNetworkDescription(int index) {
+        return entries(fields.networks, index).getDescription(index);
+    }
+
+    /**
+     * Get the number of Memory entries
+     *
+     * @return the number of memories added
+     */
+    public final int getMemoryCount() {
+        return count(fields.memories);
+    }
+
+    /**
+     * Get the size of a Memory entry
+     *
+     * @param index the index of the entry
+     * @return the memory used, in the unit of the entry
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    public final long getMemorySize(int index) {
+        return entries(fields.memories, index).getSize(index);
+    }
+
+    /**
+     * Get the unit of a Memory entry
+     *
+     * @param index the index of the entry
+     * @return the unit
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    public final Unit getMemoryUnit(int index) {
+        return entries(fields.memories, index).getUnit(index);
+    }
+
+    /**
+     * Get the size of a Memory entry in bytes, converted from its unit as Unit.toBytes() does
+     *
+     * @param index the index of the entry
+     * @return the memory used in bytes, or the size as it is if the entry has no unit
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    public final long getMemoryBytes(int index) {
+        return entries(fields.memories, index).getSizeInBytes(index);
+    }
+
+    /**
+     * Get the metric of a Memory entry
+     *
+     * @param index the index of the entry
+     * @return the metric, or null if it wasn't given
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    public final Metric getMemoryMetric(int index) {
+        return entries(fields.memories, index).getMetric(index);
+    }
+
+    /**
+     * Get the type of a Memory entry
+     *
+     * @param index the index of the entry
+     * @return the type, or null if it wasn't given
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    public final MemoryType getMemoryType(int index) {
+        int type = entries(fields.memories, index).getTypeOrdinal(index);
+        return type < 0 ? null : MEMORY_TYPES[type];
+    }
+
+    /**
+     * Get the description of a Memory entry
+     *
+     * @param index the index of the entry
+     * @return the description, or null if it wasn't given
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    public final String getMemoryDescription(int index) {
+        return entries(fields.memories, index).getDescription(index);
+    }
+
+    /**
+     * Get the Disk entries
+     *
+     * @return the entries, or null if none have ever been added
+     */
+    final DifferentiatedProperties getDisks() {
+        return fields.disks;
+    }
+
+    /**
+     * Get the Network entries
+     *
+     * @return the entries, or null if none have ever been added
+     */
+    final DifferentiatedProperties getNetworks() {
+        return fields.networks;
+    }
+
+    /**
+     * Get the Memory entries
+     *
+     * @return the entries, or null if none have ever been added
+     */
+    final DifferentiatedProperties getMemories() {
+        return fields.memories;
+    }
+
+    /**
+     * Helper method: the position in a (value, description) array of the value of an entry
+     *
+     * @param index the index of the entry
+     * @param count the number of entries
+     * @return the position of the value, with the description after it
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    private static int pairIndex(int index, int count) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Index: " + index + ", count: " + count);
+        return 2 * index;
+    }
+
+    /**
+     * Helper method: the number of entries of a differentiated property
+     *
+     * @param properties the entries (may be null)
+     * @return the number of entries
+     */
+    private static int count(DifferentiatedProperties properties) {
+        return properties == null ? 0 : properties.size();
+    }
+
+    /**
+     * Helper method: check there is an entry with an index
+     *
+     * @param properties the entries (may be null)
+     * @param index the index of the entry
+     * @return the entries
+     * @throws IndexOutOfBoundsException if there is no entry with the index
+     */
+    private static DifferentiatedProperties entries(DifferentiatedProperties properties, int index) {
+        int count = count(properties);
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Index: " + index + ", count: " + count);
+        return properties;
     }
 
     /**
@@ -323,22 +940,17 @@ public class UsageRecord {
      *
      * @param localUserId    (optional - may be null)
      * @param globalUserName (optional - may be null)
+     * @throws UsageRecordException if a value holds a character that is not legal in XML
      */
     public final void addUserId(String localUserId, String globalUserName) {
-        Element newUserIdElement = new Element("UserIdentity", def);
+        checkMutable();
+        checkCharacters(localUserId);
+        checkCharacters(globalUserName);
 
         // TODO : Add ds:KeyInfo attribute to the UserIdentityElement
 
-        if (parameterNotNull(localUserId))
-            newUserIdElement.addContent((new Element("LocalUserId", def)).setText(localUserId));
-
-        if (parameterNotNull(globalUserName))
-            newUserIdElement.addContent((new Element("GlobalUserName", def)).setText(globalUserName));
-
-        if (userIdElements == null)
-            userIdElements = new ArrayList<Element>();
-
-        userIdElements.add(newUserIdElement);
+        fields.userIds = addPair(fields.userIds, fields.userIdCount, localUserId, globalUserName);
+        fields.userIdCount++;
     }
 
     /**
@@ -347,22 +959,20 @@ public class UsageRecord {
      *
      * @param resourceType "provides a mechanism to represent the consumption of an additional resource within the usage record" (GFD.098)
      * @param description (optional - may be null)
+     * @throws UsageRecordException if the resource type is null, or a value holds a character
+     * that is not legal in XML
      */
 
     public final void addResourceType(String resourceType, String description) {
+        checkMutable();
+
         if (!parameterNotNull(resourceType))
             throw new UsageRecordException("A resource type must be specified");
+        checkCharacters(resourceType);
+        checkCharacters(description);
 
-        Element newResourceType = new Element("ResourceType", def);
-        newResourceType.addContent(resourceType);
-
-        if (parameterNotNull(description))
-            newResourceType.setAttribute("description", description, urf);
-
-        if (resourceTypeElements == null)
-            resourceTypeElements = new ArrayList<Element>();
-
-        resourceTypeElements.add(newResourceType);
+        fields.resources = addPair(fields.resources, fields.resourceCount, resourceType, description);
+        fields.resourceCount++;
     }
 
     /**
@@ -373,31 +983,22 @@ public class UsageRecord {
      * @param description (optional - may be null)
      * @param type (optional - may be null)
      * @param metric (optional - may be null)
-     * @throws UsageRecordException if size < 0
+     * @throws UsageRecordException if size < 0, or the description holds a character that is not
+     * legal in XML
      */
-    public final void addDisk(int size, String description, DiskType type, Metric metric) throws UsageRecordException {
+    public final void addDisk(long size, String description, DiskType type, Metric metric) throws UsageRecordException {
+        checkMutable();
 
         // TODO : Add intervallicVolume
 
         if (size < 0)
             throw new UsageRecordException("The size must be greater than zero");
+        checkCharacters(description);
 
-        Element newDiskElement = new Element("Disk", def);
-        newDiskElement.addContent(Integer.toString(size));
-
-        if (parameterNotNull(description))
-            newDiskElement.setAttribute("description", description, urf);
+        if (fields.disks == null)
+            fields.disks = new DifferentiatedProperties();
 
-        if (type != null)
-            newDiskElement.setAttribute("type", type.toString(), urf);
-
-        if (metric != null)
-            newDiskElement.setAttribute("metric", metric.toString(), urf);
-
-        if (diskElements == null)
-            diskElements = new ArrayList<Element>();
-
-        diskElements.add(newDiskElement);
+        fields.disks.add(size, description, null, metric, type);
     }
 
     /**
@@ -408,29 +1009,20 @@ public class UsageRecord {
      * @param unit "expresses the unit of measurement in terms of volume, time or a combination of both" (GFD.098)  
      * @param metric "this meta-property identifies the type of measurement used for quantifying the aresource consumption if there are multiple methods to measure resource usage" (GFD.098)
      * @param description (optional - may be null)
-     * @throws UsageRecordException if size < 0
+     * @throws UsageRecordException if size < 0, or the description holds a character that is not
+     * legal in XML
      */
-    public final void addNetwork(int size, Unit unit, Metric metric, String description) throws UsageRecordException {
+    public final void addNetwork(long size, Unit unit, Metric metric, String description) throws UsageRecordException {
+        checkMutable();
 
          if (size < 0)
             throw new UsageRecordException("The size must be greater than zero");
+        checkCharacters(description);
 
-        Element newNetworkElement = new Element("Network", def);
-        newNetworkElement.addContent(Integer.toString(size));
-
-        if (parameterNotNull(description))
-            newNetworkElement.setAttribute("description", description, urf);
+        if (fields.networks == null)
+            fields.networks = new DifferentiatedProperties();
 
-        if (unit != null)
-            newNetworkElement.setAttribute("units", unit.toString(), urf);
-
-        if (metric != null)
-            newNetworkElement.setAttribute("metric", metric.toString(), urf);
-
-        if (networkElements == null)
-            networkElements = new ArrayList<Element>();
-
-        networkElements.add(newNetworkElement);
+        fields.networks.add(size, description, unit, metric, null);
     }
 
     /**
@@ -442,40 +1034,43 @@ public class UsageRecord {
      * @param metric "this meta-property identifies the type of measurement used for quantifying the aresource consumption if there are multiple methods to measure resource usage" (GFD.098)
      * @param type the type of memory used
      * @param description (optional - may be null)
-     * @throws UsageRecordException if size < 0 or if unit, metric, type == null
+     * @throws UsageRecordException if size < 0 or if unit, metric, type == null, or the
+     * description holds a character that is not legal in XML
      */
 
-    public final void addMemory(int size, Unit unit, Metric metric, MemoryType type, String description)
+    public final void addMemory(long size, Unit unit, Metric metric, MemoryType type, String description)
             throws UsageRecordException {
+        checkMutable();
 
         if (size < 0)
             throw new UsageRecordException("The size must be greater than zero");
+        checkCharacters(description);
 
-        Element newMemoryElement = new Element("Memory", def);
-        newMemoryElement.addContent(Integer.toString(size));
-
-        if (parameterNotNull(description))
-            newMemoryElement.setAttribute("description", description, urf);
-        
         if (unit == null)
             throw new UsageRecordException("The units for memory must be specified");
-        else
-            newMemoryElement.setAttribute("units", unit.toString(), urf);
-
-        if (metric != null)
-            newMemoryElement.setAttribute("metric", metric.toString(), urf);
-
-        if (type != null)
-            newMemoryElement.setAttribute("type", type.toString(), urf);
 
-        if (memoryElements == null)
-            memoryElements = new ArrayList<Element>();
+        if (fields.memories == null)
+            fields.memories = new DifferentiatedProperties();
 
-        memoryElements.add(newMemoryElement);
+        fields.memories.add(size, description, unit, metric, type);
     }
 
     //********************************************************
 
+    /**
+     * Helper method: check the record may be changed, and forget the XML and the validation
+     * outcome kept for it, as it is about to change
+     *
+     * @throws UsageRecordException if the record is a snapshot
+     */
+    private void checkMutable() throws UsageRecordException {
+        if (snapshot)
+            throw new UsageRecordException("The record is an immutable snapshot");
+
+        xml = null;
+        validation = null;
+    }
+
     /**
      * Helper method: return the current time in UTC (ISO8601) format
      *
@@ -535,38 +1130,785 @@ public class UsageRecord {
     }
 
     /**
-     * Helper method: build the xml document, adding the elements in the correct order
+     * Helper method: add a pair of values to a flat array of pairs, growing the array if it is full
      *
-     * @throws UsageRecordException if the recordIdElement or statusElement == null as they are required data
+     * @param pairs the array holding the pairs (may be null)
+     * @param count the number of pairs in the array
+     * @param first the first value of the pair
+     * @param second the second value of the pair
+     * @return the array holding the pairs, which is a new array if it had to grow
      */
-    private void buildDocument() throws UsageRecordException {
-        root.removeContent();
+    private static String[] addPair(String[] pairs, int count, String first, String second) {
+        if (pairs == null)
+            pairs = new String[2];
+        else if (2 * count == pairs.length)
+            pairs = Arrays.copyOf(pairs, 4 * count);
+
+        pairs[2 * count] = first;
+        pairs[2 * count + 1] = second;
+        return pairs;
+    }
 
-        // From UR specification - this must exist
-        if (recordIdElement == null)
+    /**
+     * Helper method: check the elements required by the UR specification have been set
+     *
+     * @throws UsageRecordException if the recordId or status == null as they are required data
+     */
+    final void checkRequiredElements() throws UsageRecordException {
+        // From UR specification - these must exist
+        if (fields.recordId == null)
             throw new UsageRecordException("The record identity must be set");
+
+        if (fields.status == null)
+            throw new UsageRecordException("The status must be set");
+    }
+
+    /**
+     * Helper method: check every string of the record can be written as XML, as JDOM checks
+     * the text and attributes of the document built by toXml(). The writers check before they
+     * write anything, so a record they refuse leaves nothing of itself in their output.
+     *
+     * @throws UsageRecordException if a string holds a character that is not legal in XML
+     */
+    final void checkCharacters() throws UsageRecordException {
+        checkCharacters(fields.recordId);
+        checkCharacters(fields.createTime);
+        checkCharacters(fields.globalJobId);
+        checkCharacters(fields.localJobId);
+        checkCharacters(fields.processId);
+        checkCharacters(fields.jobName);
+        checkCharacters(fields.jobNameDescription);
+        checkCharacters(fields.chargeDescription);
+        checkCharacters(fields.chargeUnit);
+        checkCharacters(fields.chargeFormula);
+        checkCharacters(fields.statusDescription);
+        checkCharacters(fields.userIds, fields.userIdCount);
+        checkCharacters(fields.projectNames, fields.projectNameCount);
+        checkCharacters(fields.resources, fields.resourceCount);
+        checkCharacters(fields.disks);
+        checkCharacters(fields.networks);
+        checkCharacters(fields.memories);
+    }
+
+    /**
+     * Helper method: check a string can be written as XML
+     *
+     * @param value the string (may be null)
+     * @throws UsageRecordException if the string holds a character that is not legal in XML
+     */
+    private static void checkCharacters(String value) throws UsageRecordException {
+        if (value == null)
+            return;
+
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if ((c >= 0x20 && c < 0xD800) || c == '\t' || c == '\n' || c == '\r' || (c >= 0xE000 && c < 0xFFFE))
+                continue;
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1)))
+                i++;
+            else
+                throw illegalCharacter(c);
+        }
+    }
+
+    /**
+     * Helper method: check the strings of (value, description) pairs can be written as XML
+     *
+     * @param pairs the pairs (may be null)
+     * @param count the number of pairs
+     * @throws UsageRecordException if a string holds a character that is not legal in XML
+     */
+    private static void checkCharacters(String[] pairs, int count) throws UsageRecordException {
+        for (int i = 0; i < 2 * count; i++)
+            checkCharacters(pairs[i]);
+    }
+
+    /**
+     * Helper method: check the descriptions of the entries of a differentiated property can
+     * be written as XML
+     *
+     * @param properties the entries (may be null)
+     * @throws UsageRecordException if a description holds a character that is not legal in XML
+     */
+    private static void checkCharacters(DifferentiatedProperties properties) throws UsageRecordException {
+        if (properties == null)
+            return;
+        for (int i = 0; i < properties.size(); i++)
+            checkCharacters(properties.getDescription(i));
+    }
+
+    /**
+     * Helper method: the exception for a character that is not legal in XML 1.0: the C0
+     * controls other than tab, newline and carriage return, U+FFFE, U+FFFF and surrogates that
+     * are not part of a pair
+     *
+     * @param c the character
+     * @return the exception to throw
+     */
+    static UsageRecordException illegalCharacter(char c) {
+        return new UsageRecordException("0x" + Integer.toHexString(c) + " is not a legal XML character");
+    }
+
+    /**
+     * Helper method: build the xml document, adding the elements in the correct order
+     *
+     * @return a new document holding the usage record
+     * @throws UsageRecordException if the recordId or status == null as they are required data
+     */
+    private Document buildDocument() throws UsageRecordException {
+        checkRequiredElements();
+        checkCharacters();
+
+        Element root = new Element("UsageRecord", def);
+        root.addNamespaceDeclaration(urf);
+        root.addNamespaceDeclaration(xsi);
+        root.addNamespaceDeclaration(ds);
+        root.setAttribute("schemaLocation", SCHEMA_LOCATION, xsi);
+
+        Element recordIdElement = new Element("RecordIdentity", def);
+        recordIdElement.setAttribute("recordId", fields.recordId, urf);
+        setOptionalAttribute(recordIdElement, "createTime", fields.createTime);
+        root.addContent(recordIdElement);
+
+        if (fields.jobIdSet) {
+            Element jobIdElement = new Element("JobIdentity", def);
+            addOptionalChild(jobIdElement, "GlobalJobId", fields.globalJobId);
+            addOptionalChild(jobIdElement, "LocalJobId", fields.localJobId);
+            addOptionalChild(jobIdElement, "ProcessId", fields.processId);
+            root.addContent(jobIdElement);
+        }
+
+        for (int i = 0; i < fields.userIdCount; i++) {
+            Element userIdElement = new Element("UserIdentity", def);
+            addOptionalChild(userIdElement, "LocalUserId", fields.userIds[2 * i]);
+            addOptionalChild(userIdElement, "GlobalUserName", fields.userIds[2 * i + 1]);
+            root.addContent(userIdElement);
+        }
+
+        if (fields.jobName != null)
+            root.addContent(textElement("JobName", fields.jobName, fields.jobNameDescription));
+
+        if (fields.chargeSet) {
+            Element chargeElement = textElement("Charge", Float.toString(fields.charge), fields.chargeDescription);
+            setOptionalAttribute(chargeElement, "unit", fields.chargeUnit);
+            setOptionalAttribute(chargeElement, "formula", fields.chargeFormula);
+            root.addContent(chargeElement);
+        }
+
+        root.addContent(textElement("Status", fields.status.toString(), fields.statusDescription));
+
+        for (int i = 0; i < fields.projectNameCount; i++)
+            root.addContent(textElement("ProjectName", fields.projectNames[2 * i], fields.projectNames[2 * i + 1]));
+
+        addDifferentiatedProperties(root, "Disk", fields.disks, DISK_TYPES);
+        addDifferentiatedProperties(root, "Network", fields.networks, null);
+        addDifferentiatedProperties(root, "Memory", fields.memories, MEMORY_TYPES);
+
+        // TODO is this in the correct position?
+        for (int i = 0; i < fields.resourceCount; i++)
+            root.addContent(textElement("Resource", fields.resources[2 * i], fields.resources[2 * i + 1]));
+
+        return new Document(root);
+    }
+
+    /**
+     * Helper method: create an element with text content and an optional description
+     *
+     * @param name the name of the element
+     * @param text the content of the element
+     * @param description (optional - may be null)
+     * @return the new element
+     */
+    private static Element textElement(String name, String text, String description) {
+        Element element = new Element(name, def);
+        element.setText(text);
+        setOptionalAttribute(element, "description", description);
+        return element;
+    }
+
+    /**
+     * Helper method: set a urf attribute on an element if the value was supplied
+     *
+     * @param element the element to set the attribute on
+     * @param name the name of the attribute
+     * @param value the value of the attribute (may be null)
+     */
+    private static void setOptionalAttribute(Element element, String name, String value) {
+        if (value != null)
+            element.setAttribute(name, value, urf);
+    }
+
+    /**
+     * Helper method: add a child element with text content if the value was supplied
+     *
+     * @param parent the element to add the child to
+     * @param name the name of the child
+     * @param value the content of the child (may be null)
+     */
+    private static void addOptionalChild(Element parent, String name, String value) {
+        if (value != null)
+            parent.addContent(new Element(name, def).setText(value));
+    }
+
+    /**
+     * Helper method: add an element to the root for each entry of a differentiated property
+     *
+     * @param root the root of the document
+     * @param name the name of the elements
+     * @param properties the entries (may be null)
+     * @param types the DiskType or MemoryType values of the entries, or null if they have no type
+     */
+    private static void addDifferentiatedProperties(Element root, String name,
+                                                    DifferentiatedProperties properties, Enum<?>[] types) {
+        if (properties == null)
+            return;
+
+        for (int i = 0; i < properties.size(); i++) {
+            Element element = textElement(name, Long.toString(properties.getSize(i)),
+                    properties.getDescription(i));
+
+            if (properties.getUnit(i) != null)
+                element.setAttribute("storageUnit", properties.getUnit(i).toString(), urf);
+
+            if (properties.getMetric(i) != null)
+                element.setAttribute("metric", properties.getMetric(i).toString(), urf);
+
+            int type = properties.getTypeOrdinal(i);
+            if (types != null && type >= 0)
+                element.setAttribute("type", types[type].toString(), urf);
+
+            root.addContent(element);
+        }
+    }
+
+    /**
+     * Write the UsageRecord element straight to a streaming writer, in the same order as
+     * buildDocument() but without building a document. The urf, xsi and ds namespaces must
+     * already be declared by the enclosing element (see UsageRecordsWriter).
+     *
+     * @param out the writer to send the element to
+     * @throws XMLStreamException if the writer fails
+     * @throws UsageRecordException if the recordId or status are null (they must be set), or a
+     * string holds a character that is not legal in XML
+     */
+    final void writeTo(XMLStreamWriter out) throws XMLStreamException, UsageRecordException {
+        checkRequiredElements();
+        checkCharacters();
+
+        out.writeStartElement("", "UsageRecord", URF_NAMESPACE);
+
+        out.writeEmptyElement("", "RecordIdentity", URF_NAMESPACE);
+        writeOptionalAttribute(out, "recordId", fields.recordId);
+        writeOptionalAttribute(out, "createTime", fields.createTime);
+
+        if (fields.jobIdSet) {
+            out.writeStartElement("", "JobIdentity", URF_NAMESPACE);
+            writeOptionalChild(out, "GlobalJobId", fields.globalJobId);
+            writeOptionalChild(out, "LocalJobId", fields.localJobId);
+            writeOptionalChild(out, "ProcessId", fields.processId);
+            out.writeEndElement();
+        }
+
+        for (int i = 0; i < fields.userIdCount; i++) {
+            out.writeStartElement("", "UserIdentity", URF_NAMESPACE);
+            writeOptionalChild(out, "LocalUserId", fields.userIds[2 * i]);
+            writeOptionalChild(out, "GlobalUserName", fields.userIds[2 * i + 1]);
+            out.writeEndElement();
+        }
+
+        if (fields.jobName != null) {
+            writeStartElement(out, "JobName", fields.jobNameDescription);
+            out.writeCharacters(fields.jobName);
+            out.writeEndElement();
+        }
+
+        if (fields.chargeSet) {
+            writeStartElement(out, "Charge", fields.chargeDescription);
+            writeOptionalAttribute(out, "unit", fields.chargeUnit);
+            writeOptionalAttribute(out, "formula", fields.chargeFormula);
+            out.writeCharacters(Float.toString(fields.charge));
+            out.writeEndElement();
+        }
+
+        writeStartElement(out, "Status", fields.statusDescription);
+        out.writeCharacters(fields.status.toString());
+        out.writeEndElement();
+
+        for (int i = 0; i < fields.projectNameCount; i++) {
+            writeStartElement(out, "ProjectName", fields.projectNames[2 * i + 1]);
+            out.writeCharacters(fields.projectNames[2 * i]);
+            out.writeEndElement();
+        }
+
+        writeDifferentiatedProperties(out, "Disk", fields.disks, DISK_TYPES);
+        writeDifferentiatedProperties(out, "Network", fields.networks, null);
+        writeDifferentiatedProperties(out, "Memory", fields.memories, MEMORY_TYPES);
+
+        for (int i = 0; i < fields.resourceCount; i++) {
+            writeStartElement(out, "Resource", fields.resources[2 * i + 1]);
+            out.writeCharacters(fields.resources[2 * i]);
+            out.writeEndElement();
+        }
+
+        out.writeEndElement();
+    }
+
+    /**
+     * Helper method: start an element on a streaming writer with an optional description
+     *
+     * @param out the writer to send the element to
+     * @param name the name of the element
+     * @param description (optional - may be null)
+     * @throws XMLStreamException if the writer fails
+     */
+    private static void writeStartElement(XMLStreamWriter out, String name, String description)
+            throws XMLStreamException {
+        out.writeStartElement("", name, URF_NAMESPACE);
+        writeOptionalAttribute(out, "description", description);
+    }
+
+    /**
+     * Helper method: write a urf attribute to a streaming writer if the value was supplied
+     *
+     * @param out the writer to send the attribute to
+     * @param name the name of the attribute
+     * @param value the value of the attribute (may be null)
+     * @throws XMLStreamException if the writer fails
+     */
+    private static void writeOptionalAttribute(XMLStreamWriter out, String name, String value)
+            throws XMLStreamException {
+        if (value != null)
+            out.writeAttribute("urf", URF_NAMESPACE, name, value);
+    }
+
+    /**
+     * Helper method: write a child element with text content if the value was supplied
+     *
+     * @param out the writer to send the element to
+     * @param name the name of the element
+     * @param value the content of the element (may be null)
+     * @throws XMLStreamException if the writer fails
+     */
+    private static void writeOptionalChild(XMLStreamWriter out, String name, String value)
+            throws XMLStreamException {
+        if (value == null)
+            return;
+
+        out.writeStartElement("", name, URF_NAMESPACE);
+        out.writeCharacters(value);
+        out.writeEndElement();
+    }
+
+    /**
+     * Helper method: write an element for each entry of a differentiated property
+     *
+     * @param out the writer to send the elements to
+     * @param name the name of the elements
+     * @param properties the entries (may be null)
+     * @param types the DiskType or MemoryType values of the entries, or null if they have no type
+     * @throws XMLStreamException if the writer fails
+     */
+    private static void writeDifferentiatedProperties(XMLStreamWriter out, String name,
+                                                      DifferentiatedProperties properties, Enum<?>[] types)
+            throws XMLStreamException {
+        if (properties == null)
+            return;
+
+        for (int i = 0; i < properties.size(); i++) {
+            writeStartElement(out, name, properties.getDescription(i));
+
+            if (properties.getUnit(i) != null)
+                out.writeAttribute("urf", URF_NAMESPACE, "storageUnit", properties.getUnit(i).toString());
+
+            if (properties.getMetric(i) != null)
+                out.writeAttribute("urf", URF_NAMESPACE, "metric", properties.getMetric(i).toString());
+
+            int type = properties.getTypeOrdinal(i);
+            if (types != null && type >= 0)
+                out.writeAttribute("urf", URF_NAMESPACE, "type", types[type].toString());
+
+            out.writeCharacters(Long.toString(properties.getSize(i)));
+            out.writeEndElement();
+        }
+    }
+
+    /**
+     * Write the record as a UTF-8 document to an encoder, with the same bytes as toXml() but
+     * without building a document or a string (see UsageRecordEncoder)
+     *
+     * @param out the encoder to write the record to
+     * @throws UsageRecordException if the recordId or status are null (they must be set), or a
+     * string holds a character that is not legal in XML
+     */
+    final void writeTo(UsageRecordEncoder out) throws UsageRecordException {
+        checkRequiredElements();
+
+        out.startDocument();
+
+        out.openTag(UsageRecordEncoder.RECORD_IDENTITY);
+        out.attribute(UsageRecordEncoder.RECORD_ID, fields.recordId);
+        out.attribute(UsageRecordEncoder.CREATE_TIME, fields.createTime);
+        out.closeEmptyTag();
+
+        if (fields.jobIdSet) {
+            out.openTag(UsageRecordEncoder.JOB_IDENTITY);
+            if (fields.globalJobId == null && fields.localJobId == null && fields.processId == null) {
+                out.closeEmptyTag();
+            }
+            else {
+                out.closeTag();
+                writeOptionalChild(out, UsageRecordEncoder.GLOBAL_JOB_ID, fields.globalJobId);
+                writeOptionalChild(out, UsageRecordEncoder.LOCAL_JOB_ID, fields.localJobId);
+                writeOptionalChild(out, UsageRecordEncoder.PROCESS_ID, fields.processId);
+                out.endTag(UsageRecordEncoder.JOB_IDENTITY);
+            }
+        }
+
+        for (int i = 0; i < fields.userIdCount; i++) {
+            out.openTag(UsageRecordEncoder.USER_IDENTITY);
+            if (fields.userIds[2 * i] == null && fields.userIds[2 * i + 1] == null) {
+                out.closeEmptyTag();
+            }
+            else {
+                out.closeTag();
+                writeOptionalChild(out, UsageRecordEncoder.LOCAL_USER_ID, fields.userIds[2 * i]);
+                writeOptionalChild(out, UsageRecordEncoder.GLOBAL_USER_NAME, fields.userIds[2 * i + 1]);
+                out.endTag(UsageRecordEncoder.USER_IDENTITY);
+            }
+        }
+
+        if (fields.jobName != null) {
+            writeStartElement(out, UsageRecordEncoder.JOB_NAME, fields.jobNameDescription);
+            out.text(fields.jobName);
+            out.endTag(UsageRecordEncoder.JOB_NAME);
+        }
+
+        if (fields.chargeSet) {
+            out.openTag(UsageRecordEncoder.CHARGE);
+            out.attribute(UsageRecordEncoder.DESCRIPTION, fields.chargeDescription);
+            out.attribute(UsageRecordEncoder.UNIT, fields.chargeUnit);
+            out.attribute(UsageRecordEncoder.FORMULA, fields.chargeFormula);
+            out.closeTag();
+            out.text(fields.charge);
+            out.endTag(UsageRecordEncoder.CHARGE);
+        }
+
+        writeStartElement(out, UsageRecordEncoder.STATUS, fields.statusDescription);
+        out.text(UsageRecordEncoder.STATUS_NAMES[fields.status.ordinal()]);
+        out.endTag(UsageRecordEncoder.STATUS);
+
+        for (int i = 0; i < fields.projectNameCount; i++) {
+            writeStartElement(out, UsageRecordEncoder.PROJECT_NAME, fields.projectNames[2 * i + 1]);
+            out.text(fields.projectNames[2 * i]);
+            out.endTag(UsageRecordEncoder.PROJECT_NAME);
+        }
+
+        writeDifferentiatedProperties(out, UsageRecordEncoder.DISK, fields.disks, UsageRecordEncoder.DISK_TYPE_NAMES);
+        writeDifferentiatedProperties(out, UsageRecordEncoder.NETWORK, fields.networks, null);
+        writeDifferentiatedProperties(out, UsageRecordEncoder.MEMORY, fields.memories,
+                UsageRecordEncoder.MEMORY_TYPE_NAMES);
+
+        for (int i = 0; i < fields.resourceCount; i++) {
+            writeStartElement(out, UsageRecordEncoder.RESOURCE, fields.resources[2 * i + 1]);
+            out.text(fields.resources[2 * i]);
+            out.endTag(UsageRecordEncoder.RESOURCE);
+        }
+
+        out.endDocument();
+    }
+
+    /**
+     * Helper method: start an element on an encoder with an optional description
+     *
+     * @param out the encoder to write the element to
+     * @param name the encoded name of the element
+     * @param description (optional - may be null)
+     */
+    private static void writeStartElement(UsageRecordEncoder out, byte[] name, String description) {
+        out.openTag(name);
+        out.attribute(UsageRecordEncoder.DESCRIPTION, description);
+        out.closeTag();
+    }
+
+    /**
+     * Helper method: write a child element with text content to an encoder if the value was
+     * supplied
+     *
+     * @param out the encoder to write the element to
+     * @param name the encoded name of the element
+     * @param value the content of the element (may be null)
+     */
+    private static void writeOptionalChild(UsageRecordEncoder out, byte[] name, String value) {
+        if (value == null)
+            return;
+
+        out.openTag(name);
+        out.closeTag();
+        out.text(value);
+        out.endTag(name);
+    }
+
+    /**
+     * Helper method: write an element for each entry of a differentiated property to an encoder
+     *
+     * @param out the encoder to write the elements to
+     * @param name the encoded name of the elements
+     * @param properties the entries (may be null)
+     * @param types the encoded DiskType or MemoryType names, or null if the entries have no type
+     */
+    private static void writeDifferentiatedProperties(UsageRecordEncoder out, byte[] name,
+                                                      DifferentiatedProperties properties, byte[][] types) {
+        if (properties == null)
+            return;
+
+        for (int i = 0; i < properties.size(); i++) {
+            out.openTag(name);
+            out.attribute(UsageRecordEncoder.DESCRIPTION, properties.getDescription(i));
+
+            if (properties.getUnit(i) != null)
+                out.attribute(UsageRecordEncoder.STORAGE_UNIT, UsageRecordEncoder.UNIT_NAMES[properties.getUnit(i).ordinal()]);
+
+            if (properties.getMetric(i) != null)
+                out.attribute(UsageRecordEncoder.METRIC, UsageRecordEncoder.METRIC_NAMES[properties.getMetric(i).ordinal()]);
+
+            int type = properties.getTypeOrdinal(i);
+            if (types != null && type >= 0)
+                out.attribute(UsageRecordEncoder.TYPE, types[type]);
+
+            out.closeTag();
+            out.text(properties.getSize(i));
+            out.endTag(name);
+        }
+    }
+
+    /**
+     * Write the record to a binary record stream, in the compact encoding described by
+     * BinaryRecordWriter. The fields are written in the order buildDocument() adds them.
+     *
+     * @param out the stream to write the record to
+     * @throws UsageRecordException if the recordId or status are null (they must be set), or
+     * the record has more than MAX_BINARY_ELEMENTS elements of one kind
+     */
+    final void writeTo(BinaryRecordWriter out) throws UsageRecordException {
+        checkRequiredElements();
+        int most = Math.max(Math.max(fields.userIdCount, fields.projectNameCount), fields.resourceCount);
+        most = Math.max(most, Math.max(Math.max(count(fields.disks), count(fields.networks)), count(fields.memories)));
+        if (most > MAX_BINARY_ELEMENTS)
+            throw new UsageRecordException("A record with more than " + MAX_BINARY_ELEMENTS
+                    + " elements of one kind cannot be written to a binary record stream");
+
+        // The recordId and createTime are only packed when they unpack to the same string
+        RandomGUID guid = getRecordGUID();
+        if (guid != null && !guid.toString().equals(fields.recordId))
+            guid = null;
+        long createTime = fields.createTime == null ? -1 : BinaryRecordWriter.parseTime(fields.createTime);
+
+        int flags = 0;
+        if (fields.jobIdSet)
+            flags |= BINARY_JOB_ID;
+        if (fields.chargeSet)
+            flags |= BINARY_CHARGE;
+        if (guid != null)
+            flags |= BINARY_GUID;
+        if (createTime >= 0)
+            flags |= BINARY_CREATE_TIME;
+        out.writeVarint(flags);
+
+        if (guid != null) {
+            out.writeLong(guid.getMostSignificantBits());
+            out.writeLong(guid.getLeastSignificantBits());
+        }
+        else {
+            out.writeLiteral(fields.recordId);
+        }
+
+        if (createTime >= 0)
+            out.writeVarint(createTime);
         else
-            root.addContent(recordIdElement);
+            out.writeLiteral(fields.createTime);
+
+        if (fields.jobIdSet) {
+            out.writeLiteral(fields.globalJobId);
+            out.writeLiteral(fields.localJobId);
+            out.writeLiteral(fields.processId);
+        }
 
-        if (jobIdElement != null)           root.addContent(jobIdElement);
-        if (userIdElements != null)         root.addContent(userIdElements);
-        if (jobNameElement != null)         root.addContent(jobNameElement);
-        if (chargeElement != null)          root.addContent(chargeElement);
+        writePairs(out, fields.userIds, fields.userIdCount);
 
-        // From UR specification - this must exist
-        if (statusElement == null)
-            throw new UsageRecordException("The status must be set");
+        out.writeString(fields.jobName);
+        out.writeString(fields.jobNameDescription);
+
+        if (fields.chargeSet) {
+            out.writeInt(Float.floatToRawIntBits(fields.charge));
+            out.writeString(fields.chargeDescription);
+            out.writeString(fields.chargeUnit);
+            out.writeString(fields.chargeFormula);
+        }
+
+        out.writeVarint(fields.status.ordinal());
+        out.writeString(fields.statusDescription);
+
+        writePairs(out, fields.projectNames, fields.projectNameCount);
+
+        writeDifferentiatedProperties(out, fields.disks);
+        writeDifferentiatedProperties(out, fields.networks);
+        writeDifferentiatedProperties(out, fields.memories);
+
+        writePairs(out, fields.resources, fields.resourceCount);
+    }
+
+    /**
+     * Read a record written by writeTo(BinaryRecordWriter) from a binary record stream
+     *
+     * @param in the stream to read the record from
+     * @return the record
+     * @throws IOException if the stream cannot be read
+     * @throws UsageRecordException if the stream is truncated or corrupt
+     */
+    static UsageRecord readFrom(BinaryRecordReader in) throws IOException, UsageRecordException {
+        Fields fields = new Fields();
+        int flags = in.readVarint32();
+
+        if ((flags & BINARY_GUID) != 0) {
+            long mostSigBits = in.readLong();
+            fields.recordId = new RandomGUID(mostSigBits, in.readLong()).toString();
+        }
+        else {
+            fields.recordId = in.readString();
+        }
+
+        if ((flags & BINARY_CREATE_TIME) != 0)
+            fields.createTime = BinaryRecordReader.formatTime(in.readVarint());
         else
-            root.addContent(statusElement);
+            fields.createTime = in.readString();
 
-        if (projectNameElements != null)    root.addContent(projectNameElements);
-        if (diskElements != null)           root.addContent(diskElements);
-        if (networkElements != null)        root.addContent(networkElements);
-        if (memoryElements != null)         root.addContent(memoryElements);
+        if ((flags & BINARY_JOB_ID) != 0) {
+            fields.jobIdSet = true;
+            fields.globalJobId = in.readString();
+            fields.localJobId = in.readString();
+            fields.processId = in.readString();
+        }
 
-        // TODO is this in the correct position?
-        if (resourceTypeElements != null)   root.addContent(resourceTypeElements);
+        fields.userIdCount = readCount(in);
+        fields.userIds = readPairs(in, fields.userIdCount);
+
+        fields.jobName = in.readString();
+        fields.jobNameDescription = in.readString();
+
+        if ((flags & BINARY_CHARGE) != 0) {
+            fields.chargeSet = true;
+            fields.charge = Float.intBitsToFloat(in.readInt());
+            fields.chargeDescription = in.readString();
+            fields.chargeUnit = in.readString();
+            fields.chargeFormula = in.readString();
+        }
+
+        fields.status = STATUSES[in.readVarint32()];
+        fields.statusDescription = in.readString();
+
+        fields.projectNameCount = readCount(in);
+        fields.projectNames = readPairs(in, fields.projectNameCount);
+
+        fields.disks = readDifferentiatedProperties(in, DISK_TYPES.length);
+        fields.networks = readDifferentiatedProperties(in, 0);
+        fields.memories = readDifferentiatedProperties(in, MEMORY_TYPES.length);
 
+        fields.resourceCount = readCount(in);
+        fields.resources = readPairs(in, fields.resourceCount);
+
+        if (fields.recordId == null)
+            throw new UsageRecordException("Corrupt ur4j binary record stream");
+        return new UsageRecord(fields, false);
+    }
+
+    /**
+     * Helper method: write a flat array of pairs to a binary record stream
+     *
+     * @param out the stream to write the pairs to
+     * @param pairs the array holding the pairs (may be null if count is 0)
+     * @param count the number of pairs in the array
+     */
+    private static void writePairs(BinaryRecordWriter out, String[] pairs, int count) {
+        out.writeVarint(count);
+        for (int i = 0; i < 2 * count; i++)
+            out.writeString(pairs[i]);
+    }
+
+    /**
+     * Helper method: read the number of elements of one kind from a binary record stream
+     *
+     * @param in the stream to read the number from
+     * @return the number of elements
+     * @throws IOException if the stream cannot be read
+     * @throws UsageRecordException if the number is more than MAX_BINARY_ELEMENTS
+     */
+    private static int readCount(BinaryRecordReader in) throws IOException, UsageRecordException {
+        int count = in.readVarint32();
+        if (count > MAX_BINARY_ELEMENTS)
+            throw new UsageRecordException("Corrupt ur4j binary record stream");
+        return count;
+    }
+
+    /**
+     * Helper method: read a flat array of pairs from a binary record stream
+     *
+     * @param in the stream to read the pairs from
+     * @param count the number of pairs
+     * @return the array holding the pairs, or null if there are none
+     * @throws IOException if the stream cannot be read
+     */
+    private static String[] readPairs(BinaryRecordReader in, int count) throws IOException {
+        if (count == 0)
+            return null;
+
+        String[] pairs = new String[2 * count];
+        for (int i = 0; i < pairs.length; i++)
+            pairs[i] = in.readString();
+        return pairs;
+    }
+
+    /**
+     * Helper method: write the entries of a differentiated property to a binary record stream
+     *
+     * @param out the stream to write the entries to
+     * @param properties the entries (may be null)
+     */
+    private static void writeDifferentiatedProperties(BinaryRecordWriter out, DifferentiatedProperties properties) {
+        int count = properties == null ? 0 : properties.size();
+        out.writeVarint(count);
+        for (int i = 0; i < count; i++) {
+            out.writeVarint(properties.getSize(i));
+            out.writeVarint(properties.getCode(i));
+            out.writeString(properties.getDescription(i));
+        }
+    }
+
+    /**
+     * Helper method: read the entries of a differentiated property from a binary record stream
+     *
+     * @param in the stream to read the entries from
+     * @param types the number of DiskType or MemoryType values, or 0 if the entries have no type
+     * @return the entries, or null if there are none
+     * @throws IOException if the stream cannot be read
+     * @throws UsageRecordException if the stream holds too many entries or a code that is out
+     * of range
+     */
+    private static DifferentiatedProperties readDifferentiatedProperties(BinaryRecordReader in, int types)
+            throws IOException, UsageRecordException {
+        int count = readCount(in);
+        if (count == 0)
+            return null;
+
+        DifferentiatedProperties properties = new DifferentiatedProperties();
+        for (int i = 0; i < count; i++) {
+            long size = in.readVarint();
+            int code = in.readVarint32();
+            if (!DifferentiatedProperties.isValidCode(code, types))
+                throw new UsageRecordException("Corrupt ur4j binary record stream");
+            properties.add(size, in.readString(), code);
+        }
+        return properties;
     }
 
     /**
@@ -576,7 +1918,7 @@ public class UsageRecord {
      * @throws UsageRecordException if the recordId or status are null (they must be set)
      */
     public final String toPrettyXml() throws UsageRecordException {
-        buildDocument();
+        Document document = buildDocument();
         try {
             XMLOutputter xmlo = new XMLOutputter();
             xmlo.setFormat(Format.getPrettyFormat());
@@ -589,69 +1931,73 @@ public class UsageRecord {
     }
 
     /**
-     * Helper method: return UsageRecord as a non-formatted string
+     * Helper method: return UsageRecord as a non-formatted string. The string is kept until
+     * the record is next changed, so calling this method again costs nothing.
      *
      * @return document as single-line string
-     * @throws UsageRecordException if the recordId or status are null (they must be set)
+     * @throws UsageRecordException if the recordId or status are null (they must be set), or a
+     * string holds a character that is not legal in XML
      */
     public final String toXml() throws UsageRecordException {
-        buildDocument();
-        return new XMLOutputter().outputString(document);
+        String cached = xml;
+        if (cached == null) {
+            cached = new XMLOutputter().outputString(buildDocument());
+            xml = cached;
+        }
+        return cached;
     }
 
     /**
-     * Validate the UsageRecord against the UR.098 schema
+     * Validate the UsageRecord against the UR.098 schema. The schema bundled with ur4j is used,
+     * so no network access is needed, and this method may be called from many threads at once.
+     * The outcome is kept until the record is next changed, so validating it again only
+     * repeats the logging of the error.
      *
      * @return a boolean indicating if the validation succeeded
      */
     public final boolean validate() {
-
-        SAXBuilder builder = new SAXBuilder(true);
-        builder.setFeature ("http://apache.org/xml/features/validation/schema", true);
-        builder.setFeature ("http://apache.org/xml/features/validation/schema-full-checking", true);
-        builder.setProperty("http://apache.org/xml/properties/schema/external-schemaLocation", def.getURI());
-
-        builder.setErrorHandler(new ErrorHandler() {
-
-            public void error(SAXParseException e) {
-                log.error("Error parsing UR: " + e.getMessage());
+        String outcome = validation;
+        if (outcome == null) {
+            Validator validator = UsageRecordSchema.acquire();
+            try {
+                validate(validator);
+                outcome = VALID;
             }
-
-            public void fatalError(SAXParseException e) {
-               log.error("Fatal error parsing UR: " + e.getMessage());
+            catch (SAXException e) {
+                outcome = "Error validating UR: " + e.getMessage();
             }
-
-            public void warning(SAXParseException e) {
-                log.error("Warning parsing UR: " + e.getMessage());
+            catch (IOException e) {
+                outcome = "Caught IOException: " + e.getMessage();
             }
-        });
-
-        boolean validated = false;
-
-        try {
-            String document = this.toXml();
-            builder.build(new StringReader(document));
-            validated = true;
-        }
-        catch (JDOMException e) {
-            log.error("Caught JDOM Exception: " + e.getMessage());
-            validated = false;
-        }
-        catch (IOException e) {
-            log.error("Caught IOException: " + e.getMessage());
-            validated = false;
+            catch (UsageRecordException e) {
+                outcome = "Caught UsageRecordException: " + e.getMessage();
+            }
+            finally {
+                UsageRecordSchema.release(validator);
+            }
+            validation = outcome;
         }
-        catch (UsageRecordException e) {
-            log.error("Caught UsageRecordException: " + e.getMessage());
-            validated = false;
+
+        if (outcome != VALID) {
+            log.error(outcome);
+            return false;
         }
-        return validated;
+        return true;
     }
 
     /**
-     * Send the UsageRecord to the RUS given in the EPR for storage
+     * Validate the UsageRecord against the UR.098 schema with a validator the caller holds,
+     * so that a batch of records can be validated without going to the pool for each one.
+     * The built document is passed to the validator as SAX events, it is not written out as
+     * text and parsed back (which is slower even when the text is kept by toXml()).
+     *
+     * @param validator a validator of the UR.098 schema, only used by the calling thread
+     * @throws SAXException if the record is not valid
+     * @throws IOException if the validator fails to read the record
+     * @throws UsageRecordException if the recordId or status are null (they must be set), or a
+     * string holds a character that is not legal in XML
      */
-    //public final void sendToRUS(String rusEpr) {
-        // TODO : Send the  UR to the RUS given. SOAP or straight HTTP?
-    //}
+    final void validate(Validator validator) throws SAXException, IOException, UsageRecordException {
+        validator.validate(new JDOMSource(buildDocument()));
+    }
 }
@@ -0,0 +1,354 @@
+package es.bsc.ur4j;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes a usage record as UTF-8 XML straight into a ByteBuffer the caller supplies and
+ * reuses, without building a document or a String. The bytes are exactly those of
+ * toXml() encoded as UTF-8, so a record can be sent to a socket or a file without the
+ * garbage of the string and of encoding it again.
+ * <P>
+ * The XML declaration, the namespace declarations, the schemaLocation and every element and
+ * attribute name are encoded once, when the class is loaded, and copied into the buffer as
+ * they are. Text and attribute values are escaped and encoded a character at a time, sizes
+ * are written digit by digit, and the few charges not yet seen by the encoder are formatted
+ * once and kept, so encoding a record allocates nothing once the encoder has warmed up.
+ * <P>
+ * Each record is a document of its own, so the buffers of several records can be written to
+ * a FileChannel or SocketChannel with a single gathering write:
+ * <P>
+ * <PRE>
+ *   for (int i = 0; i < records.length; i++) {
+ *       buffers[i].clear();
+ *       encoder.encode(records[i], buffers[i]);
+ *       buffers[i].flip();
+ *   }
+ *   channel.write(buffers);
+ * </PRE>
+ * <P>
+ * This class is not thread safe; use an encoder per thread.
+ */
+public final class UsageRecordEncoder {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // XMLOutputter ends the declaration and the document with \r\n
+    private static final byte[] PROLOG = bytes("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n"
+            + "<UsageRecord xmlns=\"" + UsageRecord.URF_NAMESPACE
+            + "\" xmlns:urf=\"" + UsageRecord.URF_NAMESPACE
+            + "\" xmlns:xsi=\"" + UsageRecord.XSI_NAMESPACE
+            + "\" xmlns:ds=\"" + UsageRecord.DS_NAMESPACE
+            + "\" xsi:schemaLocation=\"" + UsageRecord.SCHEMA_LOCATION + "\">");
+    private static final byte[] EPILOG = bytes("</UsageRecord>\r\n");
+
+    private static final byte[] CLOSE_EMPTY_TAG = bytes(" />");
+
+    // Element names
+    static final byte[] RECORD_IDENTITY = bytes("RecordIdentity");
+    static final byte[] JOB_IDENTITY = bytes("JobIdentity");
+    static final byte[] GLOBAL_JOB_ID = bytes("GlobalJobId");
+    static final byte[] LOCAL_JOB_ID = bytes("LocalJobId");
+    static final byte[] PROCESS_ID = bytes("ProcessId");
+    static final byte[] USER_IDENTITY = bytes("UserIdentity");
+    static final byte[] LOCAL_USER_ID = bytes("LocalUserId");
+    static final byte[] GLOBAL_USER_NAME = bytes("GlobalUserName");
+    static final byte[] JOB_NAME = bytes("JobName");
+    static final byte[] CHARGE = bytes("Charge");
+    static final byte[] STATUS = bytes("Status");
+    static final byte[] PROJECT_NAME = bytes("ProjectName");
+    static final byte[] DISK = bytes("Disk");
+    static final byte[] NETWORK = bytes("Network");
+    static final byte[] MEMORY = bytes("Memory");
+    static final byte[] RESOURCE = bytes("Resource");
+
+    // Attributes, up to the opening quote of the value
+    static final byte[] RECORD_ID = bytes(" urf:recordId=\"");
+    static final byte[] CREATE_TIME = bytes(" urf:createTime=\"");
+    static final byte[] DESCRIPTION = bytes(" urf:description=\"");
+    static final byte[] UNIT = bytes(" urf:unit=\"");
+    static final byte[] FORMULA = bytes(" urf:formula=\"");
+    static final byte[] STORAGE_UNIT = bytes(" urf:storageUnit=\"");
+    static final byte[] METRIC = bytes(" urf:metric=\"");
+    static final byte[] TYPE = bytes(" urf:type=\"");
+
+    // The names of the enum values, by ordinal
+    static final byte[][] STATUS_NAMES = names(UsageRecord.Status.values());
+    static final byte[][] UNIT_NAMES = names(UsageRecord.Unit.values());
+    static final byte[][] METRIC_NAMES = names(UsageRecord.Metric.values());
+    static final byte[][] DISK_TYPE_NAMES = names(UsageRecord.DiskType.values());
+    static final byte[][] MEMORY_TYPE_NAMES = names(UsageRecord.MemoryType.values());
+
+    private static final int CHARGE_CACHE_SIZE = 64;
+
+    // The charges formatted so far, by the low bits of their float bits
+    private final int[] chargeBits = new int[CHARGE_CACHE_SIZE];
+    private final byte[][] chargeText = new byte[CHARGE_CACHE_SIZE][];
+
+    private ByteBuffer out;
+
+    /**
+     * Encode a record into a buffer, from the position of the buffer. If the record does not
+     * fit the position of the buffer is put back where it was, so the record can be encoded
+     * again into a larger buffer; so it is if the record cannot be encoded.
+     *
+     * @param record the record to encode
+     * @param buffer the buffer to encode the record into
+     * @return the number of bytes written to the buffer
+     * @throws UsageRecordException if the recordId or status of the record are not set, or a
+     * string of the record holds a character that is not legal in XML (which toXml() refuses too)
+     * @throws BufferOverflowException if the record does not fit in the rest of the buffer
+     */
+    public int encode(UsageRecord record, ByteBuffer buffer) throws UsageRecordException, BufferOverflowException {
+        int start = buffer.position();
+        out = buffer;
+        try {
+            record.writeTo(this);
+        }
+        catch (BufferOverflowException e) {
+            buffer.position(start);
+            throw e;
+        }
+        catch (UsageRecordException e) {
+            buffer.position(start);
+            throw e;
+        }
+        finally {
+            out = null;
+        }
+        return buffer.position() - start;
+    }
+
+    /**
+     * Write the XML declaration and the start tag of the UsageRecord element
+     */
+    void startDocument() {
+        out.put(PROLOG);
+    }
+
+    /**
+     * Write the end tag of the UsageRecord element and the end of the document
+     */
+    void endDocument() {
+        out.put(EPILOG);
+    }
+
+    /**
+     * Open the start tag of an element, so attributes can be added to it
+     *
+     * @param name the name of the element
+     */
+    void openTag(byte[] name) {
+        out.put((byte) '<');
+        out.put(name);
+    }
+
+    /**
+     * Close the start tag of an element that has content
+     */
+    void closeTag() {
+        out.put((byte) '>');
+    }
+
+    /**
+     * Close the start tag of an element that has no content, which ends the element
+     */
+    void closeEmptyTag() {
+        out.put(CLOSE_EMPTY_TAG);
+    }
+
+    /**
+     * Write the end tag of an element
+     *
+     * @param name the name of the element
+     */
+    void endTag(byte[] name) {
+        out.put((byte) '<');
+        out.put((byte) '/');
+        out.put(name);
+        out.put((byte) '>');
+    }
+
+    /**
+     * Write an attribute of the open start tag if the value was supplied
+     *
+     * @param name the attribute, up to the opening quote of the value
+     * @param value the value of the attribute (may be null)
+     */
+    void attribute(byte[] name, String value) {
+        if (value == null)
+            return;
+
+        out.put(name);
+        escape(value, true);
+        out.put((byte) '"');
+    }
+
+    /**
+     * Write an attribute of the open start tag with a value encoded in advance
+     *
+     * @param name the attribute, up to the opening quote of the value
+     * @param value the encoded value of the attribute, which needs no escaping
+     */
+    void attribute(byte[] name, byte[] value) {
+        out.put(name);
+        out.put(value);
+        out.put((byte) '"');
+    }
+
+    /**
+     * Write text content
+     *
+     * @param text the text
+     */
+    void text(String text) {
+        escape(text, false);
+    }
+
+    /**
+     * Write text content encoded in advance
+     *
+     * @param text the encoded text, which needs no escaping
+     */
+    void text(byte[] text) {
+        out.put(text);
+    }
+
+    /**
+     * Write a number as text content, as Long.toString() would
+     *
+     * @param value the number
+     */
+    void text(long value) {
+        if (value < 0)
+            out.put((byte) '-');
+
+        // The digits are taken from the quotients as they are, so Long.MIN_VALUE needs no negating
+        long divisor = 1;
+        while (value / divisor >= 10 || value / divisor <= -10)
+            divisor *= 10;
+        for (; divisor > 0; divisor /= 10)
+            out.put((byte) ('0' + Math.abs(value / divisor % 10)));
+    }
+
+    /**
+     * Write a charge as text content, as Float.toString() would. Each charge is formatted the
+     * first time it is seen and kept, so charges repeated from record to record cost nothing.
+     *
+     * @param value the charge
+     */
+    void text(float value) {
+        int bits = Float.floatToIntBits(value);
+        int slot = (bits ^ (bits >>> 16)) & (CHARGE_CACHE_SIZE - 1);
+        if (chargeText[slot] == null || chargeBits[slot] != bits) {
+            chargeText[slot] = bytes(Float.toString(value));
+            chargeBits[slot] = bits;
+        }
+        out.put(chargeText[slot]);
+    }
+
+    /**
+     * Helper method: write a string as UTF-8, escaped as XMLOutputter escapes text or
+     * attribute values
+     *
+     * @param value the string
+     * @param attribute true to escape it as an attribute value
+     * @throws UsageRecordException if the string holds a character that is not legal in XML
+     */
+    private void escape(String value, boolean attribute) {
+        ByteBuffer out = this.out;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '&':
+                        put("&amp;");
+                        break;
+                    case '<':
+                        put("&lt;");
+                        break;
+                    case '>':
+                        put("&gt;");
+                        break;
+                    case '\r':
+                        put("&#xD;");
+                        break;
+                    case '"':
+                        if (attribute)
+                            put("&quot;");
+                        else
+                            out.put((byte) c);
+                        break;
+                    case '\t':
+                        if (attribute)
+                            put("&#x9;");
+                        else
+                            out.put((byte) c);
+                        break;
+                    case '\n':
+                        // XMLOutputter writes its line separator for a newline in text
+                        put(attribute ? "&#xA;" : "\r\n");
+                        break;
+                    default:
+                        if (c < 0x20)
+                            throw UsageRecord.illegalCharacter(c);
+                        out.put((byte) c);
+                }
+            }
+            else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.put((byte) (0xF0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (codePoint & 0x3F)));
+            }
+            else if (Character.isSurrogate(c) || c >= 0xFFFE) {
+                throw UsageRecord.illegalCharacter(c);
+            }
+            else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Helper method: write an ASCII entity reference
+     *
+     * @param entity the entity reference
+     */
+    private void put(String entity) {
+        for (int i = 0; i < entity.length(); i++)
+            out.put((byte) entity.charAt(i));
+    }
+
+    /**
+     * Helper method: encode a constant as UTF-8
+     *
+     * @param s the constant
+     * @return the encoded bytes
+     */
+    private static byte[] bytes(String s) {
+        return s.getBytes(UTF8);
+    }
+
+    /**
+     * Helper method: encode the names of the values of an enum
+     *
+     * @param values the values, in ordinal order
+     * @return the encoded names, by ordinal
+     */
+    private static byte[][] names(Enum<?>[] values) {
+        byte[][] names = new byte[values.length][];
+        for (int i = 0; i < values.length; i++)
+            names[i] = bytes(values[i].toString());
+        return names;
+    }
+}
@@ -0,0 +1,83 @@
+package es.bsc.ur4j;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of UsageRecords for producers that build very many records, so that a record can be
+ * filled, written or sent, and then filled again instead of creating a new one each time.
+ * <P>
+ * acquire() takes a blank record from the pool, creating a new one if the pool is empty, and
+ * release() resets a record and gives it back. A record must not be used after it has been
+ * released; anything that keeps a record for later (a queue, a cache) should keep a snapshot of
+ * it, as RusSender and ParallelRecordsWriter do. The pool keeps at most capacity records, any
+ * released beyond that are left to the garbage collector.
+ * <P>
+ * A producer working on one thread needs no pool, it can simply call reset() on its record
+ * once the record has been written.
+ * <P>
+ * This class is thread safe.
+ */
+public final class UsageRecordPool {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final ConcurrentLinkedQueue<UsageRecord> records = new ConcurrentLinkedQueue<UsageRecord>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int capacity;
+
+    /**
+     * Create a pool that keeps up to DEFAULT_CAPACITY records
+     */
+    public UsageRecordPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a pool
+     *
+     * @param capacity the most records the pool keeps
+     */
+    public UsageRecordPool(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("The capacity must be at least 1");
+        this.capacity = capacity;
+    }
+
+    /**
+     * Take a blank record from the pool, creating a new one if the pool is empty
+     *
+     * @return a record with nothing set, only used by the caller until it is released
+     */
+    public UsageRecord acquire() {
+        UsageRecord record = records.poll();
+        if (record == null)
+            return new UsageRecord();
+
+        size.decrementAndGet();
+        return record;
+    }
+
+    /**
+     * Reset a record and give it back to the pool
+     *
+     * @param record the record, which the caller must not use again
+     * @throws UsageRecordException if the record is a snapshot
+     */
+    public void release(UsageRecord record) throws UsageRecordException {
+        record.reset();
+        if (size.incrementAndGet() <= capacity)
+            records.offer(record);
+        else
+            size.decrementAndGet();
+    }
+
+    /**
+     * Get the number of records in the pool
+     *
+     * @return the number of blank records waiting to be acquired
+     */
+    public int size() {
+        return size.get();
+    }
+}
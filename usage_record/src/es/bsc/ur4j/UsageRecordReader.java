@@ -0,0 +1,428 @@
+package es.bsc.ur4j;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A streaming reader for GFD.098 usage records. It reads either a UsageRecords document,
+ * returning the records inside it one at a time, or a document holding a single UsageRecord
+ * (such as the output of UsageRecord.toXml()).
+ * <P>
+ * Records are read lazily with a StAX cursor: each call to next() parses only the next record
+ * and fills a UsageRecord with it, no JDOM tree is built and nothing is kept once the record
+ * has been returned, so archives of any size can be read with constant memory.
+ * <P>
+ * Elements are matched on their local names, so records written with the older urwg namespace
+ * are accepted as well, and elements ur4j does not support are skipped. Records written by
+ * earlier versions of ur4j (with urf:units and ResourceType) can also be read.
+ * <P>
+ * This class is not thread safe.
+ */
+public final class UsageRecordReader implements Iterator<UsageRecord>, Closeable {
+
+    private static final XMLInputFactory factory = createFactory();
+
+    private final Closeable stream;
+    private final XMLStreamReader in;
+    private boolean singleRecord;
+    private boolean pending;
+    private boolean finished;
+    private long recordCount;
+
+    /**
+     * Create a reader for a document in an input stream. The encoding is taken from the
+     * XML declaration.
+     *
+     * @param stream the stream to read the document from
+     * @throws UsageRecordException if the document cannot be read
+     */
+    public UsageRecordReader(InputStream stream) throws UsageRecordException {
+        this.stream = stream;
+        try {
+            in = factory.createXMLStreamReader(stream);
+            start();
+        }
+        catch (XMLStreamException e) {
+            throw new UsageRecordException(e);
+        }
+    }
+
+    /**
+     * Create a reader for a document in a character stream
+     *
+     * @param reader the reader to read the document from
+     * @throws UsageRecordException if the document cannot be read
+     */
+    public UsageRecordReader(Reader reader) throws UsageRecordException {
+        this.stream = reader;
+        try {
+            in = factory.createXMLStreamReader(reader);
+            start();
+        }
+        catch (XMLStreamException e) {
+            throw new UsageRecordException(e);
+        }
+    }
+
+    /**
+     * Helper method: create the factory for the stream readers. Text is coalesced so element
+     * values arrive in one piece and DTDs are refused so no external entities are fetched.
+     *
+     * @return the factory
+     */
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory f = XMLInputFactory.newInstance();
+        f.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        f.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        return f;
+    }
+
+    /**
+     * Helper method: move to the root element and work out what kind of document it is
+     *
+     * @throws XMLStreamException if the document is not well formed
+     * @throws UsageRecordException if the root element is not a usage record or UsageRecords
+     */
+    private void start() throws XMLStreamException, UsageRecordException {
+        in.nextTag();
+        String name = in.getLocalName();
+
+        if (isRecord(name)) {
+            singleRecord = true;
+            pending = true;
+        }
+        else if (!name.equals("UsageRecords")) {
+            throw new UsageRecordException("Not a usage record document: " + name);
+        }
+    }
+
+    /**
+     * Helper method: test if an element name is one of the usage record elements
+     *
+     * @param name the local name of the element
+     * @return true if the element holds a usage record
+     */
+    private static boolean isRecord(String name) {
+        return name.equals("UsageRecord") || name.equals("JobUsageRecord") || name.equals("Usage");
+    }
+
+    /**
+     * Test if there is another record in the document
+     *
+     * @return true if next() will return a record
+     * @throws UsageRecordException if the document cannot be read
+     */
+    public boolean hasNext() throws UsageRecordException {
+        if (pending)
+            return true;
+        if (finished || singleRecord)
+            return false;
+
+        try {
+            while (in.hasNext()) {
+                int event = in.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (isRecord(in.getLocalName())) {
+                        pending = true;
+                        return true;
+                    }
+                    skipElement();
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT) {
+                    break; // the end of UsageRecords
+                }
+            }
+        }
+        catch (XMLStreamException e) {
+            throw new UsageRecordException(e);
+        }
+        finished = true;
+        return false;
+    }
+
+    /**
+     * Read the next record from the document. A record that is not valid is skipped, so the
+     * records after it can still be read.
+     *
+     * @return the next usage record
+     * @throws NoSuchElementException if there are no more records
+     * @throws UsageRecordException if the document cannot be read or the record is not valid
+     */
+    public UsageRecord next() throws UsageRecordException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        pending = false;
+        if (singleRecord)
+            finished = true;
+
+        try {
+            UsageRecord record = readRecord();
+            recordCount++;
+            return record;
+        }
+        catch (XMLStreamException e) {
+            throw new UsageRecordException(e);
+        }
+        catch (IllegalArgumentException e) {
+            // Thrown by the enum valueOf methods and by number parsing
+            skipRecord();
+            throw new UsageRecordException("Invalid value in usage record: " + e.getMessage());
+        }
+        catch (UsageRecordException e) {
+            skipRecord();
+            throw e;
+        }
+    }
+
+    /**
+     * Records cannot be removed from the document
+     *
+     * @throws UnsupportedOperationException always
+     */
+    public void remove() {
+        throw new UnsupportedOperationException("Records cannot be removed from the document");
+    }
+
+    /**
+     * Get the number of records read so far
+     *
+     * @return the number of records returned by next()
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Close the reader and the underlying stream
+     *
+     * @throws IOException if the underlying stream cannot be closed
+     */
+    public void close() throws IOException {
+        finished = true;
+        pending = false;
+        try {
+            in.close();
+        }
+        catch (XMLStreamException e) {
+            throw new IOException(e.getMessage());
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Helper method: read the record the reader is positioned on. Returns with the reader on
+     * the end tag of the record.
+     *
+     * @return the record
+     * @throws XMLStreamException if the document cannot be read
+     */
+    private UsageRecord readRecord() throws XMLStreamException {
+        UsageRecord record = new UsageRecord();
+
+        while (in.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = in.getLocalName();
+
+            if (name.equals("RecordIdentity")) {
+                record.setRecordIdentity(attribute("recordId"), attribute("createTime"));
+                skipElement();
+            }
+            else if (name.equals("JobIdentity")) {
+                readJobIdentity(record);
+            }
+            else if (name.equals("UserIdentity")) {
+                readUserIdentity(record);
+            }
+            else if (name.equals("JobName")) {
+                String description = attribute("description");
+                record.setJobName(in.getElementText(), description);
+            }
+            else if (name.equals("Charge")) {
+                String description = attribute("description");
+                String unit = attribute("unit");
+                String formula = attribute("formula");
+                record.setCharge(Float.valueOf(in.getElementText().trim()), description, unit, formula);
+            }
+            else if (name.equals("Status")) {
+                String description = attribute("description");
+                record.setStatus(UsageRecord.Status.valueOf(in.getElementText().trim()), description);
+            }
+            else if (name.equals("ProjectName")) {
+                String description = attribute("description");
+                record.addProjectName(in.getElementText(), description);
+            }
+            else if (name.equals("Disk")) {
+                String description = attribute("description");
+                UsageRecord.DiskType type = enumAttribute(UsageRecord.DiskType.class, "type");
+                UsageRecord.Metric metric = enumAttribute(UsageRecord.Metric.class, "metric");
+                record.addDisk(Long.parseLong(in.getElementText().trim()), description, type, metric);
+            }
+            else if (name.equals("Network")) {
+                String description = attribute("description");
+                UsageRecord.Unit unit = unitAttribute();
+                UsageRecord.Metric metric = enumAttribute(UsageRecord.Metric.class, "metric");
+                record.addNetwork(Long.parseLong(in.getElementText().trim()), unit, metric, description);
+            }
+            else if (name.equals("Memory")) {
+                String description = attribute("description");
+                UsageRecord.Unit unit = unitAttribute();
+                UsageRecord.Metric metric = enumAttribute(UsageRecord.Metric.class, "metric");
+                UsageRecord.MemoryType type = enumAttribute(UsageRecord.MemoryType.class, "type");
+                record.addMemory(Long.parseLong(in.getElementText().trim()), unit, metric, type, description);
+            }
+            else if (name.equals("Resource") || name.equals("ResourceType")) {
+                String description = attribute("description");
+                record.addResourceType(in.getElementText(), description);
+            }
+            else {
+                skipElement();
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Helper method: read a JobIdentity element. Only the first ProcessId is kept.
+     *
+     * @param record the record to set the job identity of
+     * @throws XMLStreamException if the document cannot be read
+     */
+    private void readJobIdentity(UsageRecord record) throws XMLStreamException {
+        String globalJobId = null;
+        String localJobId = null;
+        String processId = null;
+
+        while (in.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = in.getLocalName();
+
+            if (name.equals("GlobalJobId"))
+                globalJobId = in.getElementText();
+            else if (name.equals("LocalJobId"))
+                localJobId = in.getElementText();
+            else if (name.equals("ProcessId") && processId == null)
+                processId = in.getElementText();
+            else
+                skipElement();
+        }
+        record.setJobId(globalJobId, localJobId, processId);
+    }
+
+    /**
+     * Helper method: read a UserIdentity element
+     *
+     * @param record the record to add the user identity to
+     * @throws XMLStreamException if the document cannot be read
+     */
+    private void readUserIdentity(UsageRecord record) throws XMLStreamException {
+        String localUserId = null;
+        String globalUserName = null;
+
+        while (in.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = in.getLocalName();
+
+            if (name.equals("LocalUserId"))
+                localUserId = in.getElementText();
+            else if (name.equals("GlobalUserName"))
+                globalUserName = in.getElementText();
+            else
+                skipElement();
+        }
+        record.addUserId(localUserId, globalUserName);
+    }
+
+    /**
+     * Helper method: get the value of an attribute of the current element by its local name,
+     * whatever namespace prefix it was written with
+     *
+     * @param localName the name of the attribute
+     * @return the value of the attribute, or null if the element doesn't have it
+     */
+    private String attribute(String localName) {
+        for (int i = 0, n = in.getAttributeCount(); i < n; i++) {
+            if (in.getAttributeLocalName(i).equals(localName))
+                return in.getAttributeValue(i);
+        }
+        return null;
+    }
+
+    /**
+     * Helper method: get the value of an attribute of the current element as an enum
+     *
+     * @param type the enum class
+     * @param localName the name of the attribute
+     * @return the enum constant, or null if the element doesn't have the attribute
+     */
+    private <E extends Enum<E>> E enumAttribute(Class<E> type, String localName) {
+        String value = attribute(localName);
+        return value == null ? null : Enum.valueOf(type, value.trim());
+    }
+
+    /**
+     * Helper method: get the storage unit of the current element. Records written by earlier
+     * versions of ur4j used urf:units rather than urf:storageUnit.
+     *
+     * @return the unit, or null if the element doesn't have one
+     */
+    private UsageRecord.Unit unitAttribute() {
+        UsageRecord.Unit unit = enumAttribute(UsageRecord.Unit.class, "storageUnit");
+        return unit != null ? unit : enumAttribute(UsageRecord.Unit.class, "units");
+    }
+
+    /**
+     * Helper method: move the reader from wherever it stopped inside a record it failed to
+     * read to the end tag of the record, so that hasNext() carries on with the next record. If
+     * the rest of the document cannot be read the reader is finished.
+     */
+    private void skipRecord() {
+        if (singleRecord)
+            return;
+
+        try {
+            if (in.getEventType() == XMLStreamConstants.START_ELEMENT)
+                skipElement();
+
+            // Records are not nested, so the first record element closed is this one
+            int depth = 0;
+            while (true) {
+                int event = in.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth > 0)
+                        depth--;
+                    else if (isRecord(in.getLocalName()))
+                        return;
+                }
+            }
+        }
+        catch (XMLStreamException e) {
+            finished = true;
+        }
+    }
+
+    /**
+     * Helper method: skip the current element and everything inside it. Returns with the
+     * reader on the end tag of the element.
+     *
+     * @throws XMLStreamException if the document cannot be read
+     */
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = in.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+}
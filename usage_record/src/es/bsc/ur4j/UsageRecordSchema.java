@@ -0,0 +1,77 @@
+package es.bsc.ur4j;
+
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import java.net.URL;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Holder for the GFD.098 schema used to validate usage records.
+ * <P>
+ * The schema is read from the copy of urwg-schema.09.02.xsd bundled next to this class, so no
+ * network access is needed, and is compiled only once per JVM. A compiled Schema can be shared
+ * between threads but a Validator cannot, so validators are kept in a pool: a thread takes one,
+ * uses it and gives it back. The pool grows to the number of threads validating at the same time.
+ */
+final class UsageRecordSchema {
+
+    static final String SCHEMA_RESOURCE = "urwg-schema.09.02.xsd";
+
+    private static final Schema schema = compileSchema();
+    private static final ConcurrentLinkedQueue<Validator> validators = new ConcurrentLinkedQueue<Validator>();
+
+    private UsageRecordSchema() {
+    }
+
+    /**
+     * Helper method: compile the bundled schema
+     *
+     * @return the compiled schema
+     * @throws UsageRecordException if the schema is missing or cannot be compiled
+     */
+    private static Schema compileSchema() throws UsageRecordException {
+        URL url = UsageRecordSchema.class.getResource(SCHEMA_RESOURCE);
+        if (url == null)
+            throw new UsageRecordException("The usage record schema " + SCHEMA_RESOURCE + " is missing");
+
+        try {
+            return SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(url);
+        }
+        catch (SAXException e) {
+            throw new UsageRecordException(e);
+        }
+    }
+
+    /**
+     * Get the compiled schema. The schema is immutable and may be shared between threads.
+     *
+     * @return the compiled GFD.098 schema
+     */
+    static Schema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Take a validator from the pool, creating a new one if the pool is empty. The validator
+     * must be given back with release() when it is no longer needed.
+     *
+     * @return a validator only used by the calling thread until it is released
+     */
+    static Validator acquire() {
+        Validator validator = validators.poll();
+        return validator != null ? validator : schema.newValidator();
+    }
+
+    /**
+     * Give a validator back to the pool
+     *
+     * @param validator the validator taken with acquire()
+     */
+    static void release(Validator validator) {
+        validators.offer(validator);
+    }
+}
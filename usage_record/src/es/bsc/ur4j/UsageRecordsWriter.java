@@ -0,0 +1,246 @@
+package es.bsc.ur4j;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.*;
+
+/**
+ * A streaming writer for a GFD.098 UsageRecords document, i.e. a container element holding
+ * any number of UsageRecord elements.
+ * <P>
+ * Each record is written straight to the underlying stream when write() is called; no JDOM
+ * document is built and nothing is kept once the record has been written, so the memory
+ * used is the same whether one or one million records go into the document. The namespace
+ * declarations and the schemaLocation are written once on the container element.
+ * <P>
+ * The writer should be used as follows:
+ * <P>
+ * <UL>
+ * <LI> Create the writer with the OutputStream or Writer the document should go to.
+ * <LI> Call write(UsageRecord) for each record.
+ * <LI> Call close() to end the document. This also closes the underlying stream.
+ * </UL>
+ * <P>
+ * This class is not thread safe.
+ */
+public final class UsageRecordsWriter implements Closeable, Flushable {
+
+    private static final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+
+    private final Closeable stream;
+    private final XMLStreamWriter out;
+    private final boolean fragment;
+    private long recordCount;
+    private boolean closed;
+
+    /**
+     * Create a writer that encodes the document as UTF-8 to an output stream
+     *
+     * @param stream the stream to write the document to
+     * @throws UsageRecordException if the document cannot be started
+     */
+    public UsageRecordsWriter(OutputStream stream) throws UsageRecordException {
+        this(stream, false);
+    }
+
+    /**
+     * Create a writer that encodes UTF-8 to an output stream, either a whole document or a
+     * fragment of one: the records only, without the XML declaration and the UsageRecords
+     * element. ParallelRecordsWriter writes fragments and joins them between containerStart()
+     * and containerEnd().
+     *
+     * @param stream the stream to write to
+     * @param fragment true to write the records only
+     * @throws UsageRecordException if the document cannot be started
+     */
+    UsageRecordsWriter(OutputStream stream, boolean fragment) throws UsageRecordException {
+        this.stream = stream;
+        this.fragment = fragment;
+        try {
+            out = factory.createXMLStreamWriter(stream, "UTF-8");
+            if (fragment) {
+                bindPrefixes(out);
+            }
+            else {
+                out.writeStartDocument("UTF-8", "1.0");
+                writeContainer(out);
+            }
+        }
+        catch (XMLStreamException e) {
+            throw new UsageRecordException(e);
+        }
+    }
+
+    /**
+     * Create a writer that sends the document to a character stream
+     *
+     * @param writer the writer to write the document to
+     * @throws UsageRecordException if the document cannot be started
+     */
+    public UsageRecordsWriter(Writer writer) throws UsageRecordException {
+        this.stream = writer;
+        this.fragment = false;
+        try {
+            out = factory.createXMLStreamWriter(writer);
+            out.writeStartDocument("1.0");
+            writeContainer(out);
+        }
+        catch (XMLStreamException e) {
+            throw new UsageRecordException(e);
+        }
+    }
+
+    /**
+     * Get the start of a UTF-8 UsageRecords document, up to and including the end of the
+     * opening UsageRecords element
+     *
+     * @return the bytes written by a writer before the first record
+     * @throws UsageRecordException if the start of the document cannot be written
+     */
+    static byte[] containerStart() throws UsageRecordException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            XMLStreamWriter out = factory.createXMLStreamWriter(bytes, "UTF-8");
+            out.writeStartDocument("UTF-8", "1.0");
+            writeContainer(out);
+            out.writeCharacters(""); // ends the start tag
+            out.flush();
+        }
+        catch (XMLStreamException e) {
+            throw new UsageRecordException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Get the end of a UTF-8 UsageRecords document
+     *
+     * @return the bytes written by close() after the last record
+     */
+    static byte[] containerEnd() {
+        try {
+            return "</UsageRecords>".getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new UsageRecordException(e);
+        }
+    }
+
+    /**
+     * Helper method: bind the prefixes of the namespaces used by the records
+     *
+     * @param out the writer to bind the prefixes of
+     * @throws XMLStreamException if the writer fails
+     */
+    private static void bindPrefixes(XMLStreamWriter out) throws XMLStreamException {
+        out.setDefaultNamespace(UsageRecord.URF_NAMESPACE);
+        out.setPrefix("urf", UsageRecord.URF_NAMESPACE);
+        out.setPrefix("xsi", UsageRecord.XSI_NAMESPACE);
+        out.setPrefix("ds", UsageRecord.DS_NAMESPACE);
+    }
+
+    /**
+     * Helper method: write the opening UsageRecords element with the namespace declarations
+     * shared by every record in the document
+     *
+     * @param out the writer to write the element with
+     * @throws XMLStreamException if the writer fails
+     */
+    private static void writeContainer(XMLStreamWriter out) throws XMLStreamException {
+        bindPrefixes(out);
+
+        out.writeStartElement("", "UsageRecords", UsageRecord.URF_NAMESPACE);
+        out.writeDefaultNamespace(UsageRecord.URF_NAMESPACE);
+        out.writeNamespace("urf", UsageRecord.URF_NAMESPACE);
+        out.writeNamespace("xsi", UsageRecord.XSI_NAMESPACE);
+        out.writeNamespace("ds", UsageRecord.DS_NAMESPACE);
+        out.writeAttribute("xsi", UsageRecord.XSI_NAMESPACE, "schemaLocation", UsageRecord.SCHEMA_LOCATION);
+    }
+
+    /**
+     * Write a usage record to the document
+     *
+     * @param record the usage record to write
+     * @throws UsageRecordException if the writer is closed, the recordId or status of the record
+     * are not set, or the record cannot be written
+     */
+    public void write(UsageRecord record) throws UsageRecordException {
+        if (closed)
+            throw new UsageRecordException("The writer has been closed");
+
+        try {
+            record.writeTo(out);
+            recordCount++;
+        }
+        catch (XMLStreamException e) {
+            throw new UsageRecordException(e);
+        }
+    }
+
+    /**
+     * Get the number of records written so far
+     *
+     * @return the number of records written to the document
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Flush any buffered output to the underlying stream
+     *
+     * @throws IOException if the underlying stream cannot be flushed
+     */
+    public void flush() throws IOException {
+        try {
+            out.flush();
+        }
+        catch (XMLStreamException e) {
+            throw new IOException(e.getMessage());
+        }
+        if (stream instanceof Flushable)
+            ((Flushable) stream).flush();
+    }
+
+    /**
+     * Flush what the writer has buffered to the underlying stream, without flushing that
+     * stream. Used by IndexedArchiveWriter to find where each record starts and ends.
+     *
+     * @throws UsageRecordException if the writer cannot be flushed
+     */
+    void flushWriter() throws UsageRecordException {
+        try {
+            out.flush();
+        }
+        catch (XMLStreamException e) {
+            throw new UsageRecordException(e);
+        }
+    }
+
+    /**
+     * End the UsageRecords document and close the underlying stream. Calling close() on a
+     * closed writer has no effect.
+     *
+     * @throws IOException if the document cannot be ended or the stream cannot be closed
+     */
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            if (!fragment) {
+                out.writeEndElement();
+                out.writeEndDocument();
+            }
+            out.close();
+        }
+        catch (XMLStreamException e) {
+            throw new IOException(e.getMessage());
+        }
+        finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+import junit.framework.TestCase;
+import es.bsc.ur4j.BatchValidator;
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordException;
+import es.bsc.ur4j.UsageRecordsWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Tests for validating batches of records on a ForkJoinPool
+ */
+public final class BatchValidatorTest extends TestCase {
+
+    private ForkJoinPool pool;
+
+    protected void setUp() {
+        pool = new ForkJoinPool(4);
+    }
+
+    protected void tearDown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Helper method: create a batch of records in which every 100th record, from the 37th, has
+     * a disk volume of 0, which GFD.098 does not allow
+     *
+     * @param size the number of records
+     * @return the records
+     */
+    private static List<UsageRecord> createBatch(int size) {
+        List<UsageRecord> records = new ArrayList<UsageRecord>(size);
+        for (int i = 0; i < size; i++) {
+            UsageRecord ur = new UsageRecord();
+            ur.setRecordId("record " + i, false);
+            ur.setStatus(UsageRecord.Status.Completed, null);
+            ur.addDisk(i % 100 == 37 ? 0 : 100, null, null, null);
+            records.add(ur);
+        }
+        return records;
+    }
+
+    /**
+     * Helper method: check the reports of a batch made by createBatch()
+     *
+     * @param size the number of records in the batch
+     * @param reports the reports of the batch
+     */
+    private static void assertReports(int size, List<BatchValidator.Report> reports) {
+        assertEquals((size + 62) / 100, reports.size());
+        for (int i = 0; i < reports.size(); i++) {
+            BatchValidator.Report report = reports.get(i);
+            assertEquals(i * 100 + 37, report.getIndex());
+            assertEquals("record " + report.getIndex(), report.getRecordId());
+            assertNotNull(report.getMessage());
+        }
+    }
+
+    /**
+     * Test the records that are not valid are reported, in order, and agree with validate()
+     */
+    public void testValidateCollection() {
+        List<UsageRecord> records = createBatch(1000);
+        assertReports(1000, new BatchValidator(pool).validate(records));
+        assertFalse(records.get(37).validate());
+        assertTrue(records.get(38).validate());
+
+        assertEquals(0, new BatchValidator(pool).validate(new ArrayList<UsageRecord>()).size());
+        assertReports(50, new BatchValidator().validate(createBatch(50)));
+    }
+
+    /**
+     * Test the records of a UsageRecords document are validated, however the chunks fall
+     */
+    public void testValidateStream() throws Exception {
+        for (int size : new int[] { 0, 1, 64, 65, 2500 }) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            UsageRecordsWriter writer = new UsageRecordsWriter(bytes);
+            for (UsageRecord record : createBatch(size))
+                writer.write(record);
+            writer.close();
+
+            List<BatchValidator.Report> reports = new BatchValidator(pool).validate(
+                    new ByteArrayInputStream(bytes.toByteArray()));
+            assertReports(size, reports);
+        }
+    }
+
+    /**
+     * Test a record without the required elements is reported rather than failing the batch
+     */
+    public void testIncompleteRecord() {
+        UsageRecord incomplete = new UsageRecord();
+        incomplete.setRecordId("incomplete", false);
+        List<UsageRecord> records = createBatch(10);
+        records.add(incomplete);
+
+        List<BatchValidator.Report> reports = new BatchValidator(pool).validate(records);
+        assertEquals(1, reports.size());
+        assertEquals(10, reports.get(0).getIndex());
+        assertEquals("incomplete", reports.get(0).getRecordId());
+        assertEquals("The status must be set", reports.get(0).getMessage());
+    }
+
+    /**
+     * Helper method: write a batch made by createBatch() as a UsageRecords document and
+     * change the Status element of one record
+     *
+     * @param size the number of records
+     * @param record the record to change
+     * @param status the XML to put in place of the Status element of the record
+     * @return the document
+     * @throws Exception if the document cannot be written
+     */
+    private static byte[] changeStatus(int size, int record, String status) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        UsageRecordsWriter writer = new UsageRecordsWriter(bytes);
+        for (UsageRecord ur : createBatch(size))
+            writer.write(ur);
+        writer.close();
+
+        String document = new String(bytes.toByteArray());
+        String original = "<Status>Completed</Status>";
+        int at = -1;
+        for (int i = 0; i <= record; i++)
+            at = document.indexOf(original, at + 1);
+        assertTrue(at >= 0);
+        return (document.substring(0, at) + status + document.substring(at + original.length())).getBytes();
+    }
+
+    /**
+     * Test an element a UsageRecordReader would skip is reported, as validating the document
+     * against the schema would
+     */
+    public void testUnknownElement() throws Exception {
+        byte[] document = changeStatus(10, 4, "<Status>Completed</Status><Bogus>1</Bogus>");
+        List<BatchValidator.Report> reports = new BatchValidator(pool).validate(new ByteArrayInputStream(document));
+        assertEquals(1, reports.size());
+        assertEquals(4, reports.get(0).getIndex());
+        assertEquals("record 4", reports.get(0).getRecordId());
+        assertTrue(reports.get(0).getMessage().contains("Bogus"));
+    }
+
+    /**
+     * Test a record with a value a UsageRecordReader cannot read, which the schema allows, is
+     * reported, and the records after it are still validated
+     */
+    public void testBadValue() throws Exception {
+        byte[] document = changeStatus(200, 5, "<Status>Bogus</Status>");
+        List<BatchValidator.Report> reports = new BatchValidator(pool).validate(new ByteArrayInputStream(document));
+        assertEquals(3, reports.size());
+        assertEquals(5, reports.get(0).getIndex());
+        assertEquals("record 5", reports.get(0).getRecordId());
+        assertTrue(reports.get(0).getMessage().contains("Bogus"));
+        assertEquals(37, reports.get(1).getIndex());
+        assertEquals(137, reports.get(2).getIndex());
+    }
+
+    /**
+     * Test a document that is not well formed is rejected
+     */
+    public void testNotWellFormed() {
+        try {
+            new BatchValidator(pool).validate(new ByteArrayInputStream("<UsageRecords>".getBytes()));
+            fail("Should not validate a document that is not well formed");
+        }
+        catch (UsageRecordException e) {
+            // expected
+        }
+
+        try {
+            new BatchValidator(null);
+            fail("Should not create a validator without a pool");
+        }
+        catch (IllegalArgumentException e) {
+            assertEquals("The pool must not be null", e.getMessage());
+        }
+    }
+}
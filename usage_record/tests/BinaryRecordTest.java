@@ -0,0 +1,259 @@
+import junit.framework.TestCase;
+import es.bsc.ur4j.BinaryRecordReader;
+import es.bsc.ur4j.BinaryRecordWriter;
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordException;
+import es.bsc.ur4j.UsageRecordReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Tests for the binary record writer and reader
+ */
+public final class BinaryRecordTest extends TestCase {
+
+    /**
+     * Helper method: write records to a binary record stream
+     *
+     * @param records the records to write
+     * @return the bytes of the stream
+     */
+    private static byte[] write(UsageRecord... records) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryRecordWriter writer = new BinaryRecordWriter(bytes);
+        for (UsageRecord record : records)
+            writer.write(record);
+        assertEquals(records.length, writer.getRecordCount());
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Helper method: read every record of a binary record stream
+     *
+     * @param bytes the bytes of the stream
+     * @return the records read
+     */
+    private static UsageRecord[] read(byte[] bytes) throws Exception {
+        BinaryRecordReader reader = new BinaryRecordReader(new ByteArrayInputStream(bytes));
+        UsageRecord[] records = new UsageRecord[0];
+        while (reader.hasNext()) {
+            records = Arrays.copyOf(records, records.length + 1);
+            records[records.length - 1] = reader.next();
+        }
+        assertEquals(records.length, reader.getRecordCount());
+        reader.close();
+        return records;
+    }
+
+    /**
+     * Test records are read back with exactly the same XML as the records written
+     */
+    public void testRoundTrip() throws Exception {
+        UsageRecord[] written = new UsageRecord[5];
+        for (int i = 0; i < written.length; i++)
+            written[i] = TestRecords.complete("job " + i);
+
+        UsageRecord[] read = read(write(written));
+        assertEquals(written.length, read.length);
+        for (int i = 0; i < written.length; i++) {
+            assertEquals(written[i].getRecordId(), read[i].getRecordId());
+            assertEquals(written[i].getCreateTimeinUTC(), read[i].getCreateTimeinUTC());
+            assertEquals(written[i].toXml(), read[i].toXml());
+            assertFalse(read[i].isSnapshot());
+        }
+    }
+
+    /**
+     * Test a record with only the required elements, and a recordId and createTime that
+     * cannot be packed, are read back unchanged
+     */
+    public void testRoundTripMinimal() throws Exception {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId("not a GUID", false);
+        ur.setStatus(UsageRecord.Status.Queued, null);
+
+        UsageRecord lowerCase = new UsageRecord();
+        lowerCase.setRecordId("0f3a9c2e-1b2c-4d5e-8f90-a1b2c3d4e5f6", false);
+        lowerCase.setStatus(UsageRecord.Status.Held, null);
+
+        UsageRecord[] read = read(write(ur, lowerCase));
+        assertEquals(ur.toXml(), read[0].toXml());
+        assertNull(read[0].getCreateTimeinUTC());
+        assertNull(read[0].getJobName());
+        assertNull(read[0].getCharge());
+        assertEquals(lowerCase.toXml(), read[1].toXml());
+    }
+
+    /**
+     * Test charges keep every bit of the float, and unusual strings are kept
+     */
+    public void testRoundTripValues() throws Exception {
+        UsageRecord ur = TestRecords.complete("\u00e9t\u00e9 \u4e2d\u6587 <&>");
+        ur.setCharge(0.1f + 0.2f, null, null, null);
+        ur.addProjectName(null, "");
+        char[] longName = new char[20000];
+        Arrays.fill(longName, 'x');
+        ur.addResourceType(new String(longName), null);
+
+        UsageRecord read = read(write(ur, ur))[1];
+        assertEquals(ur.getCharge(), read.getCharge());
+        assertEquals(ur.getJobName(), read.getJobName());
+        assertEquals(ur.toXml(), read.toXml());
+    }
+
+    /**
+     * Test the createTime is packed and unpacked correctly across dates
+     */
+    public void testCreateTimes() throws Exception {
+        String[] times = { "1970-01-01T00:00:00Z", "2000-02-29T23:59:59Z", "2009-03-31T10:45:27Z",
+                "2100-12-31T12:00:00Z", "2000-02-30T00:00:00Z", "1969-12-31T23:59:59Z",
+                "2009-03-31T10:45:27.5Z", "2009-03-31 10:45:27" };
+        UsageRecord[] records = new UsageRecord[times.length];
+        for (int i = 0; i < times.length; i++) {
+            records[i] = new UsageRecord();
+            records[i].setRecordId("id " + i, false);
+            records[i].setStatus(UsageRecord.Status.Completed, null);
+        }
+
+        // The createTime is only settable through the reader, so go through XML
+        for (int i = 0; i < times.length; i++) {
+            String xml = records[i].toXml().replace("urf:recordId=\"id " + i + "\"",
+                    "urf:recordId=\"id " + i + "\" urf:createTime=\"" + times[i] + "\"");
+            records[i] = new UsageRecordReader(new StringReader(xml)).next();
+            assertEquals(times[i], records[i].getCreateTimeinUTC());
+        }
+
+        UsageRecord[] read = read(write(records));
+        for (int i = 0; i < times.length; i++)
+            assertEquals(times[i], read[i].getCreateTimeinUTC());
+    }
+
+    /**
+     * Test repeated strings are written once, so the encoding is much smaller than the XML
+     */
+    public void testCompact() throws Exception {
+        UsageRecord[] records = new UsageRecord[100];
+        int xmlBytes = 0;
+        for (int i = 0; i < records.length; i++) {
+            records[i] = TestRecords.complete("job");
+            xmlBytes += records[i].toXml().getBytes("UTF-8").length;
+        }
+
+        byte[] bytes = write(records);
+        assertTrue("Binary " + bytes.length + " bytes, XML " + xmlBytes + " bytes", bytes.length * 10 < xmlBytes);
+    }
+
+    /**
+     * Test a stream that is not a binary record stream is rejected
+     */
+    public void testNotBinary() throws Exception {
+        try {
+            new BinaryRecordReader(new ByteArrayInputStream(TestRecords.complete("job").toXml().getBytes("UTF-8")));
+            fail("Should not read an XML document");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("Not a ur4j binary record stream", e.getMessage());
+        }
+    }
+
+    /**
+     * Test a stream cut off in the middle of a record is reported as truncated
+     */
+    public void testTruncated() throws Exception {
+        byte[] bytes = write(TestRecords.complete("job"));
+        BinaryRecordReader reader = new BinaryRecordReader(new ByteArrayInputStream(bytes, 0, bytes.length - 3));
+        assertTrue(reader.hasNext());
+        try {
+            reader.next();
+            fail("Should not read a truncated record");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("The ur4j binary record stream is truncated", e.getMessage());
+        }
+        reader.close();
+    }
+
+    /**
+     * Helper method: check a stream is rejected as corrupt when its record is read
+     *
+     * @param bytes the bytes of the stream
+     */
+    private static void assertCorrupt(byte[] bytes) throws Exception {
+        BinaryRecordReader reader = new BinaryRecordReader(new ByteArrayInputStream(bytes));
+        assertTrue(reader.hasNext());
+        try {
+            reader.next();
+            fail("Should not read a corrupt record");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("Corrupt ur4j binary record stream", e.getMessage());
+        }
+        reader.close();
+    }
+
+    /**
+     * Test a unit, metric or type code out of range, or an impossible number of elements, is
+     * rejected when the record is read rather than when it is used
+     */
+    public void testCorrupt() throws Exception {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId("record", false);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        ur.addNetwork(1, UsageRecord.Unit.B, null, null);
+        byte[] bytes = write(ur);
+
+        // The code of the network entry is the only byte that changes with its unit
+        UsageRecord kilobytes = new UsageRecord();
+        kilobytes.setRecordId("record", false);
+        kilobytes.setStatus(UsageRecord.Status.Completed, null);
+        kilobytes.addNetwork(1, UsageRecord.Unit.KB, null, null);
+        byte[] other = write(kilobytes);
+        int code = 0;
+        while (bytes[code] == other[code])
+            code++;
+
+        int[] corrupt = { 0x0F, 0x70, 0x7F };
+        for (int c : corrupt) {
+            byte[] changed = bytes.clone();
+            changed[code] = (byte) c;
+            assertCorrupt(changed);
+        }
+
+        // The record ends with its number of resources, which is 0
+        byte[] huge = Arrays.copyOf(bytes, bytes.length + 4);
+        System.arraycopy(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 }, 0,
+                huge, bytes.length - 1, 5);
+        assertCorrupt(huge);
+    }
+
+    /**
+     * Test next() on an empty stream throws NoSuchElementException, and records without the
+     * required elements are not written
+     */
+    public void testEmptyAndIncomplete() throws Exception {
+        BinaryRecordReader reader = new BinaryRecordReader(new ByteArrayInputStream(write()));
+        assertFalse(reader.hasNext());
+        try {
+            reader.next();
+            fail("Should not read past the end of the stream");
+        }
+        catch (NoSuchElementException e) {
+            // expected
+        }
+
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(true);
+        try {
+            write(ur);
+            fail("Should not write a record with no status");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("The status must be set", e.getMessage());
+        }
+    }
+}
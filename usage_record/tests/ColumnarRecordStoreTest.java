@@ -0,0 +1,224 @@
+import junit.framework.TestCase;
+import es.bsc.ur4j.ColumnarRecordStore;
+import es.bsc.ur4j.UsageAggregator;
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordException;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests for the columnar record store
+ */
+public final class ColumnarRecordStoreTest extends TestCase {
+
+    private static final double DELTA = 1e-3;
+
+    // 2009-03-31T00:00:00Z
+    private static final long MARCH_31 = 1238457600L;
+
+    private File directory;
+
+    protected void setUp() throws IOException {
+        directory = File.createTempFile("columns", "");
+        directory.delete();
+    }
+
+    protected void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Helper method: create a record for a project on 31 March 2009
+     *
+     * @param project the project name
+     * @param hour the hour of the day the record was created
+     * @param charge the charge
+     * @param memory the memory used in MB
+     * @return the record
+     */
+    private static UsageRecord createRecord(String project, int hour, float charge, int memory) {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId("id", false);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        ur.setCharge(charge, null, null, null);
+        ur.addUserId("user", "/CN=user");
+        ur.addProjectName(project, null);
+        ur.setJobName("job", null);
+        ur.addMemory(memory, UsageRecord.Unit.MB, UsageRecord.Metric.max, UsageRecord.MemoryType.physical, null);
+        return TestRecords.withCreateTime(ur, String.format("2009-03-31T%02d:00:00Z", hour));
+    }
+
+    /**
+     * Test the values of a row are stored and read back
+     */
+    public void testAppendAndGet() throws IOException {
+        ColumnarRecordStore store = new ColumnarRecordStore(directory, 16);
+        assertEquals(0, store.append(createRecord("life", 10, 2.5f, 3)));
+
+        UsageRecord bare = new UsageRecord();
+        bare.setRecordId("bare", false);
+        bare.setStatus(UsageRecord.Status.Failed, null);
+        assertEquals(1, store.append(bare));
+        assertEquals(2, store.getRowCount());
+
+        assertEquals(MARCH_31 + 10 * 3600, store.getCreateTime(0));
+        assertEquals(2.5f, store.getCharge(0), 0);
+        assertEquals(UsageRecord.Status.Completed, store.getStatus(0));
+        assertEquals("life", store.getString(store.getStringId(ColumnarRecordStore.StringColumn.ProjectName, 0)));
+        assertEquals("/CN=user", store.getString(store.getStringId(ColumnarRecordStore.StringColumn.GlobalUserName, 0)));
+        assertEquals(3L * 1024 * 1024, store.getSize(UsageAggregator.Resource.Memory, 0));
+        assertEquals(UsageRecord.Metric.max, store.getMetric(UsageAggregator.Resource.Memory, 0));
+
+        assertEquals(-1, store.getCreateTime(1));
+        assertTrue(Float.isNaN(store.getCharge(1)));
+        assertEquals(UsageRecord.Status.Failed, store.getStatus(1));
+        assertEquals(-1, store.getStringId(ColumnarRecordStore.StringColumn.ProjectName, 1));
+        assertEquals(-1, store.getSize(UsageAggregator.Resource.Memory, 1));
+        assertNull(store.getMetric(UsageAggregator.Resource.Memory, 1));
+
+        try {
+            store.getCharge(2);
+            fail("Should not read a row that hasn't been appended");
+        }
+        catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        store.close();
+    }
+
+    /**
+     * Test scans filter on a string and a time range across segments
+     */
+    public void testScans() throws IOException {
+        ColumnarRecordStore store = new ColumnarRecordStore(directory, 16);
+        for (int i = 0; i < 100; i++)
+            store.append(createRecord(i % 2 == 0 ? "life" : "earth", i % 24, i, 1));
+
+        double all = 0;
+        double life = 0;
+        double lifeMorning = 0;
+        for (int i = 0; i < 100; i++) {
+            all += i;
+            if (i % 2 == 0) {
+                life += i;
+                if (i % 24 < 12)
+                    lifeMorning += i;
+            }
+        }
+
+        ColumnarRecordStore.StringColumn project = ColumnarRecordStore.StringColumn.ProjectName;
+        assertEquals(all, store.sumCharge(project, null, Long.MIN_VALUE, Long.MAX_VALUE), DELTA);
+        assertEquals(life, store.sumCharge(project, "life", Long.MIN_VALUE, Long.MAX_VALUE), DELTA);
+        assertEquals(lifeMorning, store.sumCharge(project, "life", MARCH_31, MARCH_31 + 12 * 3600), DELTA);
+        assertEquals(0, store.sumCharge(project, "no such project", Long.MIN_VALUE, Long.MAX_VALUE), DELTA);
+        // The memory entries are maxima, which are not summed
+        assertEquals(0, store.sumSize(UsageAggregator.Resource.Memory, project, "earth",
+                Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(0, store.sumSize(UsageAggregator.Resource.Disk, project, null, Long.MIN_VALUE, Long.MAX_VALUE));
+        store.close();
+    }
+
+    /**
+     * Test only the entries with a total metric, or none, are summed by sumSize()
+     */
+    public void testSumSizeMetrics() throws IOException {
+        ColumnarRecordStore store = new ColumnarRecordStore(directory, 16);
+        UsageAggregator.Resource network = UsageAggregator.Resource.Network;
+        UsageRecord.Metric[] metrics = { UsageRecord.Metric.total, null, UsageRecord.Metric.max,
+                UsageRecord.Metric.min, UsageRecord.Metric.average };
+        for (int i = 0; i < metrics.length; i++) {
+            UsageRecord ur = createRecord("net", 1, 0, 1);
+            ur.addNetwork(1 << i, UsageRecord.Unit.KB, metrics[i], null);
+            store.append(ur);
+        }
+
+        assertEquals(3 * 1024, store.sumSize(network, ColumnarRecordStore.StringColumn.ProjectName, null,
+                Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(UsageRecord.Metric.max, store.getMetric(network, 2));
+        assertEquals(4 * 1024, store.getSize(network, 2));
+        store.close();
+    }
+
+    /**
+     * Test rows appended after the last sync() are not counted when a store is opened again
+     * after a crash, even though they reached the mapped files, so the numbers of the strings
+     * they added are not given to other strings
+     */
+    public void testCrashBeforeSync() throws IOException {
+        ColumnarRecordStore.StringColumn project = ColumnarRecordStore.StringColumn.ProjectName;
+        ColumnarRecordStore crashed = new ColumnarRecordStore(directory, 16);
+        crashed.append(createRecord("alpha", 1, 1, 1));
+        crashed.sync();
+        for (int i = 0; i < 20; i++)
+            crashed.append(createRecord("beta" + i, 1, 100, 1));
+
+        // The crashed store is left as it is: its new strings were never written
+        ColumnarRecordStore store = new ColumnarRecordStore(directory, 16);
+        assertEquals(1, store.getRowCount());
+        assertEquals(-1, store.lookup("beta0"));
+        assertEquals(1, store.append(createRecord("gamma", 1, 5, 1)));
+        assertEquals(5, store.sumCharge(project, "gamma", Long.MIN_VALUE, Long.MAX_VALUE), DELTA);
+        assertEquals("gamma", store.getString(store.getStringId(project, 1)));
+        store.close();
+
+        store = new ColumnarRecordStore(directory, 16);
+        assertEquals(2, store.getRowCount());
+        assertEquals(6, store.sumCharge(project, null, Long.MIN_VALUE, Long.MAX_VALUE), DELTA);
+        for (int i = 0; i < 20; i++)
+            store.append(createRecord("delta", 1, 1, 1));
+        store.close();
+
+        store = new ColumnarRecordStore(directory, 16);
+        assertEquals(22, store.getRowCount());
+        assertEquals(20, store.sumCharge(project, "delta", Long.MIN_VALUE, Long.MAX_VALUE), DELTA);
+        store.close();
+    }
+
+    /**
+     * Test a store opened again has the rows and strings it was closed with, and carries on
+     * appending after them
+     */
+    public void testReopen() throws IOException {
+        ColumnarRecordStore store = new ColumnarRecordStore(directory, 16);
+        for (int i = 0; i < 40; i++)
+            store.append(createRecord("life", 1, 1, 1));
+        store.close();
+
+        // The segment rows the store was created with are kept
+        store = new ColumnarRecordStore(directory, 1000);
+        assertEquals(40, store.getRowCount());
+        assertEquals("life", store.getString(store.getStringId(ColumnarRecordStore.StringColumn.ProjectName, 39)));
+        store.append(createRecord("earth", 1, 1, 1));
+        store.append(createRecord("life", 1, 1, 1));
+        store.close();
+
+        store = new ColumnarRecordStore(directory);
+        assertEquals(42, store.getRowCount());
+        assertEquals(41, store.sumCharge(ColumnarRecordStore.StringColumn.ProjectName, "life",
+                Long.MIN_VALUE, Long.MAX_VALUE), DELTA);
+        assertEquals(4, directory.list().length);
+        store.close();
+    }
+
+    /**
+     * Test nothing can be appended to a closed store
+     */
+    public void testAppendAfterClose() throws IOException {
+        ColumnarRecordStore store = new ColumnarRecordStore(directory, 16);
+        store.close();
+        store.close();
+        try {
+            store.append(createRecord("life", 1, 1, 1));
+            fail("Should not append to a closed store");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("The store has been closed", e.getMessage());
+        }
+    }
+}
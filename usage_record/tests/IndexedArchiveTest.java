@@ -0,0 +1,173 @@
+import junit.framework.TestCase;
+import es.bsc.ur4j.IndexedArchive;
+import es.bsc.ur4j.IndexedArchiveWriter;
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordException;
+import es.bsc.ur4j.UsageRecordReader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Tests for the indexed archive writer and the lookups through its indexes
+ */
+public final class IndexedArchiveTest extends TestCase {
+
+    // 2009-03-31T00:00:00Z
+    private static final long MARCH_31 = 1238457600L;
+
+    private File file;
+
+    protected void setUp() throws IOException {
+        file = File.createTempFile("archive", ".xml");
+    }
+
+    protected void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".rid").delete();
+        new File(file.getPath() + ".jid").delete();
+        new File(file.getPath() + ".uid").delete();
+    }
+
+    /**
+     * Helper method: create a record of a job run by a user on 31 March 2009
+     *
+     * @param i the number of the job, which is also its hour of the day
+     * @param user the local user id
+     * @return the record
+     */
+    private static UsageRecord createRecord(int i, String user) {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId("record " + i, false);
+        ur.setJobId("global " + i, "local " + i, null);
+        ur.addUserId(user, "/CN=" + user);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        return TestRecords.withCreateTime(ur, String.format("2009-03-31T%02d:00:00Z", i % 24));
+    }
+
+    /**
+     * Helper method: write an archive of 200 records of four users
+     *
+     * @return the records written
+     */
+    private UsageRecord[] writeArchive() throws IOException {
+        UsageRecord[] records = new UsageRecord[200];
+        IndexedArchiveWriter writer = new IndexedArchiveWriter(file);
+        for (int i = 0; i < records.length; i++) {
+            records[i] = createRecord(i, "user" + (i % 4));
+            writer.write(records[i]);
+        }
+        assertEquals(records.length, writer.getRecordCount());
+        writer.close();
+        return records;
+    }
+
+    /**
+     * Test every record can be found by its recordId, and the archive is an ordinary
+     * UsageRecords document
+     */
+    public void testGetByRecordId() throws IOException {
+        UsageRecord[] records = writeArchive();
+
+        IndexedArchive archive = new IndexedArchive(file);
+        for (UsageRecord record : records)
+            assertEquals(record.toXml(), archive.get(record.getRecordId()).toXml());
+        assertNull(archive.get("no such record"));
+        archive.close();
+
+        UsageRecordReader reader = new UsageRecordReader(new FileInputStream(file));
+        int count = 0;
+        while (reader.hasNext()) {
+            assertEquals(records[count].toXml(), reader.next().toXml());
+            count++;
+        }
+        reader.close();
+        assertEquals(records.length, count);
+    }
+
+    /**
+     * Test records are found by their global and local job ids
+     */
+    public void testFindByJobId() throws IOException {
+        writeArchive();
+
+        IndexedArchive archive = new IndexedArchive(file);
+        List<UsageRecord> found = archive.findByJobId("global 17");
+        assertEquals(1, found.size());
+        assertEquals("record 17", found.get(0).getRecordId());
+
+        found = archive.findByJobId("local 199");
+        assertEquals(1, found.size());
+        assertEquals("record 199", found.get(0).getRecordId());
+
+        assertEquals(0, archive.findByJobId("global 200").size());
+        archive.close();
+    }
+
+    /**
+     * Test the records of a user are found over a range of times, in time order
+     */
+    public void testFindByUser() throws IOException {
+        writeArchive();
+
+        IndexedArchive archive = new IndexedArchive(file);
+        List<UsageRecord> all = archive.findByUser("user1", Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(50, all.size());
+
+        // user1 has the jobs 1, 5, 9, ..., 197, at hours 1, 5, 9, 13, 17 and 21 of the day
+        List<UsageRecord> morning = archive.findByUser("user1", MARCH_31, MARCH_31 + 12 * 3600);
+        assertEquals(26, morning.size());
+        String previous = "";
+        for (UsageRecord record : morning) {
+            assertTrue(record.getCreateTimeinUTC().compareTo(previous) >= 0);
+            assertTrue(record.getCreateTimeinUTC().compareTo("2009-03-31T12") < 0);
+            previous = record.getCreateTimeinUTC();
+        }
+
+        assertEquals(0, archive.findByUser("user9", Long.MIN_VALUE, Long.MAX_VALUE).size());
+        archive.close();
+    }
+
+    /**
+     * Test the records of a user created at the same time are found in the order they were
+     * written, in an archive large enough for the user index to be sorted in several parts
+     */
+    public void testFindByUserSameTime() throws IOException {
+        IndexedArchiveWriter writer = new IndexedArchiveWriter(file);
+        for (int i = 0; i < 2000; i++)
+            writer.write(createRecord(i, "user" + (i % 3)));
+        writer.close();
+
+        // user0 has the jobs at hour 0 of the day 0, 24, 48, ..., 1992
+        IndexedArchive archive = new IndexedArchive(file);
+        List<UsageRecord> found = archive.findByUser("user0", MARCH_31, MARCH_31 + 1800);
+        assertEquals(84, found.size());
+        for (int i = 0; i < found.size(); i++)
+            assertEquals("record " + 24 * i, found.get(i).getRecordId());
+        assertEquals(667, archive.findByUser("user0", Long.MIN_VALUE, Long.MAX_VALUE).size());
+        archive.close();
+    }
+
+    /**
+     * Test records cannot be written once the writer is closed
+     */
+    public void testWriteAfterClose() throws IOException {
+        IndexedArchiveWriter writer = new IndexedArchiveWriter(file);
+        writer.close();
+        writer.close();
+        try {
+            writer.write(createRecord(0, "user"));
+            fail("Should not write to a closed archive");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("The writer has been closed", e.getMessage());
+        }
+
+        IndexedArchive archive = new IndexedArchive(file);
+        assertNull(archive.get("record 0"));
+        assertEquals(0, archive.findByUser("user", Long.MIN_VALUE, Long.MAX_VALUE).size());
+        archive.close();
+    }
+}
@@ -0,0 +1,168 @@
+import junit.framework.TestCase;
+import es.bsc.ur4j.ParallelRecordsWriter;
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordException;
+import es.bsc.ur4j.UsageRecordReader;
+import es.bsc.ur4j.UsageRecordsWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Tests for the parallel, optionally compressed, UsageRecords writer
+ */
+public final class ParallelRecordsWriterTest extends TestCase {
+
+    private ExecutorService executor;
+
+    protected void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    protected void tearDown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Helper method: create a record
+     *
+     * @param i the number of the record
+     * @return the record
+     */
+    private static UsageRecord createRecord(int i) {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId("record " + i, false);
+        ur.setJobId("global " + i, null, null);
+        ur.addUserId("user" + (i % 10), null);
+        ur.setCharge(i / 4f, null, "EUR", null);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        ur.addMemory(i + 1, UsageRecord.Unit.MB, UsageRecord.Metric.max, UsageRecord.MemoryType.physical, null);
+        return ur;
+    }
+
+    /**
+     * Helper method: write records with a UsageRecordsWriter
+     *
+     * @param count the number of records
+     * @return the document
+     */
+    private static byte[] writeSequential(int count) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        UsageRecordsWriter writer = new UsageRecordsWriter(bytes);
+        for (int i = 0; i < count; i++)
+            writer.write(createRecord(i));
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Helper method: write records with a ParallelRecordsWriter in chunks of 7
+     *
+     * @param count the number of records
+     * @param gzip true to compress the document
+     * @return the document
+     */
+    private byte[] writeParallel(int count, boolean gzip) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ParallelRecordsWriter writer = new ParallelRecordsWriter(bytes, gzip, executor, 7);
+        for (int i = 0; i < count; i++)
+            writer.write(createRecord(i));
+        assertEquals(count, writer.getRecordCount());
+        writer.close();
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Helper method: read a whole stream
+     *
+     * @param stream the stream
+     * @return the bytes of the stream
+     */
+    private static byte[] readAll(InputStream stream) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n; (n = stream.read(buffer)) > 0; )
+            bytes.write(buffer, 0, n);
+        stream.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Test the document is exactly the document a UsageRecordsWriter writes, however the
+     * records fall into chunks
+     */
+    public void testSameAsSequential() throws Exception {
+        for (int count : new int[] { 0, 1, 7, 8, 1000 }) {
+            String expected = new String(writeSequential(count), "UTF-8");
+            assertEquals(expected, new String(writeParallel(count, false), "UTF-8"));
+        }
+    }
+
+    /**
+     * Test the compressed document is a single gzip stream of several members that
+     * decompresses to the document, and whose records can be read back
+     */
+    public void testGzip() throws Exception {
+        byte[] compressed = writeParallel(1000, true);
+        assertEquals(0x1f, compressed[0] & 0xff);
+        assertEquals(0x8b, compressed[1] & 0xff);
+
+        byte[] document = readAll(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+        assertEquals(new String(writeSequential(1000), "UTF-8"), new String(document, "UTF-8"));
+        assertTrue(compressed.length * 4 < document.length);
+
+        UsageRecordReader reader = new UsageRecordReader(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+        int count = 0;
+        while (reader.hasNext()) {
+            assertEquals(createRecord(count).toXml(), reader.next().toXml());
+            count++;
+        }
+        reader.close();
+        assertEquals(1000, count);
+    }
+
+    /**
+     * Test a record changed after it is written is written as it was
+     */
+    public void testSnapshot() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ParallelRecordsWriter writer = new ParallelRecordsWriter(bytes, false, executor, 7);
+        UsageRecord ur = createRecord(0);
+        writer.write(ur);
+        ur.setRecordId("changed", false);
+        writer.close();
+
+        assertEquals(new String(writeSequential(1), "UTF-8"), new String(bytes.toByteArray(), "UTF-8"));
+    }
+
+    /**
+     * Test records without the required elements are rejected when they are written, and
+     * nothing can be written once the writer is closed
+     */
+    public void testIncompleteAndClosed() throws Exception {
+        ParallelRecordsWriter writer = new ParallelRecordsWriter(new ByteArrayOutputStream(), true);
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(true);
+        try {
+            writer.write(ur);
+            fail("Should not write a record with no status");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("The status must be set", e.getMessage());
+        }
+
+        writer.close();
+        try {
+            writer.write(createRecord(0));
+            fail("Should not write to a closed writer");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("The writer has been closed", e.getMessage());
+        }
+    }
+}
@@ -1,6 +1,12 @@
 import junit.framework.TestCase;
 import es.bsc.ur4j.RandomGUID;
 
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * User: michael
  * Date: Mar 31, 2009
@@ -109,4 +115,246 @@ public final class RandomGUIDTest extends TestCase {
         assertEquals("Fourth GUID part should be 4 characters in length", guidParts[3].length(), 4);
         assertEquals("Fifth GUID part should be 12 characters in length", guidParts[4].length(), 12);
     }
+
+    /**
+     * Test the GUID string format produced by the random mode
+     */
+    public void testRandomModeStringFormat() {
+        String guidString = new RandomGUID(RandomGUID.Mode.RANDOM).toString();
+        assertTrue("GUID should be upper case hex in 8-4-4-4-12 groups: " + guidString,
+                guidString.matches("[0-9A-F]{8}-[0-9A-F]{4}-[0-9A-F]{4}-[0-9A-F]{4}-[0-9A-F]{12}"));
+        assertEquals("Random GUIDs should be RFC 4122 version 4", '4', guidString.charAt(14));
+        assertTrue("Random GUIDs should have the RFC 4122 variant", "89AB".indexOf(guidString.charAt(19)) >= 0);
+    }
+
+    /**
+     * Test the MD5 modes still produce upper case hex GUIDs
+     */
+    public void testMD5ModeStringFormat() {
+        String[] guidStrings = { new RandomGUID().toString(), new RandomGUID(true).toString() };
+        for (String guidString : guidStrings)
+            assertTrue("GUID should be upper case hex in 8-4-4-4-12 groups: " + guidString,
+                    guidString.matches("[0-9A-F]{8}-[0-9A-F]{4}-[0-9A-F]{4}-[0-9A-F]{4}-[0-9A-F]{12}"));
+    }
+
+    /**
+     * Test the random mode doesn't repeat itself
+     */
+    public void testRandomModeIsUnique() {
+        Set<String> guids = new HashSet<String>();
+        for (int i = 0; i < 100000; i++)
+            assertTrue("GUIDs should not repeat", guids.add(new RandomGUID(RandomGUID.Mode.RANDOM).toString()));
+    }
+
+    /**
+     * Test secure GUIDs generated by several threads at once, each with its own generator,
+     * don't repeat
+     */
+    public void testSecureModeFromThreadsIsUnique() throws Exception {
+        final Set<String> guids = Collections.synchronizedSet(new HashSet<String>());
+        final AtomicInteger repeats = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 2000; j++) {
+                        if (!guids.add(new RandomGUID(true).toString()))
+                            repeats.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals("GUIDs should not repeat", 0, repeats.get());
+        assertEquals(8 * 2000, guids.size());
+    }
+
+    /**
+     * Test the secure seed can be set up in the background and used afterwards, and calling
+     * initializeInBackground() again doesn't start another thread
+     */
+    public void testInitializeInBackground() {
+        for (int i = 0; i < 10; i++)
+            RandomGUID.initializeInBackground();
+
+        int initializers = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("RandomGUID initializer"))
+                initializers++;
+        }
+        assertTrue("Started " + initializers + " initializer threads", initializers <= 1);
+
+        String guidString = new RandomGUID(true).toString();
+        assertEquals("GUID should be 36 characters in length", 36, guidString.length());
+    }
+
+    /**
+     * Test the GUID string format produced by the time ordered mode
+     */
+    public void testTimeOrderedStringFormat() {
+        String guidString = new RandomGUID(RandomGUID.Mode.TIME_ORDERED).toString();
+        assertTrue("GUID should be upper case hex in 8-4-4-4-12 groups: " + guidString,
+                guidString.matches("[0-9A-F]{8}-[0-9A-F]{4}-[0-9A-F]{4}-[0-9A-F]{4}-[0-9A-F]{12}"));
+        assertEquals("Time ordered GUIDs should be version 7", '7', guidString.charAt(14));
+        assertTrue("Time ordered GUIDs should have the RFC 4122 variant", "89AB".indexOf(guidString.charAt(19)) >= 0);
+    }
+
+    /**
+     * Test time ordered GUIDs start with the time they were generated
+     */
+    public void testTimeOrderedStartsWithTime() {
+        long before = System.currentTimeMillis();
+        String guidString = new RandomGUID(RandomGUID.Mode.TIME_ORDERED).toString();
+        long after = System.currentTimeMillis();
+
+        long time = Long.parseLong(guidString.substring(0, 8) + guidString.substring(9, 13), 16);
+        assertTrue("GUID time should not be before it was generated", time >= before);
+        assertTrue("GUID time should not be long after it was generated", time <= after + 1);
+    }
+
+    /**
+     * Test time ordered GUID strings always sort in the order they were generated
+     */
+    public void testTimeOrderedGUIDsSort() {
+        String previous = new RandomGUID(RandomGUID.Mode.TIME_ORDERED).toString();
+        for (int i = 0; i < 100000; i++) {
+            String next = new RandomGUID(RandomGUID.Mode.TIME_ORDERED).toString();
+            assertTrue(previous + " should sort before " + next, previous.compareTo(next) < 0);
+            previous = next;
+        }
+    }
+
+    /**
+     * Test a GUID made from its two longs is equal to the original and has the same hash code
+     */
+    public void testEqualsAndHashCode() {
+        RandomGUID guid = new RandomGUID(RandomGUID.Mode.RANDOM);
+        RandomGUID copy = new RandomGUID(guid.getMostSignificantBits(), guid.getLeastSignificantBits());
+
+        assertEquals(guid, copy);
+        assertEquals(guid.hashCode(), copy.hashCode());
+        assertEquals(guid.toString(), copy.toString());
+        assertFalse(guid.equals(new RandomGUID(RandomGUID.Mode.RANDOM)));
+        assertFalse(guid.equals(guid.toString()));
+    }
+
+    /**
+     * Test a GUID can be parsed from its string
+     */
+    public void testFromString() {
+        RandomGUID guid = new RandomGUID(RandomGUID.Mode.TIME_ORDERED);
+        assertEquals(guid, RandomGUID.fromString(guid.toString()));
+        assertEquals(guid, RandomGUID.fromString(guid.toString().toLowerCase()));
+
+        RandomGUID md5 = new RandomGUID(false);
+        assertEquals(md5, RandomGUID.fromString(md5.toString()));
+        assertEquals(new RandomGUID(0xC2FEEEACCFCD11D1L, 0x8B0500600806D9B6L),
+                RandomGUID.fromString("C2FEEEAC-CFCD-11D1-8B05-00600806D9B6"));
+    }
+
+    /**
+     * Test strings that aren't GUIDs are rejected
+     */
+    public void testFromStringInvalid() {
+        String[] invalid = { "", "C2FEEEAC-CFCD-11D1-8B05-00600806D9B", "C2FEEEACXCFCD-11D1-8B05-00600806D9B6",
+                "G2FEEEAC-CFCD-11D1-8B05-00600806D9B6" };
+        for (String s : invalid) {
+            try {
+                RandomGUID.fromString(s);
+                fail("Should not parse " + s);
+            }
+            catch (IllegalArgumentException e) {
+                assertNotNull(e);
+            }
+        }
+    }
+
+    /**
+     * Test a GUID written to a buffer is read back, and takes 16 bytes in the order of its string
+     */
+    public void testByteBuffer() {
+        RandomGUID guid = RandomGUID.fromString("C2FEEEAC-CFCD-11D1-8B05-00600806D9B6");
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        guid.writeTo(buffer);
+        assertEquals(16, buffer.position());
+        assertEquals((byte) 0xC2, buffer.get(0));
+        assertEquals((byte) 0xB6, buffer.get(15));
+
+        buffer.flip();
+        assertEquals(guid, RandomGUID.readFrom(buffer));
+        assertEquals(16, buffer.position());
+    }
+
+    /**
+     * Test GUIDs compare in the order of their strings
+     */
+    public void testCompareTo() {
+        RandomGUID low = RandomGUID.fromString("7FFFFFFF-FFFF-4FFF-8FFF-FFFFFFFFFFFF");
+        RandomGUID high = RandomGUID.fromString("80000000-0000-4000-8000-000000000000");
+
+        assertTrue(low.compareTo(high) < 0);
+        assertTrue(high.compareTo(low) > 0);
+        assertEquals(0, low.compareTo(RandomGUID.fromString(low.toString())));
+    }
+
+    /**
+     * Test GUIDs generated in bulk are in the same format as single GUIDs and don't repeat
+     */
+    public void testGenerateRandom() {
+        long[] ids = new long[2 + 2 * 1000];
+        RandomGUID.generate(RandomGUID.Mode.RANDOM, ids, 2, 1000);
+        assertEquals(0, ids[0]);
+        assertEquals(0, ids[1]);
+
+        Set<RandomGUID> guids = new HashSet<RandomGUID>();
+        for (int i = 2; i < ids.length; i += 2) {
+            RandomGUID guid = new RandomGUID(ids[i], ids[i + 1]);
+            assertEquals("Random GUIDs should be version 4", '4', guid.toString().charAt(14));
+            assertTrue("GUIDs should not repeat", guids.add(guid));
+        }
+    }
+
+    /**
+     * Test time ordered GUIDs generated in bulk sort in order, before and after single ones
+     */
+    public void testGenerateTimeOrdered() {
+        RandomGUID first = new RandomGUID(RandomGUID.Mode.TIME_ORDERED);
+        long[] ids = new long[2 * 10000];
+        RandomGUID.generate(RandomGUID.Mode.TIME_ORDERED, ids, 0, 10000);
+        RandomGUID last = new RandomGUID(RandomGUID.Mode.TIME_ORDERED);
+
+        RandomGUID previous = first;
+        for (int i = 0; i < ids.length; i += 2) {
+            RandomGUID next = new RandomGUID(ids[i], ids[i + 1]);
+            assertEquals("Time ordered GUIDs should be version 7", '7', next.toString().charAt(14));
+            assertTrue(previous + " should sort before " + next, previous.compareTo(next) < 0);
+            previous = next;
+        }
+        assertTrue(previous.compareTo(last) < 0);
+    }
+
+    /**
+     * Test GUIDs can be generated in bulk with the MD5 modes
+     */
+    public void testGenerateMD5() {
+        long[] ids = new long[2 * 3];
+        RandomGUID.generate(RandomGUID.Mode.MD5, ids, 0, 3);
+        assertFalse(ids[0] == ids[2] && ids[1] == ids[3]);
+    }
+
+    /**
+     * Test generating more GUIDs than the array has room for is rejected
+     */
+    public void testGenerateNoRoom() {
+        try {
+            RandomGUID.generate(RandomGUID.Mode.RANDOM, new long[10], 2, 5);
+            fail("Should not generate GUIDs past the end of the array");
+        }
+        catch (IndexOutOfBoundsException e) {
+            assertNotNull(e);
+        }
+    }
 }
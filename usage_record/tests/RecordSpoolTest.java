@@ -0,0 +1,274 @@
+import junit.framework.TestCase;
+import es.bsc.ur4j.RecordSpool;
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordException;
+import es.bsc.ur4j.UsageRecordReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the memory-mapped record spool
+ */
+public final class RecordSpoolTest extends TestCase {
+
+    private File directory;
+
+    protected void setUp() throws IOException {
+        directory = File.createTempFile("spool", "");
+        directory.delete();
+    }
+
+    protected void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Helper method: the bytes of a numbered test entry
+     *
+     * @param i the number of the entry
+     * @return the bytes of the entry
+     */
+    private static byte[] entry(int i) {
+        return ("entry number " + i).getBytes();
+    }
+
+    /**
+     * Helper method: read all the entries a replay returns
+     *
+     * @param spool the spool to replay
+     * @return the entries as strings
+     */
+    private static List<String> replay(RecordSpool spool) {
+        List<String> entries = new ArrayList<String>();
+        RecordSpool.Replay replay = spool.replay();
+        while (replay.hasNext())
+            entries.add(new String(replay.next()));
+        return entries;
+    }
+
+    /**
+     * Helper method: the list of entry strings for a range of numbers
+     *
+     * @param from the first number
+     * @param to the number after the last
+     * @return the entries as strings
+     */
+    private static List<String> entries(int from, int to) {
+        List<String> entries = new ArrayList<String>();
+        for (int i = from; i < to; i++)
+            entries.add(new String(entry(i)));
+        return entries;
+    }
+
+    /**
+     * Test entries are replayed in order when the spool is opened again
+     */
+    public void testAppendAndReplay() throws IOException {
+        RecordSpool spool = new RecordSpool(directory, 4096);
+        for (int i = 0; i < 10; i++)
+            spool.append(entry(i));
+        spool.sync();
+        assertEquals(entries(0, 10), replay(spool));
+        spool.close();
+
+        spool = new RecordSpool(directory, 4096);
+        assertEquals(entries(0, 10), replay(spool));
+        spool.append(entry(10));
+        assertEquals(entries(0, 11), replay(spool));
+        spool.close();
+    }
+
+    /**
+     * Test a usage record appended to the spool can be read back
+     */
+    public void testAppendUsageRecord() throws IOException {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(true);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+
+        RecordSpool spool = new RecordSpool(directory, 4096);
+        spool.append(ur);
+        spool.close();
+
+        spool = new RecordSpool(directory, 4096);
+        RecordSpool.Replay replay = spool.replay();
+        UsageRecordReader reader = new UsageRecordReader(new ByteArrayInputStream(replay.next()));
+        assertEquals(ur.toXml(), reader.next().toXml());
+        assertFalse(replay.hasNext());
+        spool.close();
+    }
+
+    /**
+     * Test entries fill one segment after another
+     */
+    public void testSegments() throws IOException {
+        RecordSpool spool = new RecordSpool(directory, 256);
+        for (int i = 0; i < 100; i++)
+            spool.append(entry(i));
+        spool.close();
+        assertTrue(directory.list().length > 5);
+
+        spool = new RecordSpool(directory, 256);
+        assertEquals(entries(0, 100), replay(spool));
+        spool.close();
+    }
+
+    /**
+     * Test only the entries after the checkpoint are replayed, and the segments before it
+     * are deleted
+     */
+    public void testCheckpoint() throws IOException {
+        RecordSpool spool = new RecordSpool(directory, 256);
+        long[] positions = new long[100];
+        for (int i = 0; i < 100; i++)
+            positions[i] = spool.append(entry(i));
+        int segments = directory.list().length;
+
+        spool.checkpoint(positions[59]);
+        assertEquals(positions[59], spool.getCheckpoint());
+        assertTrue(directory.list().length < segments);
+        assertEquals(entries(60, 100), replay(spool));
+        spool.close();
+
+        spool = new RecordSpool(directory, 256);
+        assertEquals(entries(60, 100), replay(spool));
+
+        // Deliver what was replayed, a record at a time
+        RecordSpool.Replay replay = spool.replay();
+        for (int i = 60; i < 100; i++) {
+            replay.next();
+            spool.checkpoint(replay.getPosition());
+        }
+        assertEquals(0, replay(spool).size());
+        spool.close();
+
+        spool = new RecordSpool(directory, 256);
+        assertEquals(0, replay(spool).size());
+        spool.close();
+    }
+
+    /**
+     * Test a spool with a torn last entry is recovered up to the entry before it, and the
+     * torn entry doesn't come back after more entries are appended
+     */
+    public void testTornEntry() throws IOException {
+        RecordSpool spool = new RecordSpool(directory, 4096);
+        for (int i = 0; i < 5; i++)
+            spool.append(entry(i));
+        spool.append("a long entry which is torn by the crash".getBytes());
+        spool.append(entry(6));
+        spool.close();
+
+        // Tear the sixth entry
+        RandomAccessFile file = new RandomAccessFile(new File(directory, "spool-0000000000.seg"), "rw");
+        long offset = 0;
+        for (int i = 0; i < 5; i++)
+            offset += 8 + entry(i).length;
+        file.seek(offset + 8 + 10);
+        file.write('X');
+        file.close();
+
+        spool = new RecordSpool(directory, 4096);
+        assertEquals(entries(0, 5), replay(spool));
+        spool.append(entry(5));
+        spool.close();
+
+        spool = new RecordSpool(directory, 4096);
+        assertEquals(entries(0, 6), replay(spool));
+        spool.close();
+    }
+
+    /**
+     * Test entries appended and synced from several threads at once are all spooled
+     */
+    public void testSyncFromManyThreads() throws Exception {
+        final RecordSpool spool = new RecordSpool(directory, 64 * 1024);
+        final int threads = 8;
+        final IOException[] failures = new IOException[threads];
+        Thread[] workers = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 500; j++) {
+                            spool.append(entry(index * 500 + j));
+                            spool.sync();
+                        }
+                    }
+                    catch (IOException e) {
+                        failures[index] = e;
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+            assertNull(failures[i]);
+        }
+        spool.close();
+
+        RecordSpool reopened = new RecordSpool(directory, 64 * 1024);
+        List<String> replayed = replay(reopened);
+        reopened.close();
+
+        String[] sorted = replayed.toArray(new String[replayed.size()]);
+        String[] expected = entries(0, threads * 500).toArray(new String[threads * 500]);
+        Arrays.sort(sorted);
+        Arrays.sort(expected);
+        assertTrue(Arrays.equals(expected, sorted));
+    }
+
+    /**
+     * Test a record larger than a segment is rejected
+     */
+    public void testRecordTooLarge() throws IOException {
+        RecordSpool spool = new RecordSpool(directory, 256);
+        try {
+            spool.append(new byte[300]);
+            fail("Should not spool a record larger than a segment");
+        }
+        catch (UsageRecordException e) {
+            assertTrue(e.getMessage().startsWith("The record is larger than a spool segment"));
+        }
+        spool.close();
+    }
+
+    /**
+     * Test an empty record is rejected, leaving the records around it durable after the
+     * spool is opened again
+     */
+    public void testEmptyRecord() throws IOException {
+        RecordSpool spool = new RecordSpool(directory, 4096);
+        spool.append(entry(0));
+        try {
+            spool.append(new byte[0]);
+            fail("Should not spool an empty record");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("An empty record cannot be spooled", e.getMessage());
+        }
+        spool.append(entry(1));
+        spool.sync();
+        spool.close();
+
+        spool = new RecordSpool(directory, 4096);
+        assertEquals(entries(0, 2), replay(spool));
+        spool.append(entry(2));
+        assertEquals(entries(0, 3), replay(spool));
+        spool.close();
+    }
+}
@@ -0,0 +1,296 @@
+import junit.framework.TestCase;
+import es.bsc.ur4j.RusSender;
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordException;
+import es.bsc.ur4j.UsageRecordReader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the RusSender, against a local HTTP server standing in for the RUS
+ */
+public final class RusSenderTest extends TestCase {
+
+    private HttpServer server;
+    private URL url;
+
+    /** The number of records in each batch the stand-in service accepted */
+    private final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /** The number of requests to reject before accepting any */
+    private volatile int failures;
+
+    /** The status the rejected requests are answered with */
+    private volatile int failureStatus = 503;
+
+    /** When set, requests wait for this before they are answered */
+    private volatile CountDownLatch gate;
+
+    protected void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/rus", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] document = readAll(exchange.getRequestBody());
+                int request = requests.incrementAndGet();
+                try {
+                    if (gate != null)
+                        gate.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                if (request <= failures) {
+                    exchange.sendResponseHeaders(failureStatus, -1);
+                }
+                else {
+                    batches.add(countRecords(document));
+                    exchange.sendResponseHeaders(200, -1);
+                }
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/rus");
+    }
+
+    protected void tearDown() {
+        if (gate != null)
+            gate.countDown();
+        server.stop(0);
+    }
+
+    /**
+     * Helper method: read a stream to the end
+     *
+     * @param in the stream to read
+     * @return the bytes read
+     * @throws IOException if the stream cannot be read
+     */
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0)
+            bytes.write(buffer, 0, n);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Helper method: count the records in a UsageRecords document
+     *
+     * @param document the document
+     * @return the number of records in it
+     * @throws IOException if the document cannot be read
+     */
+    private static int countRecords(byte[] document) throws IOException {
+        UsageRecordReader reader = new UsageRecordReader(new ByteArrayInputStream(document));
+        int count = 0;
+        while (reader.hasNext()) {
+            assertTrue(reader.next().validate());
+            count++;
+        }
+        reader.close();
+        return count;
+    }
+
+    /**
+     * Helper method: create a valid usage record
+     *
+     * @param jobName the job name to give the record
+     * @return the record
+     */
+    private static UsageRecord createRecord(String jobName) {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(true);
+        ur.setJobName(jobName, null);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        return ur;
+    }
+
+    /**
+     * Test records are sent in full batches, with the rest sent on close
+     */
+    public void testBatchesBySize() throws Exception {
+        RusSender sender = new RusSender(url, 10, 60000, 2, 100, 0);
+        for (int i = 0; i < 25; i++)
+            sender.send(createRecord("job " + i));
+        sender.close();
+
+        assertEquals(25, sender.getSentRecords());
+        assertEquals(3, sender.getSentBatches());
+        assertEquals(0, sender.getFailedRecords());
+
+        List<Integer> sizes = new ArrayList<Integer>(batches);
+        Collections.sort(sizes);
+        assertEquals("[5, 10, 10]", sizes.toString());
+    }
+
+    /**
+     * Test a batch that doesn't fill up is sent once its first record has waited long enough
+     */
+    public void testBatchesByTime() throws Exception {
+        RusSender sender = new RusSender(url, 100, 50, 1, 100, 0);
+        sender.send(createRecord("job"));
+
+        for (int i = 0; i < 100 && sender.getSentRecords() == 0; i++)
+            Thread.sleep(50);
+        assertEquals("The record should be sent without waiting for close()", 1, sender.getSentRecords());
+        sender.close();
+        assertEquals(1, batches.size());
+    }
+
+    /**
+     * Test a batch the service rejects is retried until it is accepted
+     */
+    public void testRetry() throws Exception {
+        failures = 2;
+        RusSender sender = new RusSender(url, 10, 60000, 1, 100, 3);
+        for (int i = 0; i < 5; i++)
+            sender.send(createRecord("job " + i));
+        sender.close();
+
+        assertEquals(3, requests.get());
+        assertEquals(5, sender.getSentRecords());
+        assertEquals(0, sender.getFailedRecords());
+    }
+
+    /**
+     * Test a batch is dropped once the retries run out
+     */
+    public void testRetriesRunOut() throws Exception {
+        failures = Integer.MAX_VALUE;
+        RusSender sender = new RusSender(url, 10, 60000, 1, 100, 1);
+        for (int i = 0; i < 5; i++)
+            sender.send(createRecord("job " + i));
+        sender.close();
+
+        assertEquals(2, requests.get());
+        assertEquals(0, sender.getSentRecords());
+        assertEquals(5, sender.getFailedRecords());
+    }
+
+    /**
+     * Test a batch the service rejects as bad is dropped without being retried
+     */
+    public void testRejected() throws Exception {
+        failures = Integer.MAX_VALUE;
+        failureStatus = 400;
+        RusSender sender = new RusSender(url, 10, 60000, 1, 100, 3);
+        for (int i = 0; i < 5; i++)
+            sender.send(createRecord("job " + i));
+        sender.close();
+
+        assertEquals(1, requests.get());
+        assertEquals(0, sender.getSentRecords());
+        assertEquals(5, sender.getFailedRecords());
+    }
+
+    /**
+     * Test send() blocks while the service is holding up the batches in flight and the queue
+     * is full, and carries on once the service catches up
+     */
+    public void testBackpressure() throws Exception {
+        gate = new CountDownLatch(1);
+        final RusSender sender = new RusSender(url, 1, 60000, 1, 2, 0);
+        final AtomicInteger queued = new AtomicInteger();
+
+        Thread producer = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 10; i++) {
+                        sender.send(createRecord("job " + i));
+                        queued.incrementAndGet();
+                    }
+                }
+                catch (InterruptedException e) {
+                    // the test failed and is stopping the producer
+                }
+            }
+        };
+        producer.start();
+
+        Thread.sleep(500);
+        // one batch with the service, one waiting for a sender and two in the queue
+        assertTrue("send() should block, but queued " + queued.get(), queued.get() <= 4);
+        assertTrue(producer.isAlive());
+
+        gate.countDown();
+        producer.join(10000);
+        assertEquals(10, queued.get());
+        sender.close();
+        assertEquals(10, sender.getSentRecords());
+    }
+
+    /**
+     * Test a record without a status is rejected by send()
+     */
+    public void testSendWithNoStatus() throws Exception {
+        RusSender sender = new RusSender(url);
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(true);
+        try {
+            sender.send(ur);
+            fail("Should not send a record with no status");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("The status must be set", e.getMessage());
+        }
+        sender.close();
+    }
+
+    /**
+     * Test a record with a character that is not legal in XML is refused, and the records sent
+     * after it still get through
+     */
+    public void testSendIllegalCharacter() throws Exception {
+        RusSender sender = new RusSender(url, 10, 60000, 1, 100, 0);
+        try {
+            sender.send(createRecord("bad\u0001"));
+            fail("Should not send a record with an illegal character");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("0x1 is not a legal XML character", e.getMessage());
+        }
+        sender.send(createRecord("good"));
+        sender.close();
+
+        assertEquals(1, sender.getSentRecords());
+        assertEquals(0, sender.getFailedRecords());
+    }
+
+    /**
+     * Test records cannot be sent once the sender is closed
+     */
+    public void testSendAfterClose() throws Exception {
+        RusSender sender = new RusSender(url);
+        sender.close();
+        sender.close();
+        try {
+            sender.send(createRecord("job"));
+            fail("Should not send a record after close");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("The sender has been closed", e.getMessage());
+        }
+        assertEquals(0, requests.get());
+    }
+}
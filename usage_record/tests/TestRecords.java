@@ -0,0 +1,56 @@
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordReader;
+
+import java.io.StringReader;
+
+/**
+ * Usage records shared by the tests
+ */
+public final class TestRecords {
+
+    private TestRecords() {
+    }
+
+    /**
+     * Create a usage record using most of the elements ur4j supports, including optional
+     * attributes, user and project elements with only some of their parts, and sizes too large
+     * for an int
+     *
+     * @param jobName the job name to give the record
+     * @return a complete usage record
+     */
+    public static UsageRecord complete(String jobName) {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(true);
+        ur.setJobId("global", "local", "1234");
+        ur.addUserId("local user id", "global user name");
+        ur.addUserId(null, "global user name only");
+        ur.setJobName(jobName, "a test job");
+        ur.setCharge(2.5f, "desc", "USD", "x=2y");
+        ur.setStatus(UsageRecord.Status.Failed, "out of memory");
+        ur.addProjectName("project name", null);
+        ur.addProjectName("another project", "with a description");
+        ur.addProjectName(null, "");
+        ur.addDisk(100, "scratch space", UsageRecord.DiskType.scratch, UsageRecord.Metric.max);
+        ur.addDisk(2000000000, null, null, null);
+        ur.addNetwork(200, UsageRecord.Unit.MB, UsageRecord.Metric.total, null);
+        ur.addNetwork(5L << 40, UsageRecord.Unit.B, UsageRecord.Metric.total, "more than an int");
+        ur.addMemory(300, UsageRecord.Unit.GB, UsageRecord.Metric.average, UsageRecord.MemoryType.physical, null);
+        ur.addResourceType("licence", "a consumed licence");
+        return ur;
+    }
+
+    /**
+     * Give a record a createTime. There is no setter for it, so the record is written out
+     * with the createTime added to its RecordIdentity and read back in.
+     *
+     * @param record the record, with a recordId and a status
+     * @param createTime the create time, of the form yyyy-MM-ddTHH:mm:ssZ
+     * @return a copy of the record with the createTime
+     */
+    public static UsageRecord withCreateTime(UsageRecord record, String createTime) {
+        String recordId = "urf:recordId=\"" + record.getRecordId() + "\"";
+        String xml = record.toXml().replace(recordId, recordId + " urf:createTime=\"" + createTime + "\"");
+        return new UsageRecordReader(new StringReader(xml)).next();
+    }
+}
@@ -18,6 +18,42 @@ public final class Ur4jTestSuite {
         // The UsageRecord tests
         suite.addTestSuite(UsageRecordTest.class);
 
+        // The UsageRecordsWriter tests
+        suite.addTestSuite(UsageRecordsWriterTest.class);
+
+        // The UsageRecordReader tests
+        suite.addTestSuite(UsageRecordReaderTest.class);
+
+        // The RusSender tests
+        suite.addTestSuite(RusSenderTest.class);
+
+        // The RecordSpool tests
+        suite.addTestSuite(RecordSpoolTest.class);
+
+        // The binary record writer and reader tests
+        suite.addTestSuite(BinaryRecordTest.class);
+
+        // The UsageAggregator tests
+        suite.addTestSuite(UsageAggregatorTest.class);
+
+        // The ColumnarRecordStore tests
+        suite.addTestSuite(ColumnarRecordStoreTest.class);
+
+        // The indexed archive tests
+        suite.addTestSuite(IndexedArchiveTest.class);
+
+        // The batch validator tests
+        suite.addTestSuite(BatchValidatorTest.class);
+
+        // The parallel writer tests
+        suite.addTestSuite(ParallelRecordsWriterTest.class);
+
+        // The encoder tests
+        suite.addTestSuite(UsageRecordEncoderTest.class);
+
+        // The record pool tests
+        suite.addTestSuite(UsageRecordPoolTest.class);
+
         // The UsageRecordException tests
         suite.addTestSuite(UsageRecordExceptionTest.class);
 
@@ -0,0 +1,161 @@
+import junit.framework.TestCase;
+import es.bsc.ur4j.UsageAggregator;
+import es.bsc.ur4j.UsageRecord;
+
+import java.util.List;
+
+/**
+ * Tests for the usage aggregator
+ */
+public final class UsageAggregatorTest extends TestCase {
+
+    private static final double DELTA = 1e-6;
+
+    /**
+     * Helper method: create a record for a user and project at a given time
+     *
+     * @param user the local user id (may be null for no user identity)
+     * @param project the project name (may be null for no project)
+     * @param createTime the create time
+     * @param charge the charge
+     * @return the record
+     */
+    private static UsageRecord createRecord(String user, String project, String createTime, float charge) {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId("id", false);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        ur.setCharge(charge, null, null, null);
+        if (user != null)
+            ur.addUserId(user, "/CN=" + user);
+        if (project != null)
+            ur.addProjectName(project, null);
+        return TestRecords.withCreateTime(ur, createTime);
+    }
+
+    /**
+     * Test charges are summed per user, with a group for records without a user
+     */
+    public void testByUser() {
+        UsageAggregator aggregator = new UsageAggregator(UsageAggregator.Dimension.LocalUserId, 0);
+        aggregator.add(createRecord("alice", null, "2009-03-31T10:00:00Z", 1.5f));
+        aggregator.add(createRecord("bob", null, "2009-03-31T10:00:00Z", 2f));
+        aggregator.add(createRecord("alice", null, "2009-04-01T10:00:00Z", 3f));
+        aggregator.add(createRecord(null, null, "2009-04-01T10:00:00Z", 4f));
+
+        List<UsageAggregator.Rollup> rollups = aggregator.getRollups();
+        assertEquals(3, rollups.size());
+        assertEquals(4, aggregator.getRecordCount());
+
+        assertNull(rollups.get(0).getName());
+        assertEquals(4, rollups.get(0).getCharge(), DELTA);
+        assertEquals("alice", rollups.get(1).getName());
+        assertEquals(2, rollups.get(1).getRecords());
+        assertEquals(4.5, rollups.get(1).getCharge(), DELTA);
+        assertEquals(-1, rollups.get(1).getWindowStart());
+        assertEquals("bob", rollups.get(2).getName());
+        assertEquals(2, rollups.get(2).getCharge(), DELTA);
+    }
+
+    /**
+     * Test records are grouped by project and by the day they were created
+     */
+    public void testByProjectAndWindow() {
+        UsageAggregator aggregator = new UsageAggregator(UsageAggregator.Dimension.ProjectName, 86400);
+        aggregator.add(createRecord("alice", "life", "2009-03-31T10:00:00Z", 1f));
+        aggregator.add(createRecord("bob", "life", "2009-03-31T23:59:59Z", 2f));
+        aggregator.add(createRecord("alice", "life", "2009-04-01T00:00:00Z", 4f));
+        aggregator.add(createRecord("alice", "earth", "2009-04-01T00:00:00Z", 8f));
+
+        List<UsageAggregator.Rollup> rollups = aggregator.getRollups();
+        assertEquals(3, rollups.size());
+        assertEquals("earth", rollups.get(0).getName());
+        assertEquals("life", rollups.get(1).getName());
+        assertEquals(1238457600L, rollups.get(1).getWindowStart());
+        assertEquals(3, rollups.get(1).getCharge(), DELTA);
+        assertEquals("life", rollups.get(2).getName());
+        assertEquals(1238457600L + 86400, rollups.get(2).getWindowStart());
+        assertEquals(4, rollups.get(2).getCharge(), DELTA);
+    }
+
+    /**
+     * Test resources are combined according to their metric, with units converted to bytes
+     */
+    public void testMetrics() {
+        UsageRecord first = createRecord("alice", null, "2009-03-31T10:00:00Z", 0f);
+        first.addNetwork(2, UsageRecord.Unit.KB, UsageRecord.Metric.total, null);
+        first.addNetwork(8, UsageRecord.Unit.b, null, null);
+        first.addMemory(1, UsageRecord.Unit.MB, UsageRecord.Metric.max, UsageRecord.MemoryType.physical, null);
+        first.addMemory(100, UsageRecord.Unit.B, UsageRecord.Metric.average, null, null);
+        first.addDisk(10, null, UsageRecord.DiskType.scratch, UsageRecord.Metric.min);
+
+        UsageRecord second = createRecord("alice", null, "2009-03-31T11:00:00Z", 0f);
+        second.addNetwork(1, UsageRecord.Unit.KB, UsageRecord.Metric.total, null);
+        second.addMemory(3, UsageRecord.Unit.MB, UsageRecord.Metric.max, UsageRecord.MemoryType.physical, null);
+        second.addMemory(300, UsageRecord.Unit.B, UsageRecord.Metric.average, null, null);
+        second.addDisk(5, null, UsageRecord.DiskType.scratch, UsageRecord.Metric.min);
+
+        UsageAggregator aggregator = new UsageAggregator(UsageAggregator.Dimension.None, 0);
+        aggregator.add(first);
+        aggregator.add(second);
+
+        UsageAggregator.Rollup rollup = aggregator.getRollups().get(0);
+        assertEquals(3 * 1024 + 1, rollup.getTotal(UsageAggregator.Resource.Network), DELTA);
+        assertEquals(3 * 1024 * 1024, rollup.getMax(UsageAggregator.Resource.Memory), DELTA);
+        assertEquals(200, rollup.getAverage(UsageAggregator.Resource.Memory), DELTA);
+        assertEquals(5, rollup.getMin(UsageAggregator.Resource.Disk), DELTA);
+        assertEquals(0, rollup.getTotal(UsageAggregator.Resource.Disk), DELTA);
+        assertTrue(Double.isNaN(rollup.getMax(UsageAggregator.Resource.Disk)));
+        assertTrue(Double.isNaN(rollup.getAverage(UsageAggregator.Resource.Network)));
+    }
+
+    /**
+     * Test merging aggregators gives the same rollups as aggregating every record in one
+     */
+    public void testMerge() {
+        UsageAggregator all = new UsageAggregator(UsageAggregator.Dimension.GlobalUserName, 3600);
+        UsageAggregator[] parts = new UsageAggregator[3];
+        for (int i = 0; i < parts.length; i++)
+            parts[i] = new UsageAggregator(UsageAggregator.Dimension.GlobalUserName, 3600);
+
+        for (int i = 0; i < 1000; i++) {
+            UsageRecord ur = createRecord("user" + (i % 37), null, "2009-03-31T" + (10 + i % 5) + ":00:00Z", i);
+            ur.addMemory(i, UsageRecord.Unit.KB, UsageRecord.Metric.max, null, null);
+            ur.addMemory(i, UsageRecord.Unit.KB, UsageRecord.Metric.min, null, null);
+            all.add(ur);
+            parts[i % parts.length].add(ur);
+        }
+
+        UsageAggregator merged = new UsageAggregator(UsageAggregator.Dimension.GlobalUserName, 3600);
+        for (UsageAggregator part : parts)
+            merged.merge(part);
+
+        assertEquals(all.getRecordCount(), merged.getRecordCount());
+        assertEquals(all.getGroupCount(), merged.getGroupCount());
+        List<UsageAggregator.Rollup> expected = all.getRollups();
+        List<UsageAggregator.Rollup> actual = merged.getRollups();
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getName(), actual.get(i).getName());
+            assertEquals(expected.get(i).getWindowStart(), actual.get(i).getWindowStart());
+            assertEquals(expected.get(i).getRecords(), actual.get(i).getRecords());
+            assertEquals(expected.get(i).getCharge(), actual.get(i).getCharge(), DELTA);
+            assertEquals(expected.get(i).getMin(UsageAggregator.Resource.Memory),
+                    actual.get(i).getMin(UsageAggregator.Resource.Memory), DELTA);
+            assertEquals(expected.get(i).getMax(UsageAggregator.Resource.Memory),
+                    actual.get(i).getMax(UsageAggregator.Resource.Memory), DELTA);
+        }
+    }
+
+    /**
+     * Test aggregators with different groupings cannot be merged
+     */
+    public void testMergeMismatch() {
+        UsageAggregator byUser = new UsageAggregator(UsageAggregator.Dimension.LocalUserId, 0);
+        try {
+            byUser.merge(new UsageAggregator(UsageAggregator.Dimension.ProjectName, 0));
+            fail("Should not merge aggregators with different dimensions");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
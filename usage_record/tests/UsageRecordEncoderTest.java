@@ -0,0 +1,254 @@
+import junit.framework.TestCase;
+import es.bsc.ur4j.BinaryRecordReader;
+import es.bsc.ur4j.BinaryRecordWriter;
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordEncoder;
+import es.bsc.ur4j.UsageRecordException;
+import es.bsc.ur4j.UsageRecordsWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Tests for encoding records straight into ByteBuffers
+ */
+public final class UsageRecordEncoderTest extends TestCase {
+
+    /**
+     * Helper method: encode a record and check the bytes are those of toXml()
+     *
+     * @param encoder the encoder to use
+     * @param record the record
+     * @param buffer the buffer to encode into
+     */
+    private static void assertEncodesAsXml(UsageRecordEncoder encoder, UsageRecord record, ByteBuffer buffer)
+            throws Exception {
+        buffer.clear();
+        int length = encoder.encode(record, buffer);
+        assertEquals(buffer.position(), length);
+
+        byte[] expected = record.toXml().getBytes("UTF-8");
+        byte[] actual = new byte[length];
+        buffer.flip();
+        buffer.get(actual);
+        assertEquals(new String(expected, "UTF-8"), new String(actual, "UTF-8"));
+        assertTrue(Arrays.equals(expected, actual));
+    }
+
+    /**
+     * Test the bytes are those of toXml() for records with every element, and with only the
+     * required ones, into heap and direct buffers
+     */
+    public void testSameAsToXml() throws Exception {
+        UsageRecordEncoder encoder = new UsageRecordEncoder();
+        for (ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.allocate(8192), ByteBuffer.allocateDirect(8192) }) {
+            assertEncodesAsXml(encoder, TestRecords.complete("job"), buffer);
+
+            UsageRecord ur = new UsageRecord();
+            ur.setRecordId("not a GUID", false);
+            ur.setStatus(UsageRecord.Status.Queued, null);
+            assertEncodesAsXml(encoder, ur, buffer);
+
+            ur.setJobId(null, null, null);
+            ur.setJobName("", null);
+            assertEncodesAsXml(encoder, ur, buffer);
+        }
+    }
+
+    /**
+     * Test text and attribute values are escaped and encoded as toXml() does, including
+     * characters outside the Basic Multilingual Plane, and characters that are not legal in
+     * XML are refused
+     */
+    public void testEscaping() throws Exception {
+        UsageRecordEncoder encoder = new UsageRecordEncoder();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+        String awkward = "<&>\"' \t\r\n \u00e9t\u00e9 \u4e2d\u6587 \ud83d\ude00";
+        UsageRecord ur = TestRecords.complete(awkward);
+        ur.setJobId(awkward, null, null);
+        ur.addProjectName(awkward, awkward);
+        ur.addMemory(Integer.MAX_VALUE, UsageRecord.Unit.b, null, null, awkward);
+        assertEncodesAsXml(encoder, ur, buffer);
+
+        // Characters that are not legal in XML are refused when they are set
+        String[] illegal = { "\u0001", "\u001f", "\ud800", "\udc00x", "\ufffe", "\uffff" };
+        for (int i = 0; i < illegal.length; i++) {
+            UsageRecord bad = TestRecords.complete("job");
+            try {
+                if (i % 2 == 0)
+                    bad.setJobName("a" + illegal[i], null);
+                else
+                    bad.addProjectName("project", "a" + illegal[i]);
+                fail("Should not set a string with an illegal character");
+            }
+            catch (UsageRecordException e) {
+                assertTrue(e.getMessage().endsWith(" is not a legal XML character"));
+            }
+        }
+
+        // and when a record read from a binary stream holds them, as toXml() refuses them
+        char[] unreadable = { '\u0001', '\u001f', '\ufffe', '\uffff' };
+        for (char c : unreadable)
+            assertRefused(encoder, readWithJobName(c), buffer);
+    }
+
+    /**
+     * Helper method: read a complete record from a binary record stream in which a character
+     * of the job name has been replaced, which the setters would refuse
+     *
+     * @param c the character to put in the job name
+     * @return the record read
+     */
+    private static UsageRecord readWithJobName(char c) throws Exception {
+        String placeholder = c < 0x80 ? "[#]" : "[\u4e2d]";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryRecordWriter writer = new BinaryRecordWriter(bytes);
+        writer.write(TestRecords.complete(placeholder));
+        writer.close();
+
+        byte[] stream = bytes.toByteArray();
+        byte[] from = placeholder.getBytes("UTF-8");
+        byte[] to = ("[" + c + "]").getBytes("UTF-8");
+        int at = 0;
+        while (!Arrays.equals(Arrays.copyOfRange(stream, at, at + from.length), from))
+            at++;
+        System.arraycopy(to, 0, stream, at, to.length);
+
+        BinaryRecordReader reader = new BinaryRecordReader(new ByteArrayInputStream(stream));
+        UsageRecord record = reader.next();
+        assertEquals("[" + c + "]", record.getJobName());
+        return record;
+    }
+
+    /**
+     * Helper method: check a record is refused by toXml(), is not valid, and is refused by the
+     * encoder, which leaves the buffer as it was, and by a UsageRecordsWriter, which writes
+     * nothing of it
+     *
+     * @param encoder the encoder to use
+     * @param record the record
+     * @param buffer the buffer to encode into
+     */
+    private static void assertRefused(UsageRecordEncoder encoder, UsageRecord record, ByteBuffer buffer)
+            throws Exception {
+        try {
+            record.toXml();
+            fail("toXml() should refuse the record");
+        }
+        catch (UsageRecordException e) {
+            assertTrue(e.getMessage().endsWith(" is not a legal XML character"));
+        }
+        assertFalse(record.validate());
+
+        buffer.clear();
+        buffer.position(10);
+        try {
+            encoder.encode(record, buffer);
+            fail("The encoder should refuse the record");
+        }
+        catch (UsageRecordException e) {
+            assertTrue(e.getMessage().endsWith(" is not a legal XML character"));
+        }
+        assertEquals(10, buffer.position());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        UsageRecordsWriter writer = new UsageRecordsWriter(bytes);
+        int start = bytes.size();
+        try {
+            writer.write(record);
+            fail("The writer should refuse the record");
+        }
+        catch (UsageRecordException e) {
+            assertTrue(e.getMessage().endsWith(" is not a legal XML character"));
+        }
+        assertEquals(start, bytes.size());
+    }
+
+    /**
+     * Test charges are written as Float.toString() writes them, whether or not the encoder
+     * has seen them before
+     */
+    public void testCharges() throws Exception {
+        UsageRecordEncoder encoder = new UsageRecordEncoder();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        float[] charges = { 0, -0f, 0.1f + 0.2f, 1e10f, 1.5e-7f, Float.MAX_VALUE, Float.MIN_VALUE, Float.NaN, -42 };
+
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 200; i++) {
+                UsageRecord ur = TestRecords.complete("job");
+                ur.setCharge(i < charges.length ? charges[i] : i / 7f, null, null, null);
+                assertEncodesAsXml(encoder, ur, buffer);
+            }
+        }
+    }
+
+    /**
+     * Test a record that does not fit leaves the buffer where it was, and an incomplete record
+     * is rejected
+     */
+    public void testOverflowAndIncomplete() throws Exception {
+        UsageRecordEncoder encoder = new UsageRecordEncoder();
+        ByteBuffer buffer = ByteBuffer.allocate(300);
+        buffer.position(10);
+        try {
+            encoder.encode(TestRecords.complete("job"), buffer);
+            fail("Should not fit in 290 bytes");
+        }
+        catch (BufferOverflowException e) {
+            assertEquals(10, buffer.position());
+        }
+
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(true);
+        try {
+            encoder.encode(ur, buffer);
+            fail("Should not encode a record with no status");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("The status must be set", e.getMessage());
+        }
+        assertEncodesAsXml(encoder, TestRecords.complete("job"), ByteBuffer.allocate(4096));
+    }
+
+    /**
+     * Test the buffers of several records are written to a file with one gathering write
+     */
+    public void testGatheringWrite() throws Exception {
+        UsageRecordEncoder encoder = new UsageRecordEncoder();
+        UsageRecord[] records = new UsageRecord[5];
+        ByteBuffer[] buffers = new ByteBuffer[records.length];
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < records.length; i++) {
+            records[i] = TestRecords.complete("job " + i);
+            buffers[i] = ByteBuffer.allocateDirect(4096);
+            encoder.encode(records[i], buffers[i]);
+            buffers[i].flip();
+            expected.append(records[i].toXml());
+        }
+
+        File file = File.createTempFile("encoder", ".xml");
+        try {
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            while (buffers[buffers.length - 1].hasRemaining())
+                channel.write(buffers);
+            channel.close();
+
+            byte[] bytes = new byte[(int) file.length()];
+            FileInputStream in = new FileInputStream(file);
+            assertEquals(bytes.length, in.read(bytes));
+            in.close();
+            assertEquals(expected.toString(), new String(bytes, "UTF-8"));
+        }
+        finally {
+            file.delete();
+        }
+    }
+}
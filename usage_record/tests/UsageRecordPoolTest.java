@@ -0,0 +1,70 @@
+import junit.framework.TestCase;
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordException;
+import es.bsc.ur4j.UsageRecordPool;
+
+/**
+ * Tests for reusing records through a UsageRecordPool
+ */
+public final class UsageRecordPoolTest extends TestCase {
+
+    /**
+     * Test a released record is reset and acquired again
+     */
+    public void testReuse() {
+        UsageRecordPool pool = new UsageRecordPool(2);
+        UsageRecord ur = pool.acquire();
+        ur.setRecordId("record", false);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        ur.addDisk(100, null, UsageRecord.DiskType.scratch, UsageRecord.Metric.max);
+        assertEquals(0, pool.size());
+
+        pool.release(ur);
+        assertEquals(1, pool.size());
+        UsageRecord again = pool.acquire();
+        assertSame(ur, again);
+        assertEquals(0, pool.size());
+        assertNull(again.getRecordId());
+        assertNull(again.getStatus());
+    }
+
+    /**
+     * Test the pool keeps no more records than its capacity
+     */
+    public void testCapacity() {
+        UsageRecordPool pool = new UsageRecordPool(2);
+        for (int i = 0; i < 3; i++)
+            pool.release(new UsageRecord());
+        assertEquals(2, pool.size());
+
+        pool.acquire();
+        pool.acquire();
+        assertEquals(0, pool.size());
+        assertNotNull(pool.acquire());
+    }
+
+    /**
+     * Test snapshots and bad capacities are refused
+     */
+    public void testRefused() {
+        UsageRecordPool pool = new UsageRecordPool();
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId("record", false);
+        try {
+            pool.release(ur.snapshot());
+            fail("Should not release a snapshot");
+        }
+        catch (UsageRecordException e) {
+            // expected
+        }
+        assertEquals(0, pool.size());
+
+        try {
+            new UsageRecordPool(0);
+            fail("Should not create a pool with no capacity");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,182 @@
+import junit.framework.TestCase;
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordException;
+import es.bsc.ur4j.UsageRecordReader;
+import es.bsc.ur4j.UsageRecordsWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.NoSuchElementException;
+
+/**
+ * Tests for the streaming usage record reader
+ */
+public final class UsageRecordReaderTest extends TestCase {
+
+    /**
+     * Test records written with a UsageRecordsWriter are read back in order
+     */
+    public void testReadUsageRecords() throws Exception {
+        UsageRecord[] written = new UsageRecord[5];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        UsageRecordsWriter writer = new UsageRecordsWriter(bytes);
+        for (int i = 0; i < written.length; i++) {
+            written[i] = TestRecords.complete("job " + i);
+            writer.write(written[i]);
+        }
+        writer.close();
+
+        UsageRecordReader reader = new UsageRecordReader(new ByteArrayInputStream(bytes.toByteArray()));
+        for (UsageRecord expected : written) {
+            assertTrue(reader.hasNext());
+            UsageRecord read = reader.next();
+            assertEquals(expected.getRecordId(), read.getRecordId());
+            assertEquals(expected.getCreateTimeinUTC(), read.getCreateTimeinUTC());
+            assertEquals(expected.getJobName(), read.getJobName());
+            assertEquals(expected.toXml(), read.toXml());
+        }
+        assertFalse(reader.hasNext());
+        assertEquals(written.length, reader.getRecordCount());
+        reader.close();
+    }
+
+    /**
+     * Test a single record produced by toXml() can be read
+     */
+    public void testReadSingleRecord() throws Exception {
+        UsageRecord expected = TestRecords.complete("single job");
+
+        UsageRecordReader reader = new UsageRecordReader(new StringReader(expected.toXml()));
+        assertTrue(reader.hasNext());
+        UsageRecord read = reader.next();
+        assertFalse(reader.hasNext());
+        reader.close();
+
+        assertEquals("global", read.getGlobalJobId());
+        assertEquals("local", read.getLocalJobId());
+        assertEquals("1234", read.getProcessId());
+        assertEquals(2.5f, read.getCharge());
+        assertEquals(UsageRecord.Status.Failed, read.getStatus());
+        assertEquals(3, read.getProjectNames().length);
+        assertEquals("another project", read.getProjectNames()[1]);
+        assertTrue(read.validate());
+    }
+
+    /**
+     * Test an empty UsageRecords document has no records
+     */
+    public void testReadEmptyDocument() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new UsageRecordsWriter(bytes).close();
+
+        UsageRecordReader reader = new UsageRecordReader(new ByteArrayInputStream(bytes.toByteArray()));
+        assertFalse(reader.hasNext());
+        try {
+            reader.next();
+            fail("Should not return a record from an empty document");
+        }
+        catch (NoSuchElementException e) {
+            assertNotNull(e);
+        }
+        reader.close();
+    }
+
+    /**
+     * Test records using the older urwg namespace and the attribute and element names
+     * written by earlier versions of ur4j can be read, and unknown elements are skipped
+     */
+    public void testReadLegacyRecord() throws Exception {
+        String xml = "<UsageRecords xmlns='http://www.gridforum.org/2003/ur-wg'"
+                + " xmlns:urwg='http://www.gridforum.org/2003/ur-wg'>"
+                + "<JobUsageRecord>"
+                + "<RecordIdentity urwg:recordId='abcdef' urwg:createTime='2009-03-31T10:45:27Z'/>"
+                + "<Status>Completed</Status>"
+                + "<WallDuration>PT1H</WallDuration>"
+                + "<Network urwg:units='KB' urwg:metric='total'>42</Network>"
+                + "<ResourceType>licence</ResourceType>"
+                + "</JobUsageRecord>"
+                + "</UsageRecords>";
+
+        UsageRecordReader reader = new UsageRecordReader(new StringReader(xml));
+        UsageRecord read = reader.next();
+        assertFalse(reader.hasNext());
+        reader.close();
+
+        assertEquals("abcdef", read.getRecordId());
+        assertEquals("2009-03-31T10:45:27Z", read.getCreateTimeinUTC());
+        assertEquals(UsageRecord.Status.Completed, read.getStatus());
+        assertTrue(read.toXml().indexOf("urf:storageUnit=\"KB\"") > 0);
+        assertTrue(read.validate());
+    }
+
+    /**
+     * Test a document that isn't a usage record is rejected
+     */
+    public void testReadOtherDocument() {
+        try {
+            new UsageRecordReader(new StringReader("<html/>"));
+            fail("Should not read a document that isn't a usage record");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("Not a usage record document: html", e.getMessage());
+        }
+    }
+
+    /**
+     * Test the records after one that cannot be read are still read, whether the reader
+     * stopped at the start or the end of the bad element
+     */
+    public void testReadPastInvalidRecords() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        UsageRecordsWriter writer = new UsageRecordsWriter(bytes);
+        for (int i = 0; i < 5; i++) {
+            UsageRecord ur = TestRecords.complete("job " + i);
+            if (i == 1)
+                ur.setStatus(UsageRecord.Status.Held, null);
+            if (i == 3)
+                ur.addNetwork(7, UsageRecord.Unit.KB, null, null);
+            writer.write(ur);
+        }
+        writer.close();
+        String xml = bytes.toString("UTF-8").replace(">Held<", ">Bogus<").replace("\"KB\"", "\"XB\"");
+
+        UsageRecordReader reader = new UsageRecordReader(new StringReader(xml));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(reader.hasNext());
+            try {
+                UsageRecord read = reader.next();
+                assertEquals("job " + i, read.getJobName());
+                assertTrue("Should not read record " + i, i % 2 == 0);
+            }
+            catch (UsageRecordException e) {
+                assertTrue(e.getMessage().startsWith("Invalid value in usage record"));
+                assertTrue("Should read record " + i, i % 2 == 1);
+            }
+        }
+        assertFalse(reader.hasNext());
+        assertEquals(3, reader.getRecordCount());
+        reader.close();
+    }
+
+    /**
+     * Test a record with an unknown status is rejected
+     */
+    public void testReadInvalidStatus() throws Exception {
+        String xml = "<UsageRecord xmlns='http://schema.ogf.org/urf/2003/09/urf'"
+                + " xmlns:urf='http://schema.ogf.org/urf/2003/09/urf'>"
+                + "<RecordIdentity urf:recordId='abcdef'/>"
+                + "<Status>Exploded</Status>"
+                + "</UsageRecord>";
+
+        UsageRecordReader reader = new UsageRecordReader(new StringReader(xml));
+        try {
+            reader.next();
+            fail("Should not read a record with an unknown status");
+        }
+        catch (UsageRecordException e) {
+            assertTrue(e.getMessage().startsWith("Invalid value in usage record"));
+        }
+        reader.close();
+    }
+}
@@ -1,4 +1,5 @@
 import junit.framework.TestCase;
+import es.bsc.ur4j.RandomGUID;
 import es.bsc.ur4j.UsageRecord;
 import es.bsc.ur4j.UsageRecordException;
 
@@ -87,6 +88,133 @@ public final class UsageRecordTest extends TestCase {
         }
     }
 
+    /**
+     * Test a record with only the required elements validates
+     */
+    public void testMinimalRecordValidates() {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(true);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        assertTrue(ur.validate());
+    }
+
+    /**
+     * Test a record using every element ur4j can produce validates
+     */
+    public void testFullRecordValidates() {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(true);
+        ur.setJobId("test", "test", "test");
+        ur.addUserId("local user id", "global user name");
+        ur.addUserId("another local id", "another global name");
+        ur.setJobName("My first grid job", "a test usage record for a test job");
+        ur.setCharge(1.00f, "desc", "USD", "x=2y");
+        ur.setStatus(UsageRecord.Status.Completed, "test");
+        ur.addProjectName("project name", "optional description");
+        ur.addProjectName("another project name", "another optional description");
+        ur.addDisk(100, "an example file size", UsageRecord.DiskType.temp, UsageRecord.Metric.total);
+        ur.addNetwork(100, UsageRecord.Unit.MB, UsageRecord.Metric.total, null);
+        ur.addMemory(100, UsageRecord.Unit.MB, UsageRecord.Metric.total, UsageRecord.MemoryType.dedicated, null);
+        ur.addResourceType("licence", "a consumed licence");
+        assertTrue(ur.validate());
+    }
+
+    /**
+     * Test a record breaking the schema doesn't validate
+     */
+    public void testInvalidRecordWontValidate() {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(false);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        ur.addDisk(0, null, null, null); // GFD.098 volumes must be positive
+        assertFalse(ur.validate());
+    }
+
+    /**
+     * Test records can be validated from several threads at once
+     */
+    public void testValidateFromManyThreads() throws Exception {
+        final int threads = 8;
+        final boolean[] results = new boolean[threads];
+        Thread[] workers = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    boolean validated = true;
+                    for (int j = 0; j < 50; j++) {
+                        UsageRecord ur = new UsageRecord();
+                        ur.setRecordId(true);
+                        ur.setStatus(UsageRecord.Status.Completed, null);
+                        ur.addProjectName("project " + index, null);
+                        validated &= ur.validate();
+                    }
+                    results[index] = validated;
+                }
+            };
+            workers[i].start();
+        }
+
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+            assertTrue("Thread " + i + " failed to validate", results[i]);
+        }
+    }
+
+    /**
+     * Test the getters return the values that were set
+     */
+    public void testGetters() {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId("abcdef", true);
+        ur.setJobId("global", "local", "1234");
+        ur.setJobName("my job", null);
+        ur.setCharge(1.5f, null, null, null);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        ur.addProjectName("project name", null);
+
+        assertEquals("abcdef", ur.getRecordId());
+        assertNotNull(ur.getCreateTimeinUTC());
+        assertEquals("global", ur.getGlobalJobId());
+        assertEquals("local", ur.getLocalJobId());
+        assertEquals("1234", ur.getProcessId());
+        assertEquals("my job", ur.getJobName());
+        assertEquals(1.5f, ur.getCharge());
+        assertEquals(UsageRecord.Status.Completed, ur.getStatus());
+        assertEquals(1, ur.getProjectNames().length);
+        assertEquals("project name", ur.getProjectNames()[0]);
+
+        // and the values are unchanged once the document has been built
+        ur.toXml();
+        assertEquals("abcdef", ur.getRecordId());
+        assertEquals("global", ur.getGlobalJobId());
+    }
+
+    /**
+     * Test the getters of a fresh record return null rather than throwing
+     */
+    public void testGettersWhenNotSet() {
+        UsageRecord ur = new UsageRecord();
+        assertNull(ur.getRecordId());
+        assertNull(ur.getCreateTimeinUTC());
+        assertNull(ur.getGlobalJobId());
+        assertNull(ur.getJobName());
+        assertNull(ur.getCharge());
+        assertNull(ur.getStatus());
+        assertEquals(0, ur.getProjectNames().length);
+    }
+
+    /**
+     * Test the record id can be generated with a chosen GUID mode
+     */
+    public void testSetRecordIdWithMode() {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(false, RandomGUID.Mode.TIME_ORDERED);
+        assertEquals('7', ur.getRecordId().charAt(14));
+        assertNull(ur.getCreateTimeinUTC());
+    }
+
     //--to here--
 
 
@@ -131,4 +259,292 @@ public final class UsageRecordTest extends TestCase {
             // etc.
         }
     } */
+
+    /**
+     * Test the record identity can be read back as a GUID
+     */
+    public void testGetRecordGUID() {
+        UsageRecord ur = new UsageRecord();
+        assertNull(ur.getRecordGUID());
+
+        ur.setRecordId(false, RandomGUID.Mode.TIME_ORDERED);
+        assertEquals(ur.getRecordId(), ur.getRecordGUID().toString());
+
+        ur.setRecordId("not a guid", false);
+        assertNull(ur.getRecordGUID());
+    }
+
+    /**
+     * Test a snapshot holds the record as it was when it was taken
+     */
+    public void testSnapshot() {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(true);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        ur.addProjectName("project name", null);
+        ur.addDisk(100, "scratch space", UsageRecord.DiskType.scratch, UsageRecord.Metric.max);
+        String xml = ur.toXml();
+
+        UsageRecord snapshot = ur.snapshot();
+        assertTrue(snapshot.isSnapshot());
+        assertFalse(ur.isSnapshot());
+        assertSame(snapshot, snapshot.snapshot());
+        assertEquals(xml, snapshot.toXml());
+
+        ur.setStatus(UsageRecord.Status.Failed, null);
+        ur.addProjectName("another project name", null);
+        ur.addDisk(200, null, null, null);
+        assertEquals(xml, snapshot.toXml());
+        assertEquals(UsageRecord.Status.Completed, snapshot.getStatus());
+        assertEquals(1, snapshot.getProjectNames().length);
+        assertTrue(snapshot.validate());
+    }
+
+    /**
+     * Test a snapshot cannot be changed
+     */
+    public void testSnapshotIsImmutable() {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(true);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        UsageRecord snapshot = ur.snapshot();
+
+        try {
+            snapshot.setStatus(UsageRecord.Status.Failed, null);
+            fail("Should not change a snapshot");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("The record is an immutable snapshot", e.getMessage());
+        }
+
+        try {
+            snapshot.addMemory(100, UsageRecord.Unit.MB, null, null, null);
+            fail("Should not change a snapshot");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("The record is an immutable snapshot", e.getMessage());
+        }
+        assertEquals(UsageRecord.Status.Completed, snapshot.getStatus());
+    }
+
+    /**
+     * Test a snapshot can be serialised and validated from several threads at once
+     */
+    public void testSnapshotFromManyThreads() throws Exception {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(true);
+        ur.setJobName("job", null);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        ur.addUserId("local user id", "global user name");
+        ur.addNetwork(100, UsageRecord.Unit.MB, UsageRecord.Metric.total, null);
+        final UsageRecord snapshot = ur.snapshot();
+        final String xml = snapshot.toXml();
+
+        final int threads = 8;
+        final boolean[] results = new boolean[threads];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    boolean same = true;
+                    for (int j = 0; j < 50; j++)
+                        same &= xml.equals(snapshot.toXml()) && snapshot.validate();
+                    results[index] = same;
+                }
+            };
+            workers[i].start();
+        }
+
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+            assertTrue("Thread " + i + " saw a different record", results[i]);
+        }
+    }
+
+    /**
+     * Test the XML and the validation outcome are kept until the record changes, and worked
+     * out again once it does
+     */
+    public void testCachedUntilChanged() {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(true);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        String xml = ur.toXml();
+        assertSame(xml, ur.toXml());
+        assertTrue(ur.validate());
+
+        ur.addProjectName("project name", null);
+        String changed = ur.toXml();
+        assertNotSame(xml, changed);
+        assertTrue(changed.contains("project name"));
+        assertTrue(ur.validate());
+
+        ur.addDisk(0, null, null, null); // GFD.098 volumes must be positive
+        assertFalse(ur.validate());
+        assertFalse(ur.validate());
+        assertFalse(ur.toXml().equals(changed));
+        assertFalse(ur.validate());
+
+        UsageRecord snapshot = ur.snapshot();
+        assertSame(ur.toXml(), snapshot.toXml());
+        assertFalse(snapshot.validate());
+
+        ur = new UsageRecord();
+        ur.setRecordId(true);
+        assertFalse(ur.validate());
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        assertTrue(ur.validate());
+    }
+
+    /**
+     * Test a reset record is the same as a new record, can be filled again, and does not
+     * change the snapshots taken of it
+     */
+    public void testReset() {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId("record", false);
+        ur.setJobId("global", "local", "1234");
+        ur.addUserId("local user id", "global user name");
+        ur.setJobName("job", "a test job");
+        ur.setCharge(2.5f, "desc", "USD", "x=2y");
+        ur.setStatus(UsageRecord.Status.Failed, "out of memory");
+        ur.addProjectName("project name", "a project");
+        ur.addDisk(100, "scratch space", UsageRecord.DiskType.scratch, UsageRecord.Metric.max);
+        ur.addNetwork(200, UsageRecord.Unit.MB, UsageRecord.Metric.total, "network");
+        ur.addMemory(300, UsageRecord.Unit.GB, UsageRecord.Metric.average, UsageRecord.MemoryType.physical, null);
+        ur.addResourceType("licence", null);
+        String xml = ur.toXml();
+        UsageRecord snapshot = ur.snapshot();
+
+        ur.reset();
+        assertNull(ur.getRecordId());
+        assertNull(ur.getGlobalJobId());
+        assertNull(ur.getJobName());
+        assertNull(ur.getCharge());
+        assertNull(ur.getStatus());
+        assertEquals(0, ur.getProjectNames().length);
+        assertFalse(ur.validate());
+        assertEquals(xml, snapshot.toXml());
+
+        UsageRecord fresh = new UsageRecord();
+        fresh.setRecordId("another record", false);
+        fresh.setStatus(UsageRecord.Status.Completed, null);
+        ur.setRecordId("another record", false);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        assertEquals(fresh.toXml(), ur.toXml());
+        assertTrue(ur.validate());
+
+        try {
+            snapshot.reset();
+            fail("Should not reset a snapshot");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("The record is an immutable snapshot", e.getMessage());
+        }
+    }
+
+    /**
+     * Test the typed accessors of the repeated elements
+     */
+    public void testEntryAccessors() {
+        UsageRecord ur = new UsageRecord();
+        assertEquals(0, ur.getDiskCount());
+        assertEquals(0, ur.getNetworkCount());
+        assertEquals(0, ur.getMemoryCount());
+        assertEquals(0, ur.getResourceTypeCount());
+        assertFalse(ur.isChargeSet());
+
+        ur.setCharge(2.5f, null, null, null);
+        ur.addUserId("local", null);
+        ur.addProjectName("project", "a project");
+        ur.addResourceType("licence", null);
+        ur.addResourceType("gpu", "GPU hours");
+        ur.addDisk(100, "scratch space", UsageRecord.DiskType.scratch, UsageRecord.Metric.max);
+        ur.addDisk(200, null, null, null);
+        ur.addNetwork(300, UsageRecord.Unit.MB, UsageRecord.Metric.total, null);
+        ur.addMemory(400, UsageRecord.Unit.GB, UsageRecord.Metric.average, UsageRecord.MemoryType.physical, "ram");
+
+        assertTrue(ur.isChargeSet());
+        assertEquals(2.5f, ur.getChargeValue());
+        assertEquals(1, ur.getUserIdCount());
+        assertEquals("local", ur.getLocalUserId(0));
+        assertNull(ur.getGlobalUserName(0));
+        assertEquals("project", ur.getProjectName(0));
+        assertEquals("a project", ur.getProjectNameDescription(0));
+
+        assertEquals(2, ur.getResourceTypeCount());
+        assertEquals("gpu", ur.getResourceType(1));
+        assertEquals("GPU hours", ur.getResourceTypeDescription(1));
+        assertNull(ur.getResourceTypeDescription(0));
+
+        assertEquals(2, ur.getDiskCount());
+        assertEquals(100, ur.getDiskSize(0));
+        assertEquals(UsageRecord.DiskType.scratch, ur.getDiskType(0));
+        assertEquals(UsageRecord.Metric.max, ur.getDiskMetric(0));
+        assertEquals("scratch space", ur.getDiskDescription(0));
+        assertEquals(200, ur.getDiskSize(1));
+        assertNull(ur.getDiskType(1));
+        assertNull(ur.getDiskMetric(1));
+        assertNull(ur.getDiskDescription(1));
+
+        assertEquals(1, ur.getNetworkCount());
+        assertEquals(300, ur.getNetworkSize(0));
+        assertEquals(UsageRecord.Unit.MB, ur.getNetworkUnit(0));
+        assertEquals(UsageRecord.Metric.total, ur.getNetworkMetric(0));
+        assertNull(ur.getNetworkDescription(0));
+
+        assertEquals(1, ur.getMemoryCount());
+        assertEquals(400, ur.getMemorySize(0));
+        assertEquals(UsageRecord.Unit.GB, ur.getMemoryUnit(0));
+        assertEquals(UsageRecord.Metric.average, ur.getMemoryMetric(0));
+        assertEquals(UsageRecord.MemoryType.physical, ur.getMemoryType(0));
+        assertEquals("ram", ur.getMemoryDescription(0));
+
+        UsageRecord snapshot = ur.snapshot();
+        ur.reset();
+        assertEquals(0, ur.getDiskCount());
+        assertEquals(2, snapshot.getDiskCount());
+        assertEquals(400, snapshot.getMemorySize(0));
+
+        try {
+            ur.getDiskSize(0);
+            fail("Should not get a disk that was not added");
+        }
+        catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            snapshot.getResourceType(2);
+            fail("Should not get a resource type that was not added");
+        }
+        catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test sizes too large for an int are kept, written and validated, and converted to bytes
+     */
+    public void testLargeSizes() {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId("record", false);
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        ur.addDisk(6L << 40, null, UsageRecord.DiskType.scratch, UsageRecord.Metric.max);
+        ur.addNetwork(3L << 40, UsageRecord.Unit.KB, UsageRecord.Metric.total, null);
+        ur.addMemory(12, UsageRecord.Unit.Gb, UsageRecord.Metric.max, null, null);
+        ur.addMemory(9, UsageRecord.Unit.b, UsageRecord.Metric.max, null, null);
+
+        assertEquals(6L << 40, ur.getDiskSize(0));
+        assertEquals(3L << 40, ur.getNetworkSize(0));
+        assertEquals(3L << 50, ur.getNetworkBytes(0));
+        assertEquals(12L << 27, ur.getMemoryBytes(0));
+        assertEquals(1, ur.getMemoryBytes(1));
+        assertTrue(ur.toXml().contains(">" + (6L << 40) + "</Disk>"));
+        assertTrue(ur.validate());
+
+        assertEquals(1L << 60, UsageRecord.Unit.EB.toBytes(1));
+        assertEquals(Long.MAX_VALUE, UsageRecord.Unit.EB.toBytes(8));
+        assertEquals(1L << 47, UsageRecord.Unit.Pb.toBytes(1));
+    }
 }
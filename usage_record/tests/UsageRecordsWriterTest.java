@@ -0,0 +1,143 @@
+import junit.framework.TestCase;
+import es.bsc.ur4j.UsageRecord;
+import es.bsc.ur4j.UsageRecordException;
+import es.bsc.ur4j.UsageRecordsWriter;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.Namespace;
+import org.jdom.input.SAXBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+/**
+ * Tests for the streaming UsageRecords writer
+ */
+public final class UsageRecordsWriterTest extends TestCase {
+
+    private static final Namespace URF = Namespace.getNamespace("urf", "http://schema.ogf.org/urf/2003/09/urf");
+
+    /**
+     * Helper method: create a usage record with the required elements and a few optional ones
+     *
+     * @param jobName the job name to give the record
+     * @return a usage record that can be written
+     */
+    private UsageRecord createRecord(String jobName) {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(true);
+        ur.setJobId("global", "local", "1234");
+        ur.addUserId("local user id", "global user name");
+        ur.setJobName(jobName, "a test job");
+        ur.setStatus(UsageRecord.Status.Completed, null);
+        ur.addProjectName("project name", null);
+        return ur;
+    }
+
+    /**
+     * Test an empty document still contains the UsageRecords element
+     */
+    public void testEmptyDocument() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        UsageRecordsWriter writer = new UsageRecordsWriter(bytes);
+        writer.close();
+
+        Document document = new SAXBuilder().build(new ByteArrayInputStream(bytes.toByteArray()));
+        Element root = document.getRootElement();
+        assertEquals("UsageRecords", root.getName());
+        assertEquals(URF.getURI(), root.getNamespaceURI());
+        assertEquals(0, root.getChildren().size());
+        assertEquals(0, writer.getRecordCount());
+    }
+
+    /**
+     * Test records written to a stream appear in order with their content
+     */
+    public void testWriteToOutputStream() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        UsageRecordsWriter writer = new UsageRecordsWriter(bytes);
+        for (int i = 0; i < 3; i++)
+            writer.write(createRecord("job " + i));
+        writer.close();
+
+        assertEquals(3, writer.getRecordCount());
+
+        Document document = new SAXBuilder().build(new ByteArrayInputStream(bytes.toByteArray()));
+        List<?> records = document.getRootElement().getChildren("UsageRecord", URF);
+        assertEquals(3, records.size());
+
+        for (int i = 0; i < 3; i++) {
+            Element record = (Element) records.get(i);
+            assertEquals("job " + i, record.getChildText("JobName", URF));
+            assertEquals("a test job", record.getChild("JobName", URF).getAttributeValue("description", URF));
+            assertEquals("Completed", record.getChildText("Status", URF));
+            assertEquals("local", record.getChild("JobIdentity", URF).getChildText("LocalJobId", URF));
+            assertNotNull(record.getChild("RecordIdentity", URF).getAttributeValue("recordId", URF));
+        }
+    }
+
+    /**
+     * Test a written record matches the record produced by toXml()
+     */
+    public void testWrittenRecordMatchesToXml() throws Exception {
+        UsageRecord ur = createRecord("my job");
+        ur.setCharge(1.5f, "desc", "USD", "x=2y");
+        ur.addDisk(100, "an example file size", UsageRecord.DiskType.temp, UsageRecord.Metric.total);
+        ur.addNetwork(100, UsageRecord.Unit.MB, UsageRecord.Metric.total, null);
+
+        StringWriter chars = new StringWriter();
+        UsageRecordsWriter writer = new UsageRecordsWriter(chars);
+        writer.write(ur);
+        writer.close();
+
+        SAXBuilder builder = new SAXBuilder();
+        Element written = (Element) builder.build(new StringReader(chars.toString()))
+                .getRootElement().getChildren().get(0);
+        Element expected = builder.build(new StringReader(ur.toXml())).getRootElement();
+
+        assertEquals(expected.getChildren().size(), written.getChildren().size());
+        for (int i = 0; i < expected.getChildren().size(); i++) {
+            Element e = (Element) expected.getChildren().get(i);
+            Element w = (Element) written.getChildren().get(i);
+            assertEquals(e.getName(), w.getName());
+            assertEquals(e.getText(), w.getText());
+            assertEquals(e.getAttributes().size(), w.getAttributes().size());
+        }
+    }
+
+    /**
+     * Test writing a record with no status throws an exception
+     */
+    public void testWriteWithNoStatus() throws Exception {
+        UsageRecord ur = new UsageRecord();
+        ur.setRecordId(false);
+
+        UsageRecordsWriter writer = new UsageRecordsWriter(new ByteArrayOutputStream());
+        try {
+            writer.write(ur);
+            fail("Should not write a record with no status");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("The status must be set", e.getMessage());
+        }
+        writer.close();
+    }
+
+    /**
+     * Test writing to a closed writer throws an exception
+     */
+    public void testWriteAfterClose() throws Exception {
+        UsageRecordsWriter writer = new UsageRecordsWriter(new ByteArrayOutputStream());
+        writer.close();
+        try {
+            writer.write(createRecord("late job"));
+            fail("Should not write to a closed writer");
+        }
+        catch (UsageRecordException e) {
+            assertEquals("The writer has been closed", e.getMessage());
+        }
+    }
+}